@@ -26,17 +26,25 @@ public class DelimitedString extends AbstractList<String> {
 	private final int [] delimiterLocations;
 
 	public DelimitedString(String s, char delimiter) {
+		this(s, delimiter, Integer.MAX_VALUE);
+	}
+	
+	/**
+	 * Only the first <code>fields</code> items are found (the rest of the string is not scanned), so
+	 * a reader which only needs the first few columns of a wide line does not pay for the others.
+	 */
+	public DelimitedString(String s, char delimiter, int fields) {
 		concatenated = s;
 		this.delimiter = delimiter;
-		delimiterLocations = findDelimiters(s, delimiter);
+		delimiterLocations = findDelimiters(s, delimiter, fields);
 	}
 	
-	private int [] findDelimiters(String s, char delim) {
-		int [] temp = new int[s.length()+1];
+	private int [] findDelimiters(String s, char delim, int fields) {
+		int [] temp = new int[Math.min(s.length(), fields)+2];
 		int currDelim = 0;
 		temp[currDelim++] = -1;
 		int off = 0;
-		while (off < s.length()) {
+		while (off < s.length() && currDelim <= fields) {
 			off = s.indexOf(delim, off);
 			if (off < 0) {
 				break;
@@ -44,7 +52,9 @@ public class DelimitedString extends AbstractList<String> {
 			temp[currDelim++] = off;
 			off++;
 		}
-		temp[currDelim++] = s.length();
+		if (currDelim <= fields) {
+			temp[currDelim++] = s.length();
+		}
 		int [] out = new int[currDelim];
 		System.arraycopy(temp, 0, out, 0, currDelim);
 		return out;
@@ -60,6 +70,15 @@ public class DelimitedString extends AbstractList<String> {
 		}
 	}
 
+	/**
+	 * Compare an item to a string without making a substring.
+	 */
+	public boolean itemEquals(int index, String value) {
+		int begin = delimiterLocations[index]+1;
+		return delimiterLocations[index+1] - begin == value.length() &&
+				concatenated.regionMatches(begin, value, 0, value.length());
+	}
+
 	@Override
 	public int size() {
 		return delimiterLocations.length - 1;
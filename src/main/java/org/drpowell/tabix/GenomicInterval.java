@@ -29,7 +29,7 @@ package org.drpowell.tabix;
 import java.util.ArrayList;
 import java.util.BitSet;
 
-class GenomicInterval {
+public class GenomicInterval {
 	private final int begin, end, sequenceId;
 	private int bin = -1;
 
@@ -0,0 +1,410 @@
+package org.drpowell.tabix;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import net.sf.samtools.util.BlockCompressedStreamConstants;
+
+import org.drpowell.tabix.TabixIndex.TabixConfig;
+
+/**
+ * Builds a tabix index for an existing bgzip-compressed file without decoding lines to Strings.
+ *
+ * Indexing with BlockCompressedInputStream.readLine() creates a String for each line, then a
+ * DelimitedString and substrings for the coordinates (and a split of the INFO column for VCF
+ * files). Instead, BGZF blocks are read from the file and handed to a thread pool, where each
+ * block is inflated and the coordinates of the lines contained in it are parsed straight from the
+ * bytes. Results are then consumed in file order: lines spanning block boundaries are stitched
+ * together and everything is added to the index in order. A String is only made when the
+ * sequence name changes.
+ *
+ * The SAM preset (which needs CIGAR parsing) is not handled here.
+ *
+ * @author bpow
+ */
+public class ParallelTabixIndexer {
+	private static final int BGZF_MIN_HEADER = 12; // up to and including XLEN
+	private static final int BGZF_FOOTER = 8; // CRC32, ISIZE
+
+	private final TabixBuilder builder;
+	private final LineParser parser;
+	private final int threads;
+
+	// state while consuming blocks in order
+	private long lineStart = 0;
+	private long dataEnd = 0;
+	private byte [] carry = new byte[1024];
+	private int carryLength = 0;
+	private byte [] lastSequence = new byte[0];
+	private int lastTid = -1;
+
+	private ParallelTabixIndexer(String compressedFile, TabixConfig config, int threads) throws IOException {
+		if ((config.preset&0xffff) == TabixIndex.TBX_PRESET_SAM) {
+			throw new IllegalArgumentException("ParallelTabixIndexer does not handle the SAM preset");
+		}
+		this.threads = Math.max(1, threads);
+		builder = new TabixBuilder(compressedFile, config);
+		parser = new LineParser(config);
+	}
+
+	/**
+	 * Index an existing bgzip-compressed file.
+	 *
+	 * @param threads number of threads with which to inflate and parse blocks
+	 * @return the index, which has not yet been saved
+	 */
+	public static TabixIndex buildIndex(String compressedFile, TabixConfig config, int threads) throws IOException {
+		ParallelTabixIndexer indexer = new ParallelTabixIndexer(compressedFile, config, threads);
+		indexer.run(new File(compressedFile));
+		return indexer.builder.tabix;
+	}
+
+	private void run(File file) throws IOException {
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 20));
+		LinkedList<Future<ParsedBlock>> inFlight = new LinkedList<Future<ParsedBlock>>();
+		final int maxInFlight = threads * 8;
+		try {
+			long address = 0;
+			boolean moreBlocks = true;
+			while (moreBlocks || !inFlight.isEmpty()) {
+				while (moreBlocks && inFlight.size() < maxInFlight) {
+					final RawBlock raw = readBlock(in, address);
+					if (raw == null) {
+						moreBlocks = false;
+					} else {
+						address += raw.length;
+						inFlight.add(pool.submit(new Callable<ParsedBlock>() {
+							@Override
+							public ParsedBlock call() throws DataFormatException {
+								return new ParsedBlock(raw, parser);
+							}
+						}));
+					}
+				}
+				if (!inFlight.isEmpty()) {
+					consume(inFlight.removeFirst().get());
+				}
+			}
+			if (carryLength > 0) {
+				// last line had no line terminator
+				addLine(carry, 0, carryLength, lineStart, dataEnd);
+			}
+			builder.finish();
+		} catch (InterruptedException ie) {
+			throw new IOException("Interrupted while indexing " + file, ie);
+		} catch (ExecutionException ee) {
+			throw new IOException("Problem inflating or parsing blocks of " + file, ee.getCause());
+		} finally {
+			pool.shutdownNow();
+			in.close();
+		}
+	}
+
+	private static class RawBlock {
+		final long address;
+		final int length;
+		final byte [] bytes;
+		RawBlock(long address, byte [] bytes) {
+			this.address = address; this.bytes = bytes; length = bytes.length;
+		}
+	}
+
+	/**
+	 * Read one BGZF block (header and all), or return null at the end of the file.
+	 */
+	private static RawBlock readBlock(DataInputStream in, long address) throws IOException {
+		byte [] header = new byte[BGZF_MIN_HEADER];
+		int first = in.read();
+		if (first < 0) return null;
+		header[0] = (byte) first;
+		in.readFully(header, 1, BGZF_MIN_HEADER - 1);
+		if (header[0] != BlockCompressedStreamConstants.GZIP_ID1 || (header[1] & 0xff) != BlockCompressedStreamConstants.GZIP_ID2 ||
+				(header[3] & BlockCompressedStreamConstants.GZIP_FLG) == 0) {
+			throw new IOException("Invalid BGZF block header at file offset " + address);
+		}
+		int xlen = (header[10] & 0xff) | ((header[11] & 0xff) << 8);
+		byte [] extra = new byte[xlen];
+		in.readFully(extra);
+		int blockSize = -1;
+		for (int i = 0; i + 4 <= xlen; ) {
+			int slen = (extra[i+2] & 0xff) | ((extra[i+3] & 0xff) << 8);
+			if (extra[i] == BlockCompressedStreamConstants.BGZF_ID1 && extra[i+1] == BlockCompressedStreamConstants.BGZF_ID2 && slen == 2) {
+				blockSize = ((extra[i+4] & 0xff) | ((extra[i+5] & 0xff) << 8)) + 1;
+			}
+			i += 4 + slen;
+		}
+		if (blockSize < 0) {
+			throw new IOException("BGZF block at file offset " + address + " does not have a block size field");
+		}
+		byte [] block = new byte[blockSize];
+		System.arraycopy(header, 0, block, 0, BGZF_MIN_HEADER);
+		System.arraycopy(extra, 0, block, BGZF_MIN_HEADER, xlen);
+		try {
+			in.readFully(block, BGZF_MIN_HEADER + xlen, blockSize - BGZF_MIN_HEADER - xlen);
+		} catch (EOFException eof) {
+			throw new IOException("Truncated BGZF block at file offset " + address, eof);
+		}
+		return new RawBlock(address, block);
+	}
+
+	private static final ThreadLocal<Inflater> INFLATERS = new ThreadLocal<Inflater>() {
+		@Override
+		protected Inflater initialValue() {
+			return new Inflater(true);
+		}
+	};
+
+	/**
+	 * An inflated block, along with the coordinates of the lines that are entirely within it.
+	 *
+	 * Bytes before the first line terminator belong to a line which started in an earlier block
+	 * (or to the first line of the file), and bytes after the last terminator belong to a line
+	 * which continues in a later block; these are handled while consuming the blocks in order.
+	 */
+	private static class ParsedBlock {
+		final long address;
+		final int compressedLength;
+		final byte [] data;
+		final int firstLineStart; // after the first terminator, or -1 if there is none
+		final int tailStart; // start of the (possibly empty) unterminated tail
+		/** per line: start, end (after terminator), seqOffset, seqLength, begin, end; or start/end followed by -1s to skip */
+		int [] records;
+		int recordCount = 0;
+
+		ParsedBlock(RawBlock raw, LineParser parser) throws DataFormatException {
+			address = raw.address;
+			compressedLength = raw.length;
+			byte [] b = raw.bytes;
+			int isize = (b[b.length-4] & 0xff) | ((b[b.length-3] & 0xff) << 8) | ((b[b.length-2] & 0xff) << 16) | ((b[b.length-1] & 0xff) << 24);
+			data = new byte[isize];
+			int cdataStart = BGZF_MIN_HEADER + ((b[10] & 0xff) | ((b[11] & 0xff) << 8));
+			Inflater inflater = INFLATERS.get();
+			inflater.reset();
+			inflater.setInput(b, cdataStart, b.length - cdataStart - BGZF_FOOTER);
+			int inflated = 0;
+			while (inflated < isize) {
+				int n = inflater.inflate(data, inflated, isize - inflated);
+				if (n == 0 && (inflater.finished() || inflater.needsInput())) break;
+				inflated += n;
+			}
+			if (inflated != isize) {
+				throw new DataFormatException("Inflated " + inflated + " bytes instead of " + isize + " for block at " + address);
+			}
+
+			int nl = indexOf(data, 0, '\n');
+			if (nl < 0) {
+				firstLineStart = -1;
+				tailStart = data.length;
+				records = new int[0];
+				return;
+			}
+			firstLineStart = nl + 1;
+			records = new int[6 * 16];
+			int start = firstLineStart;
+			int [] parsed = new int[4];
+			while ((nl = indexOf(data, start, '\n')) >= 0) {
+				if (recordCount * 6 + 6 > records.length) {
+					records = Arrays.copyOf(records, records.length * 2);
+				}
+				int r = recordCount * 6;
+				records[r] = start;
+				records[r+1] = nl + 1;
+				if (parser.parse(data, start, nl - start, parsed)) {
+					System.arraycopy(parsed, 0, records, r+2, 4);
+				} else {
+					records[r+2] = -1;
+				}
+				recordCount++;
+				start = nl + 1;
+			}
+			tailStart = start;
+		}
+	}
+
+	private static int indexOf(byte [] data, int from, char c) {
+		for (int i = from; i < data.length; i++) {
+			if (data[i] == c) return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * The virtual offset just after position 'offset' of a block, matching BlockCompressedInputStream
+	 * (which points at the start of the next block once a block has been consumed).
+	 */
+	private static long virtualOffset(ParsedBlock block, int offset) {
+		if (offset >= block.data.length) {
+			return (block.address + block.compressedLength) << 16;
+		}
+		return (block.address << 16) | offset;
+	}
+
+	private void consume(ParsedBlock block) throws IOException {
+		if (block.data.length == 0) return; // e.g. the EOF marker
+		dataEnd = virtualOffset(block, block.data.length);
+		if (block.firstLineStart < 0) {
+			appendCarry(block.data, 0, block.data.length);
+			return;
+		}
+		// finish the line that started in a previous block (or at the start of this one)
+		appendCarry(block.data, 0, block.firstLineStart - 1);
+		long lineEnd = virtualOffset(block, block.firstLineStart);
+		addLine(carry, 0, carryLength, lineStart, lineEnd);
+		carryLength = 0;
+		lineStart = lineEnd;
+
+		int [] records = block.records;
+		for (int i = 0; i < block.recordCount; i++) {
+			int r = i * 6;
+			lineEnd = virtualOffset(block, records[r+1]);
+			if (records[r+2] >= 0) {
+				int tid = sequenceId(block.data, records[r+2], records[r+3]);
+				builder.addInterval(new GenomicInterval(records[r+4], records[r+5], tid), lineStart, lineEnd);
+			}
+			lineStart = lineEnd;
+		}
+		appendCarry(block.data, block.tailStart, block.data.length - block.tailStart);
+	}
+
+	private void appendCarry(byte [] data, int offset, int length) {
+		if (carryLength + length > carry.length) {
+			carry = Arrays.copyOf(carry, Math.max(carry.length * 2, carryLength + length));
+		}
+		System.arraycopy(data, offset, carry, carryLength, length);
+		carryLength += length;
+	}
+
+	private final int [] parsedLine = new int[4];
+
+	private void addLine(byte [] data, int offset, int length, long start, long end) {
+		if (parser.parse(data, offset, length, parsedLine)) {
+			int tid = sequenceId(data, parsedLine[0], parsedLine[1]);
+			builder.addInterval(new GenomicInterval(parsedLine[2], parsedLine[3], tid), start, end);
+		}
+	}
+
+	private int sequenceId(byte [] data, int offset, int length) {
+		if (length != lastSequence.length || !regionEquals(data, offset, lastSequence)) {
+			lastSequence = Arrays.copyOfRange(data, offset, offset + length);
+			lastTid = builder.tabix.getIdForChromosome(new String(lastSequence));
+		}
+		return lastTid;
+	}
+
+	private static boolean regionEquals(byte [] data, int offset, byte [] other) {
+		for (int i = 0; i < other.length; i++) {
+			if (data[offset + i] != other[i]) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Parses the coordinates of a line following the same rules as TabixIndex.getInterval(List),
+	 * but directly from bytes. This is stateless, so it can be shared between threads.
+	 */
+	static class LineParser {
+		private final int seqCol, beginCol, endCol, preset;
+		private final boolean ucsc;
+		private final byte comment;
+		private final int lastColumn;
+		private static final byte [] END_KEY = "END=".getBytes();
+
+		LineParser(TabixConfig config) {
+			seqCol = config.seqCol - 1; beginCol = config.beginCol - 1; endCol = config.endCol - 1;
+			preset = config.preset & 0xffff;
+			ucsc = (config.preset & TabixIndex.TBX_FLAG_UCSC) != 0;
+			comment = (byte) config.commentChar;
+			int last = Math.max(seqCol, beginCol);
+			if (preset == 0) last = Math.max(last, endCol);
+			if (preset == TabixIndex.TBX_PRESET_VCF) last = Math.max(last, 7);
+			lastColumn = last;
+		}
+
+		/**
+		 * @param out receives the sequence name offset and length, then begin and end
+		 * @return false for comments and empty lines, which are not indexed
+		 */
+		boolean parse(byte [] data, int offset, int length, int [] out) {
+			if (length > 0 && data[offset + length - 1] == '\r') length--;
+			if (length == 0 || data[offset] == comment) return false;
+			int [] colStart = new int[lastColumn + 2];
+			int col = 0;
+			colStart[0] = offset;
+			final int lineEnd = offset + length;
+			for (int i = offset; i < lineEnd && col <= lastColumn; i++) {
+				if (data[i] == '\t') {
+					colStart[++col] = i + 1;
+				}
+			}
+			if (col <= lastColumn) {
+				if (col < lastColumn) {
+					throw new NumberFormatException("Too few columns to index line: " + new String(data, offset, length));
+				}
+				colStart[lastColumn + 1] = lineEnd + 1; // last needed column is the last column of the line
+			}
+			out[0] = colStart[seqCol];
+			out[1] = colStart[seqCol + 1] - 1 - colStart[seqCol];
+			int beg = parseInt(data, colStart[beginCol], colStart[beginCol + 1] - 1);
+			int end = beg;
+			if (ucsc) ++end;
+			else --beg;
+			if (beg < 0) beg = 0;
+			if (end < 1) end = 1;
+			if (preset == 0) {
+				end = parseInt(data, colStart[endCol], colStart[endCol + 1] - 1);
+			} else if (preset == TabixIndex.TBX_PRESET_VCF) {
+				int refLength = colStart[4] - 1 - colStart[3];
+				if (refLength > 0) end = beg + refLength;
+				int infoStart = colStart[7], infoEnd = colStart[8] - 1;
+				int endValue = findInfoEnd(data, infoStart, infoEnd);
+				if (endValue >= 0) {
+					int valueEnd = endValue;
+					while (valueEnd < infoEnd && data[valueEnd] != ';') valueEnd++;
+					end = parseInt(data, endValue, valueEnd);
+				}
+			}
+			out[2] = beg;
+			out[3] = end;
+			return true;
+		}
+
+		/** @return the offset of the value for the END key in the INFO column, or -1 */
+		private static int findInfoEnd(byte [] data, int start, int end) {
+			for (int i = start; i + END_KEY.length <= end; i++) {
+				if ((i == start || data[i-1] == ';') && data[i] == 'E' && data[i+1] == 'N' && data[i+2] == 'D' && data[i+3] == '=') {
+					return i + END_KEY.length;
+				}
+			}
+			return -1;
+		}
+
+		private static int parseInt(byte [] data, int start, int end) {
+			if (start >= end) throw new NumberFormatException("Empty coordinate column");
+			int value = 0;
+			boolean negative = data[start] == '-';
+			for (int i = negative ? start + 1 : start; i < end; i++) {
+				int d = data[i] - '0';
+				if (d < 0 || d > 9) {
+					throw new NumberFormatException("For input string: \"" + new String(data, start, end - start) + "\"");
+				}
+				value = value * 10 + d;
+			}
+			return negative ? -value : value;
+		}
+	}
+
+}
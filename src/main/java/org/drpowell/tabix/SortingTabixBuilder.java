@@ -0,0 +1,305 @@
+package org.drpowell.tabix;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import net.sf.samtools.util.BlockCompressedInputStream;
+import net.sf.samtools.util.BlockCompressedOutputStream;
+
+import org.drpowell.tabix.TabixIndex.TabixConfig;
+
+/**
+ * Compresses and indexes input that may not already be sorted.
+ *
+ * Lines are streamed directly to the bgzip output for as long as the input is in order. If a
+ * line is found to be out of order, the part that was already written becomes the first sorted
+ * "run" and the rest of the input is sorted in chunks of bounded size, with each chunk spilled
+ * to a gzip-compressed temporary file. The runs are then merged (k-way) and compressed/indexed
+ * in that same pass, so sorted input is only read once and unsorted input is read twice.
+ *
+ * Sequences are ordered as given by ##contig header lines (if present), followed by any other
+ * sequences in the order that they are first seen. Records at the same position keep their
+ * input order.
+ *
+ * @author bpow
+ */
+public class SortingTabixBuilder {
+	public static final long DEFAULT_MEMORY_BUDGET = 256L * 1024 * 1024;
+	// rough per-record overhead (String, char[], Record and GenomicInterval objects)
+	private static final int RECORD_OVERHEAD_BYTES = 120;
+	private static final String CONTIG_HEADER = "##contig=<";
+
+	private final String compressedFileName;
+	private final TabixConfig config;
+	private final long maxBytesInMemory;
+	private final List<String> headerLines = new ArrayList<String>();
+	private final List<File> runs = new ArrayList<File>();
+	private final List<Record> buffer = new ArrayList<Record>();
+	private long bufferedBytes = 0;
+	private long sequenceNumber = 0;
+	/** Builder for the direct (still-sorted) path; its sequence dictionary also defines the sort order. */
+	private final TabixBuilder streamingBuilder;
+	private BlockCompressedOutputStream streamingOutput;
+	private static Logger logger = Logger.getLogger(SortingTabixBuilder.class.getCanonicalName());
+
+	private static class Record {
+		final GenomicInterval intv;
+		final String line;
+		final long sequence; // input order, for a stable merge
+		Record(GenomicInterval intv, String line, long sequence) {
+			this.intv = intv; this.line = line; this.sequence = sequence;
+		}
+	}
+
+	private static final Comparator<Record> RECORD_ORDER = new Comparator<Record>() {
+		@Override
+		public int compare(Record a, Record b) {
+			if (a.intv.getSequenceId() != b.intv.getSequenceId()) {
+				return a.intv.getSequenceId() < b.intv.getSequenceId() ? -1 : 1;
+			}
+			if (a.intv.getBegin() != b.intv.getBegin()) {
+				return a.intv.getBegin() < b.intv.getBegin() ? -1 : 1;
+			}
+			return a.sequence < b.sequence ? -1 : (a.sequence == b.sequence ? 0 : 1);
+		}
+	};
+
+	private SortingTabixBuilder(String compressedFileName, TabixConfig config, long maxBytesInMemory) throws IOException {
+		this.compressedFileName = compressedFileName;
+		this.config = config;
+		this.maxBytesInMemory = maxBytesInMemory;
+		streamingBuilder = new TabixBuilder(compressedFileName, config);
+		streamingOutput = new BlockCompressedOutputStream(new File(compressedFileName));
+	}
+
+	/**
+	 * Compress and index the input, sorting it first if it turns out not to be sorted.
+	 *
+	 * @param input lines of the file to be indexed (header lines first)
+	 * @param compressedFileName the bgzip-compressed file to be written
+	 * @param config tabix configuration for the input
+	 * @param maxBytesInMemory approximate limit on memory used for sorting before spilling to temporary files
+	 * @return the index, which has not yet been saved
+	 */
+	public static TabixIndex buildIndex(Iterator<String> input, String compressedFileName, TabixConfig config,
+			long maxBytesInMemory) throws IOException {
+		SortingTabixBuilder sorter = new SortingTabixBuilder(compressedFileName, config, maxBytesInMemory);
+		try {
+			while (input.hasNext()) {
+				sorter.add(input.next());
+			}
+			return sorter.finish();
+		} finally {
+			sorter.deleteRuns();
+		}
+	}
+
+	private void add(String line) throws IOException {
+		if (line.startsWith(config.commentString)) {
+			addHeader(line);
+			return;
+		}
+		GenomicInterval intv = streamingBuilder.tabix.getInterval(new DelimitedString(line, '\t'));
+		if (streamingOutput != null) {
+			if (streamingBuilder.isInOrder(intv)) {
+				streamingBuilder.writeLine(streamingOutput, line, intv);
+				return;
+			}
+			abandonStreaming();
+		}
+		buffer.add(new Record(intv, line, sequenceNumber++));
+		bufferedBytes += 2L * line.length() + RECORD_OVERHEAD_BYTES;
+		if (bufferedBytes >= maxBytesInMemory) {
+			spillBuffer();
+		}
+	}
+
+	private void addHeader(String line) throws IOException {
+		headerLines.add(line);
+		if (line.startsWith(CONTIG_HEADER)) {
+			String contig = parseContigId(line);
+			if (contig != null) {
+				streamingBuilder.tabix.getIdForChromosome(contig);
+			}
+		}
+		if (streamingOutput != null) {
+			streamingBuilder.writeLine(streamingOutput, line, null);
+		}
+	}
+
+	static String parseContigId(String line) {
+		int idStart = line.indexOf("ID=", CONTIG_HEADER.length() - 1);
+		if (idStart < 0) return null;
+		idStart += 3;
+		int idEnd = idStart;
+		while (idEnd < line.length() && line.charAt(idEnd) != ',' && line.charAt(idEnd) != '>') {
+			idEnd++;
+		}
+		return line.substring(idStart, idEnd);
+	}
+
+	/**
+	 * The input is out of order: what was written so far is sorted, so keep it as the first run.
+	 */
+	private void abandonStreaming() throws IOException {
+		logger.info("Input for " + compressedFileName + " is not sorted, will sort before indexing");
+		streamingOutput.close();
+		streamingOutput = null;
+		File firstRun = createRunFile(".bgz");
+		if (!firstRun.delete() || !new File(compressedFileName).renameTo(firstRun)) {
+			throw new IOException("Unable to move partial output " + compressedFileName + " to " + firstRun);
+		}
+		runs.add(firstRun);
+	}
+
+	private File createRunFile(String suffix) throws IOException {
+		File dir = new File(compressedFileName).getAbsoluteFile().getParentFile();
+		File f = File.createTempFile("tabixsort", suffix, dir);
+		f.deleteOnExit();
+		return f;
+	}
+
+	private void spillBuffer() throws IOException {
+		Collections.sort(buffer, RECORD_ORDER);
+		File run = createRunFile(".gz");
+		Writer w = new BufferedWriter(new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(run), 65536)));
+		for (Record r : buffer) {
+			w.write(r.line);
+			w.write('\n');
+		}
+		w.close();
+		runs.add(run);
+		buffer.clear();
+		bufferedBytes = 0;
+	}
+
+	private TabixIndex finish() throws IOException {
+		if (streamingOutput != null) {
+			// the input was sorted, so everything has already been written
+			streamingBuilder.finish();
+			streamingOutput.close();
+			return streamingBuilder.tabix;
+		}
+		Collections.sort(buffer, RECORD_ORDER);
+
+		TabixBuilder builder = new TabixBuilder(compressedFileName, config);
+		// keep the same sequence ids (and thus sort order) as were used for sorting
+		for (String contig : streamingBuilder.tabix.mChr2tid.keySet()) {
+			builder.tabix.getIdForChromosome(contig);
+		}
+		BlockCompressedOutputStream bcos = new BlockCompressedOutputStream(new File(compressedFileName));
+		for (String header : headerLines) {
+			builder.writeLine(bcos, header, null);
+		}
+
+		PriorityQueue<RunReader> queue = new PriorityQueue<RunReader>(runs.size() + 1, new Comparator<RunReader>() {
+			@Override
+			public int compare(RunReader a, RunReader b) {
+				return RECORD_ORDER.compare(a.current, b.current);
+			}
+		});
+		long runNumber = 0;
+		for (File run : runs) {
+			RunReader reader = new RunReader(openRun(run), runNumber++);
+			if (reader.advance()) queue.add(reader);
+		}
+		RunReader memoryRun = new RunReader(buffer.iterator(), runNumber);
+		if (memoryRun.advance()) queue.add(memoryRun);
+
+		while (!queue.isEmpty()) {
+			RunReader reader = queue.poll();
+			builder.writeLine(bcos, reader.current.line, reader.current.intv);
+			if (reader.advance()) queue.add(reader);
+		}
+		builder.finish();
+		bcos.close();
+		return builder.tabix;
+	}
+
+	private Iterator<String> openRun(File run) throws IOException {
+		final BufferedReader reader;
+		if (run.getName().endsWith(".bgz")) {
+			reader = new BufferedReader(new InputStreamReader(new BlockCompressedInputStream(run)));
+		} else {
+			reader = new BufferedReader(new InputStreamReader(new GZIPInputStream(new FileInputStream(run), 65536)));
+		}
+		return new Iterator<String>() {
+			private String next = readDataLine();
+			private String readDataLine() throws IOException {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					if (!line.startsWith(config.commentString)) return line;
+				}
+				reader.close();
+				return null;
+			}
+			@Override
+			public boolean hasNext() {
+				return next != null;
+			}
+			@Override
+			public String next() {
+				String result = next;
+				try {
+					next = readDataLine();
+				} catch (IOException ioe) {
+					throw new RuntimeException("Problem reading temporary sort file", ioe);
+				}
+				return result;
+			}
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	/**
+	 * The head of one sorted run. The records from a run keep the run number as their "sequence"
+	 * (records within a run are already in order), so ties between runs resolve in input order.
+	 */
+	private class RunReader {
+		private final Iterator<?> source;
+		private final long runNumber;
+		Record current;
+		RunReader(Iterator<?> source, long runNumber) {
+			this.source = source; this.runNumber = runNumber;
+		}
+		boolean advance() {
+			if (!source.hasNext()) return false;
+			Object o = source.next();
+			if (o instanceof Record) {
+				Record r = (Record) o;
+				current = new Record(r.intv, r.line, runNumber);
+			} else {
+				String line = (String) o;
+				current = new Record(streamingBuilder.tabix.getInterval(new DelimitedString(line, '\t')), line, runNumber);
+			}
+			return true;
+		}
+	}
+
+	private void deleteRuns() {
+		for (File run : runs) {
+			run.delete();
+		}
+		runs.clear();
+	}
+
+}
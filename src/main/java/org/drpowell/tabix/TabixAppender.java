@@ -0,0 +1,176 @@
+package org.drpowell.tabix;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Iterator;
+import java.util.logging.Logger;
+
+import net.sf.samtools.util.BlockCompressedInputStream;
+import net.sf.samtools.util.BlockCompressedOutputStream;
+import net.sf.samtools.util.BlockCompressedStreamConstants;
+
+import org.drpowell.tabix.TabixIndex.Chunk;
+import org.drpowell.util.LineIterator;
+
+/**
+ * Adds records to the end of an existing bgzip-compressed, tabix-indexed file.
+ *
+ * The trailing (empty) EOF block of the compressed file is removed, new blocks are written after
+ * the existing data, and the existing index is updated in place before being saved again. Only the
+ * new records (and the index) are written, so the cost is proportional to the size of the new data.
+ *
+ * New records must be sorted, and must come after the last record of the existing file (either
+ * later on the same sequence or on a sequence that is not yet present).
+ *
+ * @author bpow
+ */
+public class TabixAppender {
+	private static Logger logger = Logger.getLogger(TabixAppender.class.getCanonicalName());
+
+	/**
+	 * Append lines to a compressed file and update its index (filename + ".tbi").
+	 *
+	 * Header/comment lines in the new input are skipped, since they cannot be added to the middle of a file.
+	 *
+	 * @return the updated index (which has already been saved)
+	 */
+	public static TabixIndex append(String compressedFileName, Iterator<String> newLines) throws IOException {
+		File file = new File(compressedFileName);
+		TabixReader reader = new TabixReader(compressedFileName);
+		reader.mFp.close();
+		TabixIndex index = reader.getIndex();
+		GenomicInterval last = findLastInterval(index);
+		if (last == null) {
+			throw new IOException("Unable to append to " + compressedFileName + " because it has no indexed records");
+		}
+
+		long blockAddressBase = removeTerminator(file);
+		TabixBuilder builder = new TabixBuilder(index, last, blockAddressBase);
+		BlockCompressedOutputStream bcos = new BlockCompressedOutputStream(new FileOutputStream(file, true), file);
+		int skippedHeaders = 0;
+		boolean appended = false;
+		try {
+			while (newLines.hasNext()) {
+				String line = newLines.next();
+				if (line.startsWith(index.config.commentString)) {
+					skippedHeaders++;
+					continue;
+				}
+				GenomicInterval intv = index.getInterval(new DelimitedString(line, '\t'));
+				if (!builder.isInOrder(intv)) {
+					throw new IOException("Records to be appended must be sorted and follow the existing records of " +
+							compressedFileName + ", but found:\n" + line);
+				}
+				builder.writeLine(bcos, line, intv);
+			}
+			builder.finish();
+			bcos.close();
+			appended = true;
+		} finally {
+			if (!appended) {
+				// leave the file as it was, so that it still agrees with the (unchanged) saved index
+				try {
+					bcos.close();
+				} catch (IOException ioe) {
+					// the file is truncated below anyway
+				}
+				restore(file, blockAddressBase);
+			}
+		}
+		if (skippedHeaders > 0) {
+			logger.warning("Skipped " + skippedHeaders + " header lines while appending to " + compressedFileName);
+		}
+		index.save();
+		return index;
+	}
+
+	/**
+	 * Find the interval of the last record in the file, by reading from the start of the chunk
+	 * which ends furthest into the file.
+	 */
+	static GenomicInterval findLastInterval(TabixIndex index) throws IOException {
+		int lastTid = -1;
+		Chunk lastChunk = null;
+		for (int tid = 0; tid < index.binningIndex.size(); tid++) {
+			BinIndex bins = index.binningIndex.get(tid);
+			for (int bin : bins.bins()) {
+				for (Chunk chunk : bins.get(bin)) {
+					if (lastChunk == null || Chunk.cmpUInt64(chunk.end, lastChunk.end) > 0) {
+						lastChunk = chunk;
+						lastTid = tid;
+					}
+				}
+			}
+		}
+		if (lastChunk == null) return null;
+
+		BlockCompressedInputStream bcis = new BlockCompressedInputStream(new File(index.clientFileName));
+		GenomicInterval last = null;
+		try {
+			bcis.seek(lastChunk.begin);
+			String line;
+			while ((line = bcis.readLine()) != null) {
+				if (line.length() == 0 || line.startsWith(index.config.commentString)) continue;
+				GenomicInterval intv = index.getInterval(new DelimitedString(line, '\t'));
+				if (intv.getSequenceId() == lastTid && (last == null || intv.getBegin() >= last.getBegin())) {
+					last = intv;
+				}
+			}
+		} finally {
+			bcis.close();
+		}
+		return last;
+	}
+
+	/**
+	 * Truncate the empty BGZF block which marks the end of the file (if present).
+	 *
+	 * @return the length of the file afterward, which is where new blocks will start
+	 */
+	static long removeTerminator(File file) throws IOException {
+		switch (BlockCompressedInputStream.checkTermination(file)) {
+		case HAS_TERMINATOR_BLOCK:
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			try {
+				long newLength = raf.length() - BlockCompressedStreamConstants.EMPTY_GZIP_BLOCK.length;
+				raf.setLength(newLength);
+				return newLength;
+			} finally {
+				raf.close();
+			}
+		case HAS_HEALTHY_LAST_BLOCK:
+			return file.length();
+		default:
+			throw new IOException("The last block of " + file + " is defective, so it cannot be appended to");
+		}
+	}
+
+	/**
+	 * Truncate the file back to where the new blocks started, and terminate it with an empty block again.
+	 */
+	static void restore(File file, long length) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(length);
+			raf.seek(length);
+			raf.write(BlockCompressedStreamConstants.EMPTY_GZIP_BLOCK);
+		} finally {
+			raf.close();
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2) {
+			System.err.println("Usage: java -cp varitas.jar org.drpowell.tabix.TabixAppender <existing.gz> <newRecords>");
+			System.exit(1);
+		}
+		BufferedReader br = new BufferedReader(new FileReader(args[1]));
+		append(args[0], new LineIterator(br));
+		br.close();
+	}
+
+}
@@ -31,6 +31,7 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.util.Iterator;
 import java.util.List;
+import java.util.logging.Logger;
 
 import net.sf.samtools.util.BlockCompressedFilePointerUtil;
 import net.sf.samtools.util.BlockCompressedInputStream;
@@ -40,25 +41,86 @@ import org.drpowell.tabix.TabixIndex.TabixConfig;
 import org.drpowell.util.LineIterator;
 
 public class TabixBuilder {
-	private final TabixIndex tabix;
+	final TabixIndex tabix;
 	private int tidCurr = -1;
+	private int lastBegin = -1;
+	private boolean warnedUnsorted = false;
+	/** Added to the block address of output offsets, when appending to an existing file */
+	private long blockAddressBase = 0;
 	private BinIndex currBinningIndex = new BinIndex();
 	private LinearIndex currLinearIndex = new LinearIndex();
+	private static Logger logger = Logger.getLogger(TabixBuilder.class.getCanonicalName());
 	
 	// FIXME- arguably could just stick with '\n'...
-	private static final byte [] LINE_SEPARATOR = System.getProperty("line.separator").getBytes();
+	static final byte [] LINE_SEPARATOR = System.getProperty("line.separator").getBytes();
 	
-	private TabixBuilder(String fileName, TabixConfig config) throws IOException {
+	TabixBuilder(String fileName, TabixConfig config) throws IOException {
 		this.tabix = new TabixIndex(config, new File(fileName));
 	}
+	
+	/**
+	 * Continue adding to an existing index, starting after its last record.
+	 * 
+	 * @param existing the index to be updated (in place)
+	 * @param last the interval of the last record already indexed
+	 * @param blockAddressBase file position at which newly-written blocks will start
+	 */
+	TabixBuilder(TabixIndex existing, GenomicInterval last, long blockAddressBase) {
+		this.tabix = existing;
+		this.blockAddressBase = blockAddressBase;
+		tidCurr = last.getSequenceId();
+		lastBegin = last.getBegin();
+		currBinningIndex = new BinIndex(tabix.binningIndex.get(tidCurr));
+		LinearIndex previous = tabix.linearIndex.get(tidCurr);
+		for (int i = 0; i < previous.size(); i++) {
+			currLinearIndex.setPrimitive(i, previous.getPrimitive(i));
+		}
+	}
 
 	private void addLine(final String line, final long startOffset, final long endOffset) {
 		DelimitedString row = new DelimitedString(line, '\t');
-		GenomicInterval intv = tabix.getInterval(row);
+		addInterval(tabix.getInterval(row), startOffset, endOffset);
+	}
+	
+	/**
+	 * Whether a record at the given interval could be appended after the records seen so far
+	 * without violating the sort order that tabix requires (grouped by sequence, then by begin).
+	 * 
+	 * Sequences are expected in the order of their ids, which is the order in which they are
+	 * first seen unless they were registered with the index beforehand.
+	 */
+	boolean isInOrder(final GenomicInterval intv) {
+		if (intv.getSequenceId() == tidCurr) {
+			return intv.getBegin() >= lastBegin;
+		}
+		return intv.getSequenceId() > tidCurr;
+	}
+	
+	/**
+	 * Write a line to the compressed stream, adding it to the index if it is not a comment.
+	 * 
+	 * @param intv the interval for this line, or null for header/comment lines
+	 */
+	void writeLine(final BlockCompressedOutputStream bcos, final String line, final GenomicInterval intv) throws IOException {
+		final long startOffset = (blockAddressBase << 16) + bcos.getFilePointer();
+		bcos.write(line.getBytes());
+		bcos.write(LINE_SEPARATOR);
+		if (intv != null) {
+			addInterval(intv, startOffset, (blockAddressBase << 16) + bcos.getFilePointer());
+		}
+	}
+
+	void addInterval(final GenomicInterval intv, final long startOffset, final long endOffset) {
+		if (!warnedUnsorted && !isInOrder(intv)) {
+			warnedUnsorted = true;
+			logger.severe("Input for " + tabix.clientFileName + " is not sorted by sequence and position, " +
+					"so the index will be incorrect (SortingTabixBuilder can sort while indexing)");
+		}
 		if (intv.getSequenceId() != tidCurr && tidCurr >= 0) {
 			finishPrevChromosome(tidCurr);
 		}
 		tidCurr = intv.getSequenceId();
+		lastBegin = intv.getBegin();
 		TabixIndex.Chunk chunk = new TabixIndex.Chunk(startOffset, endOffset);
 		
 		// process binning index
@@ -108,9 +170,10 @@ public class TabixBuilder {
 		TabixBuilder builder = new TabixBuilder(compressedFileName, config);
 		BlockCompressedOutputStream bcos = new BlockCompressedOutputStream(new File(compressedFileName));
 		long startOffset, endOffset;
+		int linesToSkip = config.linesToSkip;
 		while (input.hasNext()) {
 			String line = input.next();
-			if (line.startsWith(config.commentString)) {
+			if (linesToSkip-- > 0 || line.startsWith(config.commentString)) {
 				bcos.write(line.getBytes());
 				bcos.write(LINE_SEPARATOR);
 				continue;
@@ -127,6 +190,10 @@ public class TabixBuilder {
 	}
 	
 	public static TabixIndex buildIndex(String compressedFile, TabixConfig config) throws IOException {
+		if ((config.preset&0xffff) != TabixIndex.TBX_PRESET_SAM) {
+			// much faster, since lines are not decoded to Strings
+			return ParallelTabixIndexer.buildIndex(compressedFile, config, Runtime.getRuntime().availableProcessors());
+		}
 		TabixBuilder builder = new TabixBuilder(compressedFile, config);
 		BlockCompressedInputStream bcis = new BlockCompressedInputStream(new File(compressedFile));
 		long startOffset = 0, endOffset;
@@ -149,8 +216,10 @@ public class TabixBuilder {
 		if (inf.endsWith(".gz")) {
 			index = buildIndex(inf, TabixConfig.VCF);
 		} else {
+			// uncompressed input may not be sorted yet, so sort (if needed) while compressing
 			BufferedReader br = new BufferedReader(new FileReader(inf));
-			index = buildIndex(br, inf + ".gz", TabixConfig.VCF);
+			index = SortingTabixBuilder.buildIndex(new LineIterator(br), inf + ".gz", TabixConfig.VCF,
+					SortingTabixBuilder.DEFAULT_MEMORY_BUDGET);
 			br.close();
 		}
 		index.save();
@@ -29,9 +29,11 @@ package org.drpowell.tabix;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Set;
 
 import net.sf.samtools.util.BinaryCodec;
 import net.sf.samtools.util.BlockCompressedInputStream;
@@ -112,6 +114,13 @@ public class TabixIndex {
 		return new TabixIterator(this, new GenomicInterval(beg, end, tid));
 	}
 
+	/**
+	 * Like {@link #query(int, int, int)}, but each line is only split as far as the given number of columns.
+	 */
+	public TabixIterator query(final int tid, final int beg, final int end, final int columns) {
+		return new TabixIterator(this, new GenomicInterval(beg, end, tid), columns);
+	}
+
 	public Iterator<String []> query(final String reg) {
 		return new TabixIterator(this, reg);
 	}
@@ -142,6 +151,13 @@ public class TabixIndex {
 		return tid;
 	}
 
+	/**
+	 * @return the names of the sequences in the index, in order of their ids
+	 */
+	public Set<String> getSequenceNames() {
+		return Collections.unmodifiableSet(mChr2tid.keySet());
+	}
+
 	/**
 	 * Parse a region in the format of "chr1", "chr1:100" or "chr1:100-1000"
 	 *
@@ -162,6 +178,18 @@ public class TabixIndex {
 					hyphen >= 0? Integer.parseInt(reg.substring(hyphen+1)) : 0x7fffffff);
 	}
 
+	/** The number of leading columns needed to find the interval of a line (see {@link #getInterval(List)}). */
+	public int intervalColumns() {
+		switch (config.preset&0xffff) {
+		case TBX_PRESET_SAM:
+			return Math.max(6, Math.max(config.seqCol, config.beginCol));
+		case TBX_PRESET_VCF:
+			return Math.max(8, Math.max(config.seqCol, config.beginCol));
+		default:
+			return Math.max(config.seqCol, Math.max(config.beginCol, config.endCol));
+		}
+	}
+
     public GenomicInterval getInterval(final List<String> s) {
 		int sequenceId = getIdForChromosome(s.get(config.seqCol-1));
 		// begin
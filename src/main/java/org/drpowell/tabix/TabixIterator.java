@@ -52,7 +52,8 @@ public class TabixIterator implements Iterator<String []>{
 	private boolean iseof;
 	private final TabixIndex tabix;
 	private final GenomicInterval intv;
-	private String [] next = null;
+	private DelimitedString next = null;
+	private final int fields;
 	private List<Chunk> candidateChunks;
 	private final BlockCompressedInputStream indexedStream;
 
@@ -63,7 +64,15 @@ public class TabixIterator implements Iterator<String []>{
 	}
 	
 	public TabixIterator(final TabixIndex index, final GenomicInterval interval) {
+		this(index, interval, Integer.MAX_VALUE);
+	}
+	
+	/**
+	 * @param fields how many columns of each line are needed (at least those used by the index are split)
+	 */
+	public TabixIterator(final TabixIndex index, final GenomicInterval interval, int fields) {
 		this.tabix = index; this.intv = interval;
+		this.fields = Math.max(fields, index.intervalColumns());
 		i = -1; curr_off = 0; iseof = false;
 		// n_seeks = 0;
 		
@@ -128,14 +137,22 @@ public class TabixIterator implements Iterator<String []>{
 	}
 	
 	public String [] next() {
-		String [] res = next;
+		DelimitedString res = nextRow();
+		return res == null ? null : res.toArray(new String[res.size()]);
+	}
+	
+	/**
+	 * The next line, split only as far as the number of fields given when this iterator was made.
+	 */
+	public DelimitedString nextRow() {
+		DelimitedString res = next;
 		if (next != null) {
 			next = advance();
 		}
 		return res;
 	}
 	
-	private String [] advance() {
+	private DelimitedString advance() {
 		if (iseof) return null;
 		try {
 		for (;;) {
@@ -158,7 +175,7 @@ public class TabixIterator implements Iterator<String []>{
 			if ((s = indexedStream.readLine()) != null) {
 				curr_off = indexedStream.getFilePointer();
 				if (s.length() == 0 || s.startsWith(tabix.config.commentString)) continue;
-				DelimitedString row = new DelimitedString(s, '\t');
+				DelimitedString row = new DelimitedString(s, '\t', fields);
 				GenomicInterval candidate;
 				try {
 					candidate = tabix.getInterval(row);
@@ -170,7 +187,7 @@ public class TabixIterator implements Iterator<String []>{
 				if (candidate.getSequenceId() != intv.getSequenceId() || candidate.getBegin() >= intv.getEnd()) break; // no need to proceed
 				else if (candidate.getEnd() > intv.getBegin() && candidate.getBegin() < candidate.getEnd()) {
 					// overlap; return
-					return row.toArray(new String[row.size()]);
+					return row;
 				}
 			} else break; // end of file
 		}
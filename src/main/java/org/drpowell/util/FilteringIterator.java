@@ -11,6 +11,11 @@ public abstract class FilteringIterator<E> extends AbstractPeekableIterator<E> {
 		delegate = client;
 	}
 
+	/** The iterator whose elements are filtered */
+	public Iterator<E> getDelegate() {
+		return delegate;
+	}
+
 	protected E computeNext() {
 		while (delegate.hasNext()) {
 			E nextValue = delegate.next();
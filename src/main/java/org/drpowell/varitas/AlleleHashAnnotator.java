@@ -0,0 +1,111 @@
+package org.drpowell.varitas;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import org.drpowell.vcf.VCFMeta;
+import org.drpowell.vcf.VCFVariant;
+
+/**
+ * Annotates from an {@link AlleleHashStore}, with the same field mapping as {@link TabixVCFAnnotator}.
+ *
+ * @author bpow
+ */
+public class AlleleHashAnnotator extends Annotator {
+	private final AlleleHashStore store;
+	private final Map<String, String> fieldMap = new LinkedHashMap<String, String>();
+	private final int [] keyIndices;
+	private boolean copyID = false;
+	private static Logger logger = Logger.getLogger(AlleleHashAnnotator.class.getCanonicalName());
+
+	public AlleleHashAnnotator(AlleleHashStore store, String fieldString) {
+		this.store = store;
+		for (String field : fieldString.split(",")) {
+			int eq = field.indexOf("=");
+			String key = eq < 0 ? field : field.substring(0, eq);
+			if (!store.getKeys().contains(key)) {
+				logger.warning(store.fileName + " does not have values for INFO key " + key);
+				continue;
+			}
+			fieldMap.put(key, eq < 0 ? field : field.substring(eq+1));
+		}
+		keyIndices = new int[fieldMap.size()];
+		int i = 0;
+		for (String key : fieldMap.keySet()) {
+			keyIndices[i++] = store.getKeys().indexOf(key);
+		}
+	}
+
+	@Override
+	public VCFVariant annotate(VCFVariant variant) {
+		String [] values = store.get(prefix + variant.getSequence(), variant.getStart(), variant.getRef(), variant.getAlt());
+		if (values == null) {
+			return variant;
+		}
+		int i = 0;
+		for (String newKey : fieldMap.values()) {
+			String value = values[keyIndices[i++]];
+			if (value != null) {
+				variant.putInfo(newKey, value);
+			}
+		}
+		String id = values[values.length - 1];
+		if (copyID && id != null) {
+			variant.mergeID(id);
+		}
+		return variant;
+	}
+
+	public Annotator setCopyID(boolean copyID) {
+		this.copyID = copyID;
+		return this;
+	}
+
+	@Override
+	public Set<String> infoKeysRead() {
+		return Collections.emptySet();
+	}
+
+	@Override
+	public Set<String> infoKeysWritten() {
+		Set<String> keys = new LinkedHashSet<String>(fieldMap.values());
+		if (copyID) keys.add(ID_KEY);
+		return keys;
+	}
+
+	@Override
+	public String cacheIdentity() {
+		return "AlleleHashAnnotator " + new File(store.fileName).getAbsolutePath() + " " + fieldMap +
+				" copyID=" + copyID + " prefix=" + prefix;
+	}
+
+	@Override
+	public String cacheVersion() {
+		return fileVersion(store.fileName);
+	}
+
+	@Override
+	public Iterable<String> infoLines() {
+		List<String> infos = new ArrayList<String>();
+		for (Entry<String, String> e : fieldMap.entrySet()) {
+			String info = store.getInfoLine(e.getKey());
+			if (info != null) {
+				infos.add(new VCFMeta(info).cloneExcept("ID", e.getValue()).toString());
+			}
+		}
+		return infos;
+	}
+
+	@Override
+	public String toString() {
+		return "AlleleHashAnnotator: " + store.fileName;
+	}
+}
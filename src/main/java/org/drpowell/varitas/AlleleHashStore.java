@@ -0,0 +1,353 @@
+package org.drpowell.varitas;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import org.drpowell.util.FileUtils;
+import org.drpowell.vcf.VCFMeta;
+import org.drpowell.vcf.VCFVariant;
+
+/**
+ * A memory-mapped hash table of the INFO values (and IDs) of a sites-only VCF file, for exact
+ * (chrom, pos, ref, alt) lookups.
+ *
+ * The file starts with a short header (the INFO keys stored and their header lines), followed by an
+ * open-addressing (linear probing) table of 16-byte slots, each holding a 64-bit fingerprint of the
+ * allele and the file offset of its values, followed by the values themselves. A lookup usually
+ * touches one slot and one value record, and the operating system's page cache does the rest.
+ *
+ * Alleles are matched by fingerprint alone, so there is a very small (about n/2^64 per lookup)
+ * chance of a false match. As for {@link TabixVCFAnnotator}, the ALT column must match exactly, and
+ * the first record for an allele is the one that is used.
+ *
+ * @author bpow
+ */
+public class AlleleHashStore {
+	private static final byte [] MAGIC = {'V', 'A', 'H', 1};
+	private static final int SLOT_BYTES = 16;
+	private static final int SEGMENT_SHIFT = 30;
+	private static final long SEGMENT_MASK = (1L << SEGMENT_SHIFT) - 1;
+	private static final double MAX_LOAD = 0.7;
+	private static Logger logger = Logger.getLogger(AlleleHashStore.class.getCanonicalName());
+
+	public final String fileName;
+	private final List<String> keys;
+	private final Map<String, String> infoLines;
+	private final long slotsOffset;
+	private final long slotMask;
+	private final MappedByteBuffer [] segments;
+
+	private AlleleHashStore(String fileName, List<String> keys, Map<String, String> infoLines,
+			long slotsOffset, long slotCount, MappedByteBuffer [] segments) {
+		this.fileName = fileName;
+		this.keys = keys;
+		this.infoLines = infoLines;
+		this.slotsOffset = slotsOffset;
+		this.slotMask = slotCount - 1;
+		this.segments = segments;
+	}
+
+	public static AlleleHashStore open(String fileName) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(fileName, "r");
+		try {
+			byte [] magic = new byte[MAGIC.length];
+			raf.readFully(magic);
+			if (!Arrays.equals(magic, MAGIC)) {
+				throw new IOException(fileName + " is not an allele hash file");
+			}
+			byte [] header = new byte[raf.readInt()];
+			raf.readFully(header);
+			DataInputStream dis = new DataInputStream(new ByteArrayInputStream(header));
+			int nKeys = dis.readInt();
+			List<String> keys = new ArrayList<String>(nKeys);
+			Map<String, String> infoLines = new HashMap<String, String>();
+			for (int i = 0; i < nKeys; i++) {
+				String key = dis.readUTF();
+				keys.add(key);
+				String info = dis.readUTF();
+				if (info.length() > 0) infoLines.put(key, info);
+			}
+			long slotCount = dis.readLong();
+			MappedByteBuffer [] segments = mapSegments(raf.getChannel(), FileChannel.MapMode.READ_ONLY, raf.length());
+			return new AlleleHashStore(fileName, Collections.unmodifiableList(keys), infoLines,
+					slotsOffset(header.length), slotCount, segments);
+		} finally {
+			raf.close(); // the mappings remain valid
+		}
+	}
+
+	private static long slotsOffset(int headerLength) {
+		long end = MAGIC.length + 4 + headerLength;
+		return (end + SLOT_BYTES - 1) / SLOT_BYTES * SLOT_BYTES;
+	}
+
+	private static MappedByteBuffer [] mapSegments(FileChannel channel, FileChannel.MapMode mode, long length) throws IOException {
+		MappedByteBuffer [] segments = new MappedByteBuffer[(int) ((length + SEGMENT_MASK) >>> SEGMENT_SHIFT)];
+		for (int i = 0; i < segments.length; i++) {
+			long start = (long) i << SEGMENT_SHIFT;
+			segments[i] = channel.map(mode, start, Math.min(length - start, 1L << SEGMENT_SHIFT));
+		}
+		return segments;
+	}
+
+	/** The INFO keys in the store */
+	public List<String> getKeys() {
+		return keys;
+	}
+
+	/** The header line describing an INFO key in the original VCF file, or null. */
+	public String getInfoLine(String key) {
+		return infoLines.get(key);
+	}
+
+	static long fingerprint(String chrom, int pos, String ref, String alt) {
+		// FNV-1a, then a final mix so that the low bits (used for the slot) depend on every byte
+		long h = 0xcbf29ce484222325L;
+		h = fnv(h, chrom);
+		h = (h ^ 0xff) * 0x100000001b3L;
+		for (int shift = 0; shift < 32; shift += 8) {
+			h = (h ^ ((pos >>> shift) & 0xff)) * 0x100000001b3L;
+		}
+		h = fnv(h, ref);
+		h = (h ^ 0xff) * 0x100000001b3L;
+		h = fnv(h, alt);
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h == 0 ? 1 : h; // 0 marks an empty slot
+	}
+
+	private static long fnv(long h, String s) {
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			h = (h ^ (c & 0xff)) * 0x100000001b3L;
+			if (c > 0xff) h = (h ^ (c >>> 8)) * 0x100000001b3L;
+		}
+		return h;
+	}
+
+	private byte getByte(long position) {
+		return segments[(int) (position >>> SEGMENT_SHIFT)].get((int) (position & SEGMENT_MASK));
+	}
+
+	private long getLong(long position) {
+		return segments[(int) (position >>> SEGMENT_SHIFT)].getLong((int) (position & SEGMENT_MASK));
+	}
+
+	/**
+	 * Look up the values for an allele.
+	 *
+	 * @return null if the allele is not present, otherwise the values in the order of {@link #getKeys()}
+	 *  (null if missing, "" for a flag) followed by the ID (null if missing)
+	 */
+	public String [] get(String chrom, int pos, String ref, String alt) {
+		long fp = fingerprint(chrom, pos, ref, alt);
+		for (long slot = fp & slotMask; ; slot = (slot + 1) & slotMask) {
+			long slotPosition = slotsOffset + slot * SLOT_BYTES;
+			long slotFingerprint = getLong(slotPosition);
+			if (slotFingerprint == 0) return null;
+			if (slotFingerprint == fp) return readValues(getLong(slotPosition + 8));
+		}
+	}
+
+	private String [] readValues(long position) {
+		String [] values = new String[keys.size() + 1];
+		long [] pos = {position};
+		int n = readVarInt(pos);
+		for (int i = 0; i < n; i++) {
+			int keyIndex = readVarInt(pos);
+			int length = readVarInt(pos);
+			if (length == 0) {
+				values[keyIndex] = "";
+			} else {
+				byte [] bytes = new byte[length - 1];
+				for (int j = 0; j < bytes.length; j++) {
+					bytes[j] = getByte(pos[0]++);
+				}
+				values[keyIndex] = decodeUTF8(bytes);
+			}
+		}
+		return values;
+	}
+
+	private int readVarInt(long [] pos) {
+		int value = 0;
+		for (int shift = 0; ; shift += 7) {
+			byte b = getByte(pos[0]++);
+			value |= (b & 0x7f) << shift;
+			if (b >= 0) return value;
+		}
+	}
+
+	private static void writeVarInt(ByteArrayOutputStream out, int value) {
+		while ((value & ~0x7f) != 0) {
+			out.write((value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		out.write(value);
+	}
+
+	private static String decodeUTF8(byte [] bytes) {
+		try {
+			return new String(bytes, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Build a store from a VCF file (which may be gzip- or bgzip-compressed).
+	 *
+	 * @param infoKeys the INFO keys to store (their values are stored as decoded by {@link VCFVariant#getInfoValue(String)})
+	 * @param requirePass only store records which PASSed all filters
+	 */
+	public static void build(String vcfFileName, List<String> infoKeys, boolean requirePass, String outputFileName) throws IOException {
+		// first pass: count records (to size the table) and find header lines
+		long records = 0;
+		Map<String, String> infoLines = new HashMap<String, String>();
+		BufferedReader reader = FileUtils.filenameToBufferedReader(vcfFileName);
+		String line;
+		while ((line = reader.readLine()) != null) {
+			if (line.startsWith("##INFO=")) {
+				String id = new VCFMeta(line).getValue("ID");
+				if (infoKeys.contains(id)) infoLines.put(id, line);
+			} else if (!line.startsWith("#")) {
+				records++;
+			}
+		}
+		reader.close();
+		long slotCount = 16;
+		while (slotCount * MAX_LOAD < records) {
+			slotCount <<= 1;
+		}
+
+		ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+		DataOutputStream header = new DataOutputStream(headerBytes);
+		header.writeInt(infoKeys.size());
+		for (String key : infoKeys) {
+			header.writeUTF(key);
+			header.writeUTF(infoLines.containsKey(key) ? infoLines.get(key) : "");
+		}
+		header.writeLong(slotCount);
+		header.close();
+		long slotsOffset = slotsOffset(headerBytes.size());
+		long valuesOffset = slotsOffset + slotCount * SLOT_BYTES;
+
+		File output = new File(outputFileName);
+		output.delete();
+		RandomAccessFile raf = new RandomAccessFile(output, "rw");
+		try {
+			raf.write(MAGIC);
+			raf.writeInt(headerBytes.size());
+			raf.write(headerBytes.toByteArray());
+			raf.setLength(valuesOffset);
+			FileChannel channel = raf.getChannel();
+			MappedByteBuffer [] slots = mapSegments(channel, FileChannel.MapMode.READ_WRITE, valuesOffset);
+
+			// second pass: fill the table, writing the values after it
+			long valuesEnd = valuesOffset, stored = 0, duplicates = 0;
+			ByteArrayOutputStream values = new ByteArrayOutputStream(1 << 20);
+			ByteArrayOutputStream record = new ByteArrayOutputStream(256);
+			reader = FileUtils.filenameToBufferedReader(vcfFileName);
+			while ((line = reader.readLine()) != null) {
+				if (line.startsWith("#")) continue;
+				VCFVariant v = new VCFVariant(line);
+				if (requirePass && !"PASS".equals(v.getFilter())) continue;
+				long fp = fingerprint(v.getSequence(), v.getStart(), v.getRef(), v.getAlt());
+				long slot = fp & (slotCount - 1);
+				long slotPosition;
+				boolean duplicate = false;
+				while (true) {
+					slotPosition = slotsOffset + slot * SLOT_BYTES;
+					long existing = slots[(int) (slotPosition >>> SEGMENT_SHIFT)].getLong((int) (slotPosition & SEGMENT_MASK));
+					if (existing == 0) break;
+					if (existing == fp) {
+						duplicate = true;
+						break;
+					}
+					slot = (slot + 1) & (slotCount - 1);
+				}
+				if (duplicate) {
+					duplicates++;
+					continue;
+				}
+
+				record.reset();
+				List<byte []> encoded = new ArrayList<byte []>();
+				List<Integer> indices = new ArrayList<Integer>();
+				for (int i = 0; i <= infoKeys.size(); i++) {
+					String value = i < infoKeys.size() ? v.getInfoValue(infoKeys.get(i)) : v.getID();
+					if (value == null || (i == infoKeys.size() && ".".equals(value))) continue;
+					indices.add(i);
+					encoded.add(value.length() == 0 && i < infoKeys.size() ? null : value.getBytes("UTF-8"));
+				}
+				writeVarInt(record, indices.size());
+				for (int i = 0; i < indices.size(); i++) {
+					writeVarInt(record, indices.get(i));
+					byte [] bytes = encoded.get(i);
+					if (bytes == null) {
+						writeVarInt(record, 0); // flag
+					} else {
+						writeVarInt(record, bytes.length + 1);
+						record.write(bytes);
+					}
+				}
+				MappedByteBuffer segment = slots[(int) (slotPosition >>> SEGMENT_SHIFT)];
+				segment.putLong((int) (slotPosition & SEGMENT_MASK), fp);
+				segment.putLong((int) ((slotPosition + 8) & SEGMENT_MASK), valuesEnd + values.size());
+				record.writeTo(values);
+				stored++;
+				if (values.size() >= (1 << 20)) {
+					valuesEnd += writeAt(channel, values, valuesEnd);
+				}
+			}
+			reader.close();
+			writeAt(channel, values, valuesEnd);
+			for (MappedByteBuffer segment : slots) {
+				segment.force();
+			}
+			logger.info("Stored " + stored + " alleles from " + vcfFileName + " in " + outputFileName +
+					(duplicates > 0 ? " (skipped " + duplicates + " duplicates)" : ""));
+		} finally {
+			raf.close();
+		}
+	}
+
+	private static int writeAt(FileChannel channel, ByteArrayOutputStream bytes, long position) throws IOException {
+		ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+		int length = buffer.remaining();
+		while (buffer.hasRemaining()) {
+			position += channel.write(buffer, position);
+		}
+		bytes.reset();
+		return length;
+	}
+
+	public static void main(String... args) throws IOException {
+		if (args.length < 3) {
+			System.err.println("Usage: java -jar varitas.jar build-hash <source.vcf[.gz]> <output.vah> <INFO keys, comma-separated> [requirePass]");
+			System.exit(-1);
+		}
+		build(args[0], Arrays.asList(args[2].split(",")), args.length > 3 && "requirePass".equals(args[3]), args[1]);
+	}
+
+}
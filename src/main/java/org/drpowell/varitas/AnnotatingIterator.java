@@ -1,39 +1,73 @@
 package org.drpowell.varitas;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
 import org.drpowell.vcf.VCFHeaders;
 import org.drpowell.vcf.VCFIterator;
 import org.drpowell.vcf.VCFMeta;
 import org.drpowell.vcf.VCFVariant;
 
 public class AnnotatingIterator implements VCFIterator {
+	public static final int DEFAULT_BATCH_SIZE = 256;
 	private final Annotator annotator;
 	private final VCFIterator client;
+	private final int batchSize;
+	private Iterator<VCFVariant> batch = Collections.<VCFVariant>emptyList().iterator();
+	private VCFHeaders headers = null;
 	
 	public AnnotatingIterator(VCFIterator client, Annotator annotator) {
+		this(client, annotator, DEFAULT_BATCH_SIZE);
+	}
+
+	/**
+	 * @param batchSize how many variants to take from the client at a time, to be annotated with {@link Annotator#annotateBatch(List)}
+	 */
+	public AnnotatingIterator(VCFIterator client, Annotator annotator, int batchSize) {
 		this.annotator = annotator;
 		this.client = client;
+		this.batchSize = batchSize;
 	}
 
 	@Override
 	public boolean hasNext() {
-		return client.hasNext();
+		if (batch.hasNext()) return true;
+		if (!client.hasNext()) return false;
+		List<VCFVariant> variants = new ArrayList<VCFVariant>(batchSize);
+		while (variants.size() < batchSize && client.hasNext()) {
+			variants.add(client.next());
+		}
+		batch = annotator.annotateBatch(variants).iterator();
+		return true;
 	}
 
 	@Override
 	public VCFVariant next() {
-		return annotator.annotate(client.next());
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		return batch.next();
 	}
 
 	@Override
 	public void remove() {
-		client.remove();
+		throw new UnsupportedOperationException();
 	}
 
+	/**
+	 * The headers are built once, since the writers downstream may ask for them for every variant, and the
+	 * same object is returned each time, so it should be copied rather than added to.
+	 */
 	@Override
-	public VCFHeaders getHeaders() {
-		VCFHeaders headers = new VCFHeaders(client.getHeaders());
-		for (String info : annotator.infoLines()) {
-			headers.add(new VCFMeta(info));
+	public synchronized VCFHeaders getHeaders() {
+		if (headers == null) {
+			headers = new VCFHeaders(client.getHeaders());
+			for (String info : annotator.infoLines()) {
+				headers.add(new VCFMeta(info));
+			}
 		}
 		return headers;
 	}
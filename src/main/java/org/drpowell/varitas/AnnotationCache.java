@@ -0,0 +1,379 @@
+package org.drpowell.varitas;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * A file of the annotations made by one annotator (with one configuration), which persists between runs.
+ *
+ * The annotations are appended to a log file (<code>.vac</code>), one record per site. When the cache is
+ * closed, an index (<code>.vac.idx</code>) is written with the 64-bit fingerprint and log offset of every
+ * record, sorted by fingerprint, which is memory-mapped and searched when the cache is next opened.
+ * Records appended after the index was written (e.g. by a run which did not finish) are found by
+ * reading the end of the log.
+ *
+ * The log starts with the identity of the annotator's configuration (a checksum of which names the
+ * file, with a number added if another configuration has the same checksum) and the version of its
+ * reference, and is started again if the reference has changed. Log files for configurations which
+ * have not been used for {@link #MAX_UNUSED_DAYS} days are removed by a background thread. Only one
+ * process at a time adds to a log (others just read it).
+ *
+ * @author bpow
+ */
+public class AnnotationCache {
+	private static final String MAGIC = "VACL2", INDEX_MAGIC = "VACI1";
+	public static final String SUFFIX = ".vac", INDEX_SUFFIX = ".vac.idx";
+	public static final int MAX_UNUSED_DAYS = 30;
+	private static Logger logger = Logger.getLogger(AnnotationCache.class.getCanonicalName());
+	private static final Map<File, AnnotationCache> openCaches = new HashMap<File, AnnotationCache>();
+	private static boolean cleanupStarted = false;
+
+	private final File logFile, indexFile;
+	private final String identity;
+	private final RandomAccessFile log;
+	private final FileChannel channel;
+	private final FileLock lock;
+	private long end;
+	/** fingerprints and offsets from the index file: hash0, offset0, hash1, offset1... */
+	private LongBuffer indexed = LongBuffer.allocate(0);
+	private final Map<String, Long> appended = new HashMap<String, Long>();
+	private long hits = 0, misses = 0;
+
+	/**
+	 * Open (or start) the cache for an annotator configuration. The same configuration in the same
+	 * directory always gives the same cache.
+	 */
+	public static synchronized AnnotationCache open(File directory, String identity, String version) throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Unable to make cache directory " + directory);
+		}
+		CRC32 crc = new CRC32();
+		crc.update(identity.getBytes("UTF-8"));
+		String base = String.format("%08x%04x", crc.getValue(), identity.length() & 0xffff);
+		AnnotationCache cache = null;
+		// the name is not unique to the identity, so another configuration may already have it
+		for (int i = 0; cache == null; i++) {
+			String name = i == 0 ? base : base + "-" + i;
+			File logFile = new File(directory, name + SUFFIX);
+			AnnotationCache open = openCaches.get(logFile);
+			if (open != null) {
+				if (open.identity.equals(identity)) cache = open;
+			} else if (!otherIdentity(logFile, identity)) {
+				cache = new AnnotationCache(logFile, new File(directory, name + INDEX_SUFFIX), identity, version);
+				openCaches.put(logFile, cache);
+			}
+		}
+		if (!cleanupStarted) {
+			cleanupStarted = true;
+			startCleanup(directory);
+		}
+		return cache;
+	}
+
+	/** @return true if a log file holds the annotations of a different configuration */
+	private static boolean otherIdentity(File logFile, String identity) {
+		if (!logFile.isFile()) return false;
+		try {
+			RandomAccessFile raf = new RandomAccessFile(logFile, "r");
+			try {
+				return MAGIC.equals(raf.readUTF()) && !identity.equals(raf.readUTF());
+			} finally {
+				raf.close();
+			}
+		} catch (IOException ioe) {
+			return false; // it will be started again
+		}
+	}
+
+	private AnnotationCache(File logFile, File indexFile, String identity, String version) throws IOException {
+		this.logFile = logFile;
+		this.indexFile = indexFile;
+		this.identity = identity;
+		log = new RandomAccessFile(logFile, "rw");
+		channel = log.getChannel();
+		lock = channel.tryLock();
+		if (lock == null) {
+			logger.info(logFile + " is in use by another process, so annotations will not be added to it");
+		}
+		boolean current = false;
+		if (log.length() > 0) {
+			try {
+				current = MAGIC.equals(log.readUTF()) && identity.equals(log.readUTF()) && version.equals(log.readUTF());
+			} catch (IOException ioe) {
+				logger.warning("Unable to read " + logFile + ", it will be started again: " + ioe);
+			}
+		}
+		if (!current) {
+			if (lock == null) throw new IOException(logFile + " is out of date, but is in use by another process");
+			if (log.length() > 0) logger.info("The reference (or the format) of " + logFile + " has changed, starting it again");
+			indexFile.delete();
+			log.setLength(0);
+			log.writeUTF(MAGIC);
+			log.writeUTF(identity);
+			log.writeUTF(version);
+		}
+		long dataStart = log.getFilePointer();
+		end = log.length();
+		long indexedEnd = readIndex(dataStart);
+		scanLog(indexedEnd);
+		logFile.setLastModified(System.currentTimeMillis());
+	}
+
+	/** @return the length of the log covered by the index */
+	private long readIndex(long dataStart) {
+		if (!indexFile.exists()) return dataStart;
+		try {
+			RandomAccessFile raf = new RandomAccessFile(indexFile, "r");
+			try {
+				if (!INDEX_MAGIC.equals(raf.readUTF())) return dataStart;
+				long covered = raf.readLong();
+				int count = raf.readInt();
+				if (covered > end) return dataStart;
+				long start = raf.getFilePointer();
+				MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, start, count * 16L);
+				indexed = buffer.asLongBuffer();
+				return covered;
+			} finally {
+				raf.close();
+			}
+		} catch (IOException ioe) {
+			logger.warning("Unable to read " + indexFile + ", will read " + logFile + " instead: " + ioe);
+			indexed = LongBuffer.allocate(0);
+			return dataStart;
+		}
+	}
+
+	private void scanLog(long from) throws IOException {
+		long position = from;
+		while (position + 4 <= end) {
+			byte [] record = read(position);
+			if (record == null) break;
+			appended.put(readString(new DataInputStream(new ByteArrayInputStream(record))), position);
+			position += 4 + record.length;
+		}
+		if (position < end) {
+			// an incomplete record at the end (from a run which was stopped while writing)
+			if (lock != null) log.setLength(position);
+			end = position;
+		}
+	}
+
+	/** @return the record at a position, or null if it is incomplete */
+	private byte [] read(long position) throws IOException {
+		ByteBuffer length = ByteBuffer.allocate(4);
+		if (channel.read(length, position) < 4) return null;
+		int n = length.getInt(0);
+		if (n < 0 || position + 4 + n > end) return null;
+		ByteBuffer record = ByteBuffer.allocate(n);
+		while (record.hasRemaining()) {
+			if (channel.read(record, position + 4 + record.position()) < 0) return null;
+		}
+		return record.array();
+	}
+
+	static String key(String chrom, int pos, String ref, String alt) {
+		return chrom + "\t" + pos + "\t" + ref + "\t" + alt;
+	}
+
+	/**
+	 * @return the annotations saved for a site, or null if there are none
+	 */
+	public synchronized String get(String chrom, int pos, String ref, String alt) throws IOException {
+		String key = key(chrom, pos, ref, alt);
+		Long position = appended.get(key);
+		String value = position == null ? findIndexed(key, AlleleHashStore.fingerprint(chrom, pos, ref, alt)) : value(position, key);
+		if (value == null) {
+			misses++;
+		} else {
+			hits++;
+		}
+		return value;
+	}
+
+	private String findIndexed(String key, long fingerprint) throws IOException {
+		int lo = 0, hi = indexed.limit() / 2 - 1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			long h = indexed.get(mid * 2);
+			if (h < fingerprint) {
+				lo = mid + 1;
+			} else if (h > fingerprint) {
+				hi = mid - 1;
+			} else {
+				// check every record with this fingerprint
+				int first = mid;
+				while (first > 0 && indexed.get((first - 1) * 2) == fingerprint) first--;
+				for (int i = first; i < indexed.limit() / 2 && indexed.get(i * 2) == fingerprint; i++) {
+					String value = value(indexed.get(i * 2 + 1), key);
+					if (value != null) return value;
+				}
+				return null;
+			}
+		}
+		return null;
+	}
+
+	private String value(long position, String key) throws IOException {
+		byte [] record = read(position);
+		if (record == null) return null;
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+		return key.equals(readString(in)) ? readString(in) : null;
+	}
+
+	/** Strings in records are written as a length and UTF-8 (writeUTF is limited to 64k, which annotations can exceed) */
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		byte [] bytes = s.getBytes("UTF-8");
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		byte [] bytes = new byte[in.readInt()];
+		in.readFully(bytes);
+		return new String(bytes, "UTF-8");
+	}
+
+	/** Save the annotations for a site (if this process is the one adding to the cache) */
+	public synchronized void put(String chrom, int pos, String ref, String alt, String value) throws IOException {
+		if (lock == null) return;
+		String key = key(chrom, pos, ref, alt);
+		if (appended.containsKey(key)) return;
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(key.length() + value.length() + 8);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(0);
+		writeString(out, key);
+		writeString(out, value);
+		ByteBuffer record = ByteBuffer.wrap(bytes.toByteArray());
+		record.putInt(0, record.limit() - 4);
+		long position = end;
+		while (record.hasRemaining()) {
+			end += channel.write(record, end);
+		}
+		appended.put(key, position);
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	public synchronized String getStatistics() {
+		long total = hits + misses;
+		return String.format("%s: %d hits, %d misses (%.1f%%), %d sites", logFile, hits, misses,
+				total == 0 ? 0.0 : 100.0 * hits / total, indexed.limit() / 2 + appended.size());
+	}
+
+	/**
+	 * Write the index (if anything was added) and close the log.
+	 */
+	public synchronized void close() throws IOException {
+		synchronized (AnnotationCache.class) {
+			openCaches.remove(logFile);
+		}
+		if (lock != null && !appended.isEmpty()) {
+			writeIndex();
+		}
+		if (lock != null) lock.release();
+		log.close();
+	}
+
+	private void writeIndex() throws IOException {
+		int n = indexed.limit() / 2 + appended.size();
+		long [] hashes = new long[n];
+		long [] offsets = new long[n];
+		int i = 0;
+		for (; i < indexed.limit() / 2; i++) {
+			hashes[i] = indexed.get(i * 2);
+			offsets[i] = indexed.get(i * 2 + 1);
+		}
+		for (Map.Entry<String, Long> e : appended.entrySet()) {
+			String [] site = e.getKey().split("\t", -1);
+			hashes[i] = AlleleHashStore.fingerprint(site[0], Integer.parseInt(site[1]), site[2], site[3]);
+			offsets[i++] = e.getValue();
+		}
+		// sort by fingerprint, keeping the offsets with them
+		Integer [] order = new Integer[n];
+		for (i = 0; i < n; i++) order[i] = i;
+		final long [] h = hashes;
+		Arrays.sort(order, new java.util.Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				return h[a] < h[b] ? -1 : (h[a] == h[b] ? 0 : 1);
+			}
+		});
+		File tmp = new File(indexFile.getPath() + ".tmp");
+		RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+		try {
+			raf.setLength(0);
+			raf.writeUTF(INDEX_MAGIC);
+			raf.writeLong(end);
+			raf.writeInt(n);
+			ByteBuffer buffer = ByteBuffer.allocate(n * 16);
+			for (i = 0; i < n; i++) {
+				buffer.putLong(hashes[order[i]]).putLong(offsets[order[i]]);
+			}
+			buffer.flip();
+			FileChannel out = raf.getChannel();
+			while (buffer.hasRemaining()) out.write(buffer);
+		} finally {
+			raf.close();
+		}
+		indexed = LongBuffer.allocate(0); // let go of the old mapping before replacing the file
+		indexFile.delete();
+		if (!tmp.renameTo(indexFile)) {
+			logger.warning("Unable to write " + indexFile);
+		}
+	}
+
+	/**
+	 * Remove (in the background) the caches in a directory which have not been used for {@link #MAX_UNUSED_DAYS}
+	 * days, which includes those for configurations (or references) which have changed.
+	 */
+	private static void startCleanup(final File directory) {
+		Thread cleanup = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				long cutoff = System.currentTimeMillis() - MAX_UNUSED_DAYS * 24L * 60 * 60 * 1000;
+				File [] logs = directory.listFiles(new FileFilter() {
+					@Override
+					public boolean accept(File file) {
+						return file.getName().endsWith(SUFFIX);
+					}
+				});
+				if (logs == null) return;
+				for (File logFile : logs) {
+					synchronized (AnnotationCache.class) {
+						if (openCaches.containsKey(logFile) || logFile.lastModified() >= cutoff) continue;
+					}
+					String name = logFile.getName();
+					File index = new File(directory, name.substring(0, name.length() - SUFFIX.length()) + INDEX_SUFFIX);
+					if (logFile.delete()) {
+						index.delete();
+						logger.info("Removed unused annotation cache " + logFile);
+					}
+				}
+			}
+		}, "annotation cache cleanup");
+		cleanup.setDaemon(true);
+		cleanup.start();
+	}
+}
@@ -0,0 +1,318 @@
+package org.drpowell.varitas;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import org.drpowell.tabix.TabixBuilder;
+import org.drpowell.tabix.TabixIndex.TabixConfig;
+import org.drpowell.tabix.TabixReader;
+import org.drpowell.util.AbstractPeekableIterator;
+import org.drpowell.vcf.VCFMeta;
+import org.drpowell.vcf.VCFVariant;
+
+/**
+ * Compiles the reference sources of an annotation configuration into a single database.
+ *
+ * The sources used by <code>vcfAnnotator</code> and <code>tsvAnnotator</code> (when both
+ * <code>checkRef</code> and <code>checkAlt</code> are used) are read once, in order, and merge-joined on
+ * (chrom, pos, ref, alt). The annotations are applied by the configured annotators themselves, so the
+ * compiled database (a sites-only VCF file, compressed and indexed) holds exactly the INFO keys and IDs
+ * that those annotators would have added. It can then be used with a single <code>compiledDb</code>
+ * annotator instead of one annotator per source.
+ *
+ * Each source is recorded in the header with a checksum (of its index and file length), so that the
+ * database is only rebuilt when a source or the configuration of its annotator has changed.
+ *
+ * @author bpow
+ */
+public class AnnotationDatabaseCompiler {
+	static final String SOURCE_HEADER = "##varitasCompiledSource=";
+	private static Logger logger = Logger.getLogger(AnnotationDatabaseCompiler.class.getCanonicalName());
+
+	/** One reference being merge-joined, positioned at its current row. */
+	private static class Source {
+		final Annotator annotator;
+		final TabixReader reader;
+		final boolean vcf;
+		final int refColumn, altColumn;
+		private Iterator<String []> rows;
+		String [] head;
+		int headPosition;
+
+		Source(TabixVCFAnnotator annotator) {
+			this.annotator = annotator;
+			reader = annotator.getSource();
+			vcf = true;
+			refColumn = 3;
+			altColumn = 4;
+		}
+
+		Source(TabixTSVAnnotator annotator) {
+			this.annotator = annotator;
+			reader = annotator.getSource();
+			vcf = false;
+			refColumn = annotator.refColumn;
+			altColumn = annotator.altColumn;
+		}
+
+		void startSequence(String sequence) {
+			String name = annotator.prefix + sequence;
+			if (reader.getIndex().getSequenceNames().contains(name)) {
+				rows = reader.getIndex().query(reader.getIdForChromosome(name), 0, Integer.MAX_VALUE);
+			} else {
+				rows = null;
+			}
+			advance();
+		}
+
+		void advance() {
+			head = rows == null ? null : rows.next();
+			if (head != null) {
+				headPosition = reader.getIndex().getInterval(Arrays.asList(head)).getBegin() + 1;
+			}
+		}
+
+		String alleles(String [] row) {
+			return row[refColumn] + "\t" + row[altColumn];
+		}
+
+		boolean annotateFromRow(String [] row, VCFVariant site) {
+			if (vcf) {
+				return ((TabixVCFAnnotator) annotator).annotateFromRow(row, site);
+			}
+			return ((TabixTSVAnnotator) annotator).annotateFromRow(row, site);
+		}
+
+		String header() throws IOException {
+			StringBuilder sb = new StringBuilder(SOURCE_HEADER);
+			sb.append(checksum(reader.filename)).append(' ');
+			sb.append(vcf ? "vcf" : "tsv").append(':');
+			Collection<String> fields = vcf ? ((TabixVCFAnnotator) annotator).getSourceFields() :
+				((TabixTSVAnnotator) annotator).getSourceFields();
+			sb.append(join(fields)).append(':').append(join(annotator.infoKeysWritten()));
+			if (!annotator.prefix.isEmpty()) sb.append(":addChr");
+			if (vcf && ((TabixVCFAnnotator) annotator).isRequirePass()) sb.append(":requirePass");
+			sb.append(' ').append(reader.filename);
+			return sb.toString();
+		}
+	}
+
+	/**
+	 * Checksum of a tabix-indexed file, from the contents of its index and the length of the file
+	 * (which is much faster than reading the whole file, and should change whenever the file does).
+	 */
+	static String checksum(String fileName) throws IOException {
+		CRC32 crc = new CRC32();
+		InputStream is = new FileInputStream(fileName + ".tbi");
+		try {
+			byte [] buffer = new byte[65536];
+			int n;
+			while ((n = is.read(buffer)) > 0) {
+				crc.update(buffer, 0, n);
+			}
+		} finally {
+			is.close();
+		}
+		return String.format("%08x-%d", crc.getValue(), new File(fileName).length());
+	}
+
+	private static List<Source> compilableSources(List<Annotator> annotators) {
+		List<Source> sources = new ArrayList<Source>();
+		for (Annotator annotator : annotators) {
+			if (annotator instanceof TabixVCFAnnotator) {
+				sources.add(new Source((TabixVCFAnnotator) annotator));
+			} else if (annotator instanceof TabixTSVAnnotator) {
+				if (annotator.refColumn < 0 || annotator.altColumn < 0) {
+					logger.warning(annotator + " does not check both ref and alt, so it cannot be compiled");
+				} else {
+					sources.add(new Source((TabixTSVAnnotator) annotator));
+				}
+			}
+		}
+		return sources;
+	}
+
+	/**
+	 * Compile the sources used by the given annotators into one database, unless it is already up to date.
+	 *
+	 * @return true if the database was (re)built
+	 */
+	public static boolean compile(List<Annotator> annotators, String outputFileName) throws IOException {
+		final List<Source> sources = compilableSources(annotators);
+		if (sources.isEmpty()) {
+			throw new IllegalArgumentException("There are no annotation sources that can be compiled");
+		}
+		final List<String> headers = new ArrayList<String>();
+		headers.add("##fileformat=VCFv4.1");
+		for (Source source : sources) {
+			headers.add(source.header());
+		}
+		if (isUpToDate(outputFileName, headers.subList(1, headers.size()))) {
+			logger.info(outputFileName + " is up to date");
+			return false;
+		}
+		// declare every key written (in the order written), so that all of them are read back
+		Set<String> infoIds = new LinkedHashSet<String>();
+		for (Source source : sources) {
+			Map<String, String> infoLines = new LinkedHashMap<String, String>();
+			for (String info : source.annotator.infoLines()) {
+				infoLines.put(new VCFMeta(info).getValue("ID"), info);
+			}
+			for (String key : source.annotator.infoKeysWritten()) {
+				if (Annotator.ID_KEY.equals(key) || !infoIds.add(key)) continue;
+				String info = infoLines.get(key);
+				headers.add(info != null ? info :
+					"##INFO=<ID=" + key + ",Number=.,Type=String,Description=\"From " + source.reader.filename + "\">");
+			}
+		}
+		headers.add("#CHROM\tPOS\tID\tREF\tALT\tQUAL\tFILTER\tINFO");
+
+		final Set<String> sequences = new LinkedHashSet<String>();
+		for (Source source : sources) {
+			for (String name : source.reader.getIndex().getSequenceNames()) {
+				if (name.startsWith(source.annotator.prefix)) {
+					sequences.add(name.substring(source.annotator.prefix.length()));
+				}
+			}
+		}
+
+		Iterator<String> lines = new AbstractPeekableIterator<String>() {
+			private final Iterator<String> headerLines = headers.iterator();
+			private final Iterator<String> sequenceNames = sequences.iterator();
+			private final LinkedList<String> pending = new LinkedList<String>();
+			private String sequence = null;
+
+			@Override
+			protected String computeNext() {
+				if (headerLines.hasNext()) return headerLines.next();
+				while (pending.isEmpty()) {
+					if (sequence == null || !joinNextPosition()) {
+						if (!sequenceNames.hasNext()) return endOfData();
+						sequence = sequenceNames.next();
+						for (Source source : sources) {
+							source.startSequence(sequence);
+						}
+					}
+				}
+				return pending.removeFirst();
+			}
+
+			/**
+			 * Annotate every site at the next position found in any source.
+			 *
+			 * @return false if the sources have no more rows for this sequence
+			 */
+			private boolean joinNextPosition() {
+				int position = Integer.MAX_VALUE;
+				for (Source source : sources) {
+					if (source.head != null && source.headPosition < position) position = source.headPosition;
+				}
+				if (position == Integer.MAX_VALUE) return false;
+
+				List<List<String []>> rowsBySource = new ArrayList<List<String []>>(sources.size());
+				Map<String, VCFVariant> sites = new LinkedHashMap<String, VCFVariant>();
+				for (Source source : sources) {
+					List<String []> rows = new ArrayList<String []>(2);
+					while (source.head != null && source.headPosition == position) {
+						rows.add(source.head);
+						String alleles = source.alleles(source.head);
+						if (!sites.containsKey(alleles)) {
+							sites.put(alleles, new VCFVariant(sequence + "\t" + position + "\t.\t" + alleles + "\t.\t.\t."));
+						}
+						source.advance();
+					}
+					rowsBySource.add(rows);
+				}
+				for (VCFVariant site : sites.values()) {
+					// in configuration order, as the annotators would have been applied
+					for (int i = 0; i < sources.size(); i++) {
+						Source source = sources.get(i);
+						for (String [] row : rowsBySource.get(i)) {
+							if (source.annotateFromRow(row, site) && source.vcf) break; // only the first match from a VCF
+						}
+					}
+					String line = site.toString();
+					if (!(".".equals(site.getID()) && line.endsWith("\t."))) {
+						pending.add(line);
+					}
+				}
+				return true;
+			}
+		};
+		TabixBuilder.buildIndex(lines, outputFileName, TabixConfig.VCF).save();
+		return true;
+	}
+
+	private static boolean isUpToDate(String fileName, List<String> sourceHeaders) throws IOException {
+		if (!new File(fileName).exists() || !new File(fileName + ".tbi").exists()) return false;
+		List<String> existing = new ArrayList<String>();
+		for (String header : new TabixReader(fileName).readHeaders()) {
+			if (header.startsWith(SOURCE_HEADER)) existing.add(header);
+		}
+		return existing.equals(sourceHeaders);
+	}
+
+	/**
+	 * Make an annotator which adds all of the annotations from a compiled database. A warning is
+	 * logged for any source which has changed since the database was compiled.
+	 */
+	public static TabixVCFAnnotator openCompiled(String fileName) throws IOException {
+		TabixReader reader = new TabixReader(fileName);
+		Map<String, String> fields = new LinkedHashMap<String, String>();
+		for (String header : reader.readHeaders()) {
+			if (header.startsWith("##INFO=")) {
+				String id = new VCFMeta(header).getValue("ID");
+				fields.put(id, id);
+			} else if (header.startsWith(SOURCE_HEADER)) {
+				String [] parts = header.substring(SOURCE_HEADER.length()).split(" ", 3);
+				if (parts.length == 3 && new File(parts[2]).exists() && !checksum(parts[2]).equals(parts[0])) {
+					logger.warning(parts[2] + " has changed since " + fileName + " was compiled, it should be rebuilt with compile-db");
+				}
+			}
+		}
+		TabixVCFAnnotator annotator = new TabixVCFAnnotator(reader, fields);
+		annotator.setCopyID(true);
+		return annotator;
+	}
+
+	private static String join(Collection<String> strings) {
+		StringBuilder sb = new StringBuilder();
+		for (String s : strings) {
+			if (sb.length() > 0) sb.append(',');
+			sb.append(s);
+		}
+		return sb.toString();
+	}
+
+	public static void main(String... args) throws IOException {
+		if (args.length < 2) {
+			System.err.println("Usage: java -jar varitas.jar compile-db <output.vcf.gz> <config.js | -C> ...");
+			System.exit(-1);
+		}
+		Varitas varitas = new Varitas();
+		varitas.setPreferSlimReferences(false);
+		for (String arg : Arrays.asList(args).subList(1, args.length)) {
+			if ("-C".equals(arg) || "--defaultConfig".equals(arg)) {
+				varitas.applyDefaultConfig();
+			} else {
+				varitas.applyConfig(arg);
+			}
+		}
+		compile(varitas.getAnnotators(), args[0]);
+	}
+
+}
@@ -1,5 +1,9 @@
 package org.drpowell.varitas;
 
+import java.io.File;
+import java.util.List;
+import java.util.Set;
+
 import org.drpowell.vcf.VCFVariant;
 
 
@@ -8,6 +12,7 @@ public abstract class Annotator {
 	protected int refColumn = -1;
 	protected int altColumn = -1;
 	protected String prefix = "";
+	public static final String ID_KEY = "#ID";
 	
 	/**
 	 * Provide a column number which is the "reference" call at a locus, for checking in the annotation process.
@@ -49,6 +54,64 @@ public abstract class Annotator {
 
 	public abstract VCFVariant annotate(VCFVariant var);
 
+	/**
+	 * Annotate a batch of variants, which allows an annotator to share work (e.g. index lookups) between
+	 * variants. The default implementation just calls {@link #annotate(VCFVariant)} for each variant.
+	 * 
+	 * @param variants to be annotated (in place)
+	 * @return the same list of variants
+	 */
+	public List<VCFVariant> annotateBatch(List<VCFVariant> variants) {
+		for (VCFVariant variant : variants) {
+			annotate(variant);
+		}
+		return variants;
+	}
+
+	/**
+	 * The INFO keys that this annotator uses from a variant, for deciding which annotators can be run
+	 * concurrently (see {@link ConcurrentAnnotatingIterator}).
+	 * 
+	 * @return the keys read, or null if not known (in which case this annotator will be run by itself)
+	 */
+	public Set<String> infoKeysRead() {
+		return null;
+	}
+
+	/**
+	 * The INFO keys that this annotator may add to a variant. The pseudo-key {@link #ID_KEY} indicates
+	 * that the ID column may be changed.
+	 * 
+	 * @return the keys written, or null if not known (in which case this annotator will be run by itself)
+	 */
+	public Set<String> infoKeysWritten() {
+		return null;
+	}
+
+	/**
+	 * Identifies the configuration of this annotator (its reference and settings), so that its results can be
+	 * saved between runs by {@link CachedAnnotator}.
+	 * 
+	 * @return null if the results of this annotator should not be saved
+	 */
+	public String cacheIdentity() {
+		return null;
+	}
+
+	/**
+	 * Identifies the contents of the reference of this annotator, which should change whenever the
+	 * reference does (so that saved results are no longer used).
+	 */
+	public String cacheVersion() {
+		return null;
+	}
+
+	/** The version of a file for {@link #cacheVersion()}, from its length and modification time. */
+	static String fileVersion(String fileName) {
+		File file = new File(fileName);
+		return file.length() + "-" + file.lastModified();
+	}
+
 	public abstract Iterable<String> infoLines();
 
 }
\ No newline at end of file
@@ -0,0 +1,154 @@
+package org.drpowell.varitas;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import org.drpowell.vcf.VCFParser;
+import org.drpowell.vcf.VCFVariant;
+
+/**
+ * Looks up what another annotator added to each site in an {@link AnnotationCache}, so that sites which
+ * were annotated in an earlier run (with the same configuration and reference) are not looked up again.
+ *
+ * Only annotators which describe their configuration (see {@link Annotator#cacheIdentity()}) and which
+ * do not read any INFO keys can be cached.
+ *
+ * @author bpow
+ */
+public class CachedAnnotator extends Annotator {
+	private static Logger logger = Logger.getLogger(CachedAnnotator.class.getCanonicalName());
+	private final Annotator delegate;
+	private final AnnotationCache cache;
+	private boolean writeFailed = false;
+
+	public CachedAnnotator(Annotator delegate, File cacheDirectory) throws IOException {
+		if (!canCache(delegate)) {
+			throw new IllegalArgumentException(delegate + " cannot be cached");
+		}
+		this.delegate = delegate;
+		cache = AnnotationCache.open(cacheDirectory, delegate.cacheIdentity(), delegate.cacheVersion());
+	}
+
+	public static boolean canCache(Annotator annotator) {
+		return annotator.cacheIdentity() != null && annotator.cacheVersion() != null &&
+				MemoizingAnnotator.canMemoize(annotator);
+	}
+
+	/** @return the annotations of a site, as stored in the cache (ID, tab, INFO) */
+	private static String payload(VCFVariant site) {
+		site.toString(); // brings the INFO column up to date
+		return site.getID() + "\t" + site.getFixedColumn(VCFParser.VCFFixedColumns.INFO.ordinal());
+	}
+
+	private void replay(VCFVariant variant, String payload) {
+		int tab = payload.indexOf('\t');
+		String id = payload.substring(0, tab), info = payload.substring(tab + 1);
+		if (".".equals(id) && ".".equals(info)) return;
+		VCFVariant site = variant.siteOnly(info, delegate.infoKeysWritten());
+		if (!".".equals(id)) site.mergeID(id);
+		variant.mergeSite(site);
+	}
+
+	private String lookup(VCFVariant variant) {
+		try {
+			return cache.get(variant.getSequence(), variant.getStart(), variant.getRef(), variant.getAlt());
+		} catch (IOException ioe) {
+			throw new RuntimeException("Problem reading annotation cache for " + delegate, ioe);
+		}
+	}
+
+	private void store(VCFVariant site) {
+		try {
+			cache.put(site.getSequence(), site.getStart(), site.getRef(), site.getAlt(), payload(site));
+		} catch (IOException ioe) {
+			// the annotations are still used, they just will not be saved for the next run
+			if (!writeFailed) {
+				logger.warning("Problem writing annotation cache for " + delegate + ", will not add to it: " + ioe);
+				writeFailed = true;
+			}
+		}
+	}
+
+	@Override
+	public VCFVariant annotate(VCFVariant variant) {
+		String payload = lookup(variant);
+		if (payload == null) {
+			VCFVariant site = variant.siteOnly();
+			delegate.annotate(site);
+			store(site);
+			variant.mergeSite(site);
+		} else {
+			replay(variant, payload);
+		}
+		return variant;
+	}
+
+	/**
+	 * The sites which are not in the cache are annotated together, by the delegate's own
+	 * {@link Annotator#annotateBatch(List)}.
+	 */
+	@Override
+	public List<VCFVariant> annotateBatch(List<VCFVariant> variants) {
+		List<VCFVariant> missed = new ArrayList<VCFVariant>();
+		List<VCFVariant> sites = new ArrayList<VCFVariant>();
+		for (VCFVariant variant : variants) {
+			String payload = lookup(variant);
+			if (payload == null) {
+				missed.add(variant);
+				sites.add(variant.siteOnly());
+			} else {
+				replay(variant, payload);
+			}
+		}
+		if (!sites.isEmpty()) {
+			delegate.annotateBatch(sites);
+			for (int i = 0; i < sites.size(); i++) {
+				store(sites.get(i));
+				missed.get(i).mergeSite(sites.get(i));
+			}
+		}
+		return variants;
+	}
+
+	public Annotator getDelegate() {
+		return delegate;
+	}
+
+	public AnnotationCache getCache() {
+		return cache;
+	}
+
+	@Override
+	public Set<String> infoKeysRead() {
+		return delegate.infoKeysRead();
+	}
+
+	@Override
+	public Set<String> infoKeysWritten() {
+		return delegate.infoKeysWritten();
+	}
+
+	@Override
+	public String cacheIdentity() {
+		return delegate.cacheIdentity();
+	}
+
+	@Override
+	public String cacheVersion() {
+		return delegate.cacheVersion();
+	}
+
+	@Override
+	public Iterable<String> infoLines() {
+		return delegate.infoLines();
+	}
+
+	@Override
+	public String toString() {
+		return "CachedAnnotator: " + delegate;
+	}
+}
@@ -0,0 +1,295 @@
+package org.drpowell.varitas;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.logging.Logger;
+
+import org.drpowell.util.FileUtils;
+import org.drpowell.vcf.VCFHeaders;
+import org.drpowell.vcf.VCFIterator;
+import org.drpowell.vcf.VCFMeta;
+import org.drpowell.vcf.VCFParser;
+import org.drpowell.vcf.VCFVariant;
+
+/**
+ * Annotates a batch of VCF files (e.g. single-sample files from one sequencing run) together, looking up
+ * each distinct site (chromosome, position, ref and alt) only once.
+ *
+ * The inputs are read at the same time and merged by position into a stream of distinct sites, which
+ * is annotated by the annotators that only look at the site (see {@link MemoizingAnnotator#canMemoize(Annotator)}).
+ * As each position comes out of those annotators, the annotations are copied into the records of every
+ * input at that position, the remaining annotators (e.g. those which read the Gene_name from
+ * {@link SnpEffAnnotationSplitter}) are run on each record, and the records are written to that input's output.
+ *
+ * The inputs should be sorted the same way (the chromosome order is taken from the ##contig headers, or
+ * else the order in which chromosomes are seen). Each output has its input's records in the same order
+ * regardless, but an input in a different order shares fewer lookups.
+ *
+ * @author bpow
+ */
+public class CohortAnnotator {
+	private static Logger logger = Logger.getLogger(CohortAnnotator.class.getCanonicalName());
+	private final List<Annotator> annotators;
+	private final List<Annotator> siteAnnotators = new ArrayList<Annotator>();
+	private final List<Annotator> sampleAnnotators = new ArrayList<Annotator>();
+	private final List<VCFIterator> inputs;
+	private final VCFVariant [] heads;
+	private final Map<String, Integer> chromosomeRanks = new HashMap<String, Integer>();
+	private final ArrayDeque<Position> pending = new ArrayDeque<Position>();
+	private long records = 0, sites = 0;
+
+	/** The records of every input at one position, and the distinct sites among them */
+	private static class Position {
+		final List<List<VCFVariant>> records = new ArrayList<List<VCFVariant>>();
+		final Map<String, VCFVariant> sites = new LinkedHashMap<String, VCFVariant>();
+		int annotated = 0;
+	}
+
+	public CohortAnnotator(List<Annotator> annotators, List<VCFIterator> inputs) {
+		this.annotators = annotators;
+		this.inputs = inputs;
+		heads = new VCFVariant[inputs.size()];
+		for (Annotator annotator : annotators) {
+			// an annotator can only be moved ahead of the per-sample annotators if it does not depend on them
+			boolean sampleOnly = !MemoizingAnnotator.canMemoize(annotator);
+			for (int i = 0; !sampleOnly && i < sampleAnnotators.size(); i++) {
+				sampleOnly = ConcurrentAnnotatingIterator.dependsOn(annotator, sampleAnnotators.get(i));
+			}
+			(sampleOnly ? sampleAnnotators : siteAnnotators).add(annotator);
+		}
+		for (int i = 0; i < inputs.size(); i++) {
+			for (VCFMeta meta : inputs.get(i).getHeaders()) {
+				if ("contig".equals(meta.getMetaKey()) && meta.getId() != null && !chromosomeRanks.containsKey(meta.getId())) {
+					chromosomeRanks.put(meta.getId(), chromosomeRanks.size());
+				}
+			}
+			heads[i] = inputs.get(i).hasNext() ? inputs.get(i).next() : null;
+		}
+	}
+
+	/** The headers for the output of one input, with those of all of the annotators. */
+	public VCFHeaders getHeaders(int input) {
+		VCFHeaders headers = new VCFHeaders(inputs.get(input).getHeaders());
+		for (Annotator annotator : annotators) {
+			for (String info : annotator.infoLines()) {
+				headers.add(new VCFMeta(info));
+			}
+		}
+		return headers;
+	}
+
+	private int rank(String chromosome) {
+		Integer rank = chromosomeRanks.get(chromosome);
+		if (rank == null) {
+			rank = chromosomeRanks.size();
+			chromosomeRanks.put(chromosome, rank);
+		}
+		return rank;
+	}
+
+	private static String siteKey(VCFVariant variant) {
+		return variant.getRef() + "\t" + variant.getAlt();
+	}
+
+	/** Take the records of every input at the next position, or return null if all inputs are finished */
+	private Position nextPosition() {
+		int first = -1;
+		for (int i = 0; i < heads.length; i++) {
+			if (heads[i] == null) continue;
+			if (first < 0) {
+				first = i;
+				continue;
+			}
+			int byChromosome = rank(heads[i].getSequence()) - rank(heads[first].getSequence());
+			if (byChromosome < 0 || (byChromosome == 0 && heads[i].getStart() < heads[first].getStart())) {
+				first = i;
+			}
+		}
+		if (first < 0) return null;
+		String chromosome = heads[first].getSequence();
+		int start = heads[first].getStart();
+		Position position = new Position();
+		for (int i = 0; i < heads.length; i++) {
+			List<VCFVariant> atPosition = Collections.emptyList();
+			while (heads[i] != null && heads[i].getStart() == start && heads[i].getSequence().equals(chromosome)) {
+				if (atPosition.isEmpty()) atPosition = new ArrayList<VCFVariant>(1);
+				atPosition.add(heads[i]);
+				String key = siteKey(heads[i]);
+				if (!position.sites.containsKey(key)) {
+					position.sites.put(key, heads[i].siteOnly());
+				}
+				heads[i] = inputs.get(i).hasNext() ? inputs.get(i).next() : null;
+			}
+			position.records.add(atPosition);
+			records += atPosition.size();
+		}
+		sites += position.sites.size();
+		return position;
+	}
+
+	/** The distinct sites of all of the inputs, in order, remembering which records each came from */
+	private class SiteIterator implements VCFIterator {
+		private final VCFHeaders headers = new VCFHeaders(new ArrayList<VCFMeta>(), new String[0]);
+		private Position current = null;
+		private Iterator<VCFVariant> iterator = Collections.<VCFVariant>emptyList().iterator();
+
+		@Override
+		public boolean hasNext() {
+			while (!iterator.hasNext()) {
+				current = nextPosition();
+				if (current == null) return false;
+				pending.add(current);
+				iterator = current.sites.values().iterator();
+			}
+			return true;
+		}
+
+		@Override
+		public VCFVariant next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			return iterator.next();
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public VCFHeaders getHeaders() {
+			return headers;
+		}
+	}
+
+	/**
+	 * Annotate all of the inputs, writing each to the corresponding output (which is closed at the end).
+	 *
+	 * @param threads the number of threads to use for the annotators of the distinct sites
+	 */
+	public void run(List<PrintWriter> outputs, int threads) {
+		for (int i = 0; i < outputs.size(); i++) {
+			VCFHeaders headers = getHeaders(i);
+			outputs.get(i).print(headers);
+			outputs.get(i).println(headers.getColumnHeaderLine());
+		}
+		VCFIterator annotated = new SiteIterator();
+		if (threads > 1 && siteAnnotators.size() > 1) {
+			annotated = new ConcurrentAnnotatingIterator(annotated, siteAnnotators, threads,
+					ConcurrentAnnotatingIterator.DEFAULT_BATCH_SIZE);
+		} else {
+			for (Annotator annotator : siteAnnotators) {
+				annotated = new AnnotatingIterator(annotated, annotator);
+			}
+		}
+		while (annotated.hasNext()) {
+			annotated.next();
+			// the sites come back in the order they were taken, so the oldest position is the one being finished
+			Position position = pending.peek();
+			if (++position.annotated == position.sites.size()) {
+				pending.remove();
+				write(position, outputs);
+			}
+		}
+		for (PrintWriter output : outputs) {
+			output.close();
+		}
+		logger.info(String.format("Annotated %d distinct sites for %d records from %d inputs", sites, records, inputs.size()));
+	}
+
+	private void write(Position position, List<PrintWriter> outputs) {
+		for (int i = 0; i < outputs.size(); i++) {
+			for (VCFVariant variant : position.records.get(i)) {
+				variant.mergeSite(position.sites.get(siteKey(variant)));
+				for (Annotator annotator : sampleAnnotators) {
+					variant = annotator.annotate(variant);
+				}
+				outputs.get(i).println(variant);
+			}
+		}
+	}
+
+	/** The name of the output for an input file, in the output directory */
+	static File outputFile(File directory, String input) {
+		String name = new File(input).getName();
+		if (name.endsWith(".gz")) {
+			name = name.substring(0, name.length() - ".gz".length());
+		}
+		return new File(directory, name);
+	}
+
+	public static void main(String... args) throws IOException {
+		Varitas varitas = new Varitas();
+		int threads = Runtime.getRuntime().availableProcessors();
+		int i = 0;
+		for (; i < args.length - 1 && args[i].startsWith("-") && !"-C".equals(args[i]); i += 2) {
+			if ("-p".equals(args[i])) {
+				threads = Integer.parseInt(args[i + 1]);
+			} else if ("-K".equals(args[i])) {
+				varitas.setCacheDirectory(args[i + 1]);
+			} else {
+				break;
+			}
+		}
+		if (args.length - i < 3) {
+			System.err.println("Usage: java -jar varitas.jar cohort [-p threads] [-K cacheDir] <config.js | -C> <output directory> <input.vcf> ...");
+			System.exit(-1);
+		}
+		// the site annotators are run once here, rather than once per configuration
+		varitas.setAnnotationThreads("1");
+		if ("-C".equals(args[i])) {
+			varitas.applyDefaultConfig();
+		} else {
+			varitas.applyConfig(args[i]);
+		}
+		File outputDirectory = new File(args[i + 1]);
+		if (!outputDirectory.isDirectory() && !outputDirectory.mkdirs()) {
+			throw new IOException("Unable to make output directory " + outputDirectory);
+		}
+		// check all of the outputs before any is started
+		Map<File, String> inputByOutput = new HashMap<File, String>();
+		for (int j = i + 2; j < args.length; j++) {
+			File output = outputFile(outputDirectory, args[j]).getCanonicalFile();
+			if (output.equals(new File(args[j]).getCanonicalFile())) {
+				throw new IOException("Output for " + args[j] + " would overwrite it");
+			}
+			String other = inputByOutput.put(output, args[j]);
+			if (other != null) {
+				throw new IOException("The outputs for " + other + " and " + args[j] + " would both be " + output +
+						", inputs with the same name need to be annotated separately");
+			}
+		}
+		List<VCFIterator> inputs = new ArrayList<VCFIterator>();
+		List<PrintWriter> outputs = new ArrayList<PrintWriter>();
+		for (int j = i + 2; j < args.length; j++) {
+			File output = outputFile(outputDirectory, args[j]);
+			inputs.add(new VCFParser(FileUtils.filenameToBufferedReader(args[j])));
+			try {
+				outputs.add(new PrintWriter(new BufferedOutputStream(new FileOutputStream(output), 1024)));
+			} catch (FileNotFoundException e) {
+				String message = "Unable to write to output file: " + output;
+				logger.severe(message);
+				throw new RuntimeException(message, e);
+			}
+		}
+		new CohortAnnotator(varitas.getAnnotatorChain(), inputs).run(outputs, threads);
+		for (CachedAnnotator cached : varitas.getCachedAnnotators()) {
+			logger.info(cached.getCache().getStatistics());
+		}
+		varitas.closeCaches();
+	}
+}
@@ -0,0 +1,555 @@
+package org.drpowell.varitas;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import net.sf.samtools.util.BlockCompressedInputStream;
+
+import org.drpowell.tabix.GenomicInterval;
+import org.drpowell.tabix.TabixIndex.TabixConfig;
+import org.drpowell.tabix.TabixReader;
+
+/**
+ * A column-oriented copy of selected columns of a tab-delimited reference (such as dbNSFP).
+ *
+ * Rows are stored in blocks of {@link #BLOCK_ROWS} rows per chromosome. For each block the positions
+ * and each column are compressed separately, so that a lookup only inflates the positions and the
+ * columns that it actually reads. Within a block, a column with few distinct values (such as the
+ * D/T/N predictions of dbNSFP) is stored as a dictionary and codes, and a column of decimal numbers
+ * is stored as packed integers and scales (with the few values which are not numbers, such as "." for
+ * missing, kept aside). Values are always given back exactly as they were written in the reference.
+ *
+ * @author bpow
+ */
+public class ColumnarStore {
+	private static final byte [] MAGIC = {'V', 'C', 'O', 'L', 2};
+	static final int BLOCK_ROWS = 1024;
+	/** the most distinct values which are not numbers (such as "." for missing) in a block of decimals */
+	static final int MAX_DECIMAL_EXCEPTIONS = 16;
+	private static final int DICTIONARY = 0, DECIMAL = 1;
+	private static Logger logger = Logger.getLogger(ColumnarStore.class.getCanonicalName());
+
+	public final String fileName;
+	private final String sourceFileName;
+	private final String header;
+	private final int [] columns;
+	private final Map<String, Block []> sequences;
+	private final FileChannel channel;
+
+	// the most recently decoded block of positions and of each column
+	private Block positionsBlock;
+	private int [] begins, ends;
+	private final Block [] columnBlocks;
+	private final Column [] columnValues;
+
+	private static class Block {
+		int rows, firstBegin, maxEnd, reachEnd;
+		/** for the positions, then each column */
+		long [] offsets;
+		int [] lengths, rawLengths;
+	}
+
+	private ColumnarStore(String fileName, String sourceFileName, String header, int [] columns,
+			Map<String, Block []> sequences, FileChannel channel) {
+		this.fileName = fileName;
+		this.sourceFileName = sourceFileName;
+		this.header = header;
+		this.columns = columns;
+		this.sequences = sequences;
+		this.channel = channel;
+		columnBlocks = new Block[columns.length];
+		columnValues = new Column[columns.length];
+	}
+
+	public static ColumnarStore open(String fileName) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(fileName, "r");
+		byte [] magic = new byte[MAGIC.length];
+		raf.readFully(magic);
+		if (!Arrays.equals(magic, MAGIC)) {
+			raf.close();
+			if (Arrays.equals(Arrays.copyOf(magic, MAGIC.length - 1), Arrays.copyOf(MAGIC, MAGIC.length - 1))) {
+				throw new IOException(fileName + " was built by a different version of varitas, and needs to be built again");
+			}
+			throw new IOException(fileName + " is not a columnar store");
+		}
+		raf.seek(raf.length() - 8);
+		raf.seek(raf.readLong());
+		String sourceFileName = raf.readUTF();
+		String header = raf.readUTF();
+		int [] columns = new int[raf.readInt()];
+		for (int i = 0; i < columns.length; i++) {
+			columns[i] = raf.readInt();
+		}
+		int nSequences = raf.readInt();
+		Map<String, Block []> sequences = new HashMap<String, Block []>();
+		for (int s = 0; s < nSequences; s++) {
+			String name = raf.readUTF();
+			Block [] blocks = new Block[raf.readInt()];
+			int reachEnd = 0;
+			for (int b = 0; b < blocks.length; b++) {
+				Block block = blocks[b] = new Block();
+				block.rows = raf.readInt();
+				block.firstBegin = raf.readInt();
+				block.maxEnd = raf.readInt();
+				block.reachEnd = reachEnd = Math.max(reachEnd, block.maxEnd);
+				block.offsets = new long[columns.length + 1];
+				block.lengths = new int[columns.length + 1];
+				block.rawLengths = new int[columns.length + 1];
+				for (int c = 0; c <= columns.length; c++) {
+					block.offsets[c] = raf.readLong();
+					block.lengths[c] = raf.readInt();
+					block.rawLengths[c] = raf.readInt();
+				}
+			}
+			sequences.put(name, blocks);
+		}
+		File source = new File(sourceFileName);
+		if (source.exists() && source.lastModified() > new File(fileName).lastModified()) {
+			logger.warning(sourceFileName + " has changed since " + fileName + " was built, it should be rebuilt with build-columnar");
+		}
+		return new ColumnarStore(fileName, sourceFileName, header, columns, sequences, raf.getChannel());
+	}
+
+	/** The (1-based) column numbers of the reference which are stored */
+	public int [] getColumns() {
+		return columns.clone();
+	}
+
+	/** The file the store was built from */
+	public String getSourceFileName() {
+		return sourceFileName;
+	}
+
+	/** The first header line of the reference, or "" if there was none */
+	public String getHeader() {
+		return header;
+	}
+
+	/**
+	 * Find the rows which overlap a region and which have the given values in the given columns.
+	 *
+	 * @param begin start of the region (0-based)
+	 * @param end end of the region (exclusive)
+	 * @param matchColumns indices (into {@link #getColumns()}) of columns to be checked
+	 * @param matchValues values required in those columns
+	 * @param valueColumns indices (into {@link #getColumns()}) of the columns wanted
+	 * @return the values of the wanted columns, for each matching row in reference order
+	 */
+	public synchronized List<String []> query(String sequence, int begin, int end,
+			int [] matchColumns, String [] matchValues, int [] valueColumns) throws IOException {
+		Block [] blocks = sequences.get(sequence);
+		if (blocks == null) return Collections.emptyList();
+		// the last block starting before the end of the region, then back to the first that could overlap
+		int lo = 0, hi = blocks.length - 1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			if (blocks[mid].firstBegin < end) lo = mid + 1; else hi = mid - 1;
+		}
+		int last = hi, first = last + 1;
+		while (first > 0 && blocks[first - 1].reachEnd > begin) {
+			first--;
+		}
+		List<String []> results = new ArrayList<String []>(1);
+		for (int b = first; b <= last; b++) {
+			Block block = blocks[b];
+			if (block.maxEnd <= begin) continue;
+			decodePositions(block);
+			ROW:
+			for (int row = 0; row < block.rows && begins[row] < end; row++) {
+				if (ends[row] <= begin) continue;
+				for (int i = 0; i < matchColumns.length; i++) {
+					if (!column(block, matchColumns[i]).get(row).equals(matchValues[i])) continue ROW;
+				}
+				String [] values = new String[valueColumns.length];
+				for (int i = 0; i < valueColumns.length; i++) {
+					values[i] = column(block, valueColumns[i]).get(row);
+				}
+				results.add(values);
+			}
+		}
+		return results;
+	}
+
+	private void decodePositions(Block block) throws IOException {
+		if (positionsBlock == block) return;
+		Bytes in = new Bytes(inflate(block, 0));
+		begins = new int[block.rows];
+		ends = new int[block.rows];
+		int begin = block.firstBegin;
+		for (int row = 0; row < block.rows; row++) {
+			begin += in.readVarInt();
+			begins[row] = begin;
+			ends[row] = begin + in.readVarInt();
+		}
+		positionsBlock = block;
+	}
+
+	private Column column(Block block, int column) throws IOException {
+		if (columnBlocks[column] != block) {
+			Bytes in = new Bytes(inflate(block, column + 1));
+			columnValues[column] = in.read() == DECIMAL ? new DecimalColumn(in, block.rows) : new DictionaryColumn(in, block.rows);
+			columnBlocks[column] = block;
+		}
+		return columnValues[column];
+	}
+
+	private byte [] inflate(Block block, int chunk) throws IOException {
+		ByteBuffer compressed = ByteBuffer.allocate(block.lengths[chunk]);
+		long position = block.offsets[chunk];
+		while (compressed.hasRemaining()) {
+			int n = channel.read(compressed, position + compressed.position());
+			if (n < 0) throw new IOException("Unexpected end of " + fileName);
+		}
+		Inflater inflater = new Inflater();
+		inflater.setInput(compressed.array());
+		byte [] raw = new byte[block.rawLengths[chunk]];
+		try {
+			int n = 0;
+			while (n < raw.length && !inflater.finished()) {
+				n += inflater.inflate(raw, n, raw.length - n);
+			}
+		} catch (DataFormatException e) {
+			throw new IOException("Corrupt block in " + fileName + ": " + e);
+		} finally {
+			inflater.end();
+		}
+		return raw;
+	}
+
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	/** A decoded block of one column */
+	private static abstract class Column {
+		abstract String get(int row);
+	}
+
+	private static class DictionaryColumn extends Column {
+		private final String [] dictionary;
+		private final int [] codes;
+		DictionaryColumn(Bytes in, int rows) {
+			dictionary = new String[in.readVarInt()];
+			for (int i = 0; i < dictionary.length; i++) {
+				dictionary[i] = in.readString();
+			}
+			codes = new int[rows];
+			for (int row = 0; row < rows; row++) {
+				codes[row] = in.readVarInt();
+			}
+		}
+		@Override
+		String get(int row) {
+			return dictionary[codes[row]];
+		}
+	}
+
+	/**
+	 * Decimals, as the unscaled value and the scale. A negative scale instead refers to one of the values
+	 * which are not numbers (such as "." for missing), which are given at the start of the block.
+	 */
+	private static class DecimalColumn extends Column {
+		private final String [] exceptions;
+		private final long [] unscaled;
+		private final byte [] scales;
+		DecimalColumn(Bytes in, int rows) {
+			exceptions = new String[in.readVarInt()];
+			for (int i = 0; i < exceptions.length; i++) {
+				exceptions[i] = in.readString();
+			}
+			unscaled = new long[rows];
+			scales = new byte[rows];
+			for (int row = 0; row < rows; row++) {
+				long zigzag = in.readVarLong();
+				unscaled[row] = (zigzag >>> 1) ^ -(zigzag & 1);
+				scales[row] = (byte) in.read();
+			}
+		}
+		@Override
+		String get(int row) {
+			if (scales[row] < 0) return exceptions[-1 - scales[row]];
+			return new BigDecimal(BigInteger.valueOf(unscaled[row]), scales[row]).toPlainString();
+		}
+	}
+
+	/** Reads varints and strings from a decoded block */
+	private static class Bytes {
+		private final byte [] bytes;
+		private int position = 0;
+		Bytes(byte [] bytes) {
+			this.bytes = bytes;
+		}
+		int read() {
+			return bytes[position++];
+		}
+		int readVarInt() {
+			return (int) readVarLong();
+		}
+		long readVarLong() {
+			long value = 0;
+			for (int shift = 0; ; shift += 7) {
+				byte b = bytes[position++];
+				value |= (long) (b & 0x7f) << shift;
+				if (b >= 0) return value;
+			}
+		}
+		String readString() {
+			int length = readVarInt();
+			try {
+				String s = new String(bytes, position, length, "UTF-8");
+				position += length;
+				return s;
+			} catch (UnsupportedEncodingException e) {
+				throw new RuntimeException(e);
+			}
+		}
+	}
+
+	private static void writeVarLong(ByteArrayOutputStream out, long value) {
+		while ((value & ~0x7fL) != 0) {
+			out.write((int) ((value & 0x7f) | 0x80));
+			value >>>= 7;
+		}
+		out.write((int) value);
+	}
+
+	/**
+	 * Build a store with the given columns of a tabix-indexed reference. The reference must be sorted
+	 * (as it is for tabix).
+	 *
+	 * @param columns 1-based column numbers, including any that will be used to check ref and alt
+	 */
+	public static void build(TabixReader source, int [] columns, String outputFileName) throws IOException {
+		TabixConfig config = source.conf;
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new BlockCompressedInputStream(new File(source.filename))));
+		Writer writer = new Writer(outputFileName, columns);
+		String header = null;
+		int linesToSkip = config.linesToSkip;
+		String line;
+		while ((line = reader.readLine()) != null) {
+			if (linesToSkip-- > 0 || line.startsWith(config.commentString)) {
+				if (header == null) header = line;
+				continue;
+			}
+			if (line.length() == 0) continue;
+			String [] row = line.split("\t", -1);
+			GenomicInterval interval = source.getIndex().getInterval(Arrays.asList(row));
+			if (interval.getBegin() >= interval.getEnd()) continue; // never found by a tabix query
+			String [] values = new String[columns.length];
+			for (int i = 0; i < columns.length; i++) {
+				values[i] = columns[i] <= row.length ? row[columns[i] - 1] : "";
+			}
+			writer.add(row[config.seqCol - 1], interval.getBegin(), interval.getEnd(), values);
+		}
+		reader.close();
+		writer.finish(source.filename, header == null ? "" : header);
+	}
+
+	private static class Writer {
+		private final DataOutputStream out;
+		private final int [] columns;
+		private long offset = 0;
+		private final ByteArrayOutputStream directory = new ByteArrayOutputStream();
+		private final DataOutputStream dir = new DataOutputStream(directory);
+		private final Map<String, List<byte []>> blocksBySequence = new LinkedHashMap<String, List<byte []>>();
+		private String sequence = null;
+		private int rows = 0, lastBegin = 0;
+		private final int [] begins = new int[BLOCK_ROWS], ends = new int[BLOCK_ROWS];
+		private final String [][] values;
+		private long rowsWritten = 0;
+
+		Writer(String fileName, int [] columns) throws IOException {
+			this.columns = columns;
+			values = new String[columns.length][BLOCK_ROWS];
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(fileName), 1 << 16));
+			out.write(MAGIC);
+			offset = MAGIC.length;
+		}
+
+		void add(String rowSequence, int begin, int end, String [] rowValues) throws IOException {
+			if (!rowSequence.equals(sequence)) {
+				flush();
+				if (blocksBySequence.containsKey(rowSequence)) {
+					throw new IOException("The rows for " + rowSequence + " are not together, the reference must be sorted");
+				}
+				sequence = rowSequence;
+				blocksBySequence.put(sequence, new ArrayList<byte []>());
+			} else if (begin < lastBegin) {
+				throw new IOException("The rows for " + rowSequence + " are not sorted at " + (begin + 1));
+			}
+			begins[rows] = lastBegin = begin;
+			ends[rows] = end;
+			for (int i = 0; i < rowValues.length; i++) {
+				values[i][rows] = rowValues[i];
+			}
+			if (++rows == BLOCK_ROWS) flush();
+		}
+
+		private void flush() throws IOException {
+			if (rows == 0) return;
+			ByteArrayOutputStream blockEntry = new ByteArrayOutputStream();
+			DataOutputStream entry = new DataOutputStream(blockEntry);
+			int maxEnd = 0;
+			ByteArrayOutputStream positions = new ByteArrayOutputStream(rows * 3);
+			for (int row = 0; row < rows; row++) {
+				writeVarLong(positions, row == 0 ? 0 : begins[row] - begins[row - 1]);
+				writeVarLong(positions, ends[row] - begins[row]);
+				maxEnd = Math.max(maxEnd, ends[row]);
+			}
+			entry.writeInt(rows);
+			entry.writeInt(begins[0]);
+			entry.writeInt(maxEnd);
+			writeChunk(entry, positions);
+			for (int i = 0; i < columns.length; i++) {
+				writeChunk(entry, encodeColumn(values[i], rows));
+			}
+			blocksBySequence.get(sequence).add(blockEntry.toByteArray());
+			rowsWritten += rows;
+			rows = 0;
+		}
+
+		private void writeChunk(DataOutputStream entry, ByteArrayOutputStream raw) throws IOException {
+			Deflater deflater = new Deflater();
+			deflater.setInput(raw.toByteArray());
+			deflater.finish();
+			byte [] buffer = new byte[4096];
+			int length = 0;
+			while (!deflater.finished()) {
+				int n = deflater.deflate(buffer);
+				out.write(buffer, 0, n);
+				length += n;
+			}
+			deflater.end();
+			entry.writeLong(offset);
+			entry.writeInt(length);
+			entry.writeInt(raw.size());
+			offset += length;
+		}
+
+		void finish(String sourceFileName, String header) throws IOException {
+			flush();
+			dir.writeUTF(sourceFileName);
+			dir.writeUTF(header);
+			dir.writeInt(columns.length);
+			for (int column : columns) {
+				dir.writeInt(column);
+			}
+			dir.writeInt(blocksBySequence.size());
+			for (Map.Entry<String, List<byte []>> e : blocksBySequence.entrySet()) {
+				dir.writeUTF(e.getKey());
+				dir.writeInt(e.getValue().size());
+				for (byte [] block : e.getValue()) {
+					dir.write(block);
+				}
+			}
+			dir.close();
+			directory.writeTo(out);
+			out.writeLong(offset);
+			out.close();
+			logger.info("Stored " + rowsWritten + " rows in " + blocksBySequence.size() + " sequences");
+		}
+	}
+
+	private static ByteArrayOutputStream encodeColumn(String [] values, int rows) throws IOException {
+		ByteArrayOutputStream raw = new ByteArrayOutputStream(rows * 2);
+		Map<String, Integer> codes = new LinkedHashMap<String, Integer>();
+		for (int row = 0; row < rows; row++) {
+			if (!codes.containsKey(values[row])) codes.put(values[row], codes.size());
+		}
+		if (codes.size() * 4 > rows) {
+			ByteArrayOutputStream decimal = encodeDecimal(values, rows);
+			if (decimal != null) return decimal;
+		}
+		raw.write(DICTIONARY);
+		writeVarLong(raw, codes.size());
+		for (String value : codes.keySet()) {
+			byte [] bytes = value.getBytes("UTF-8");
+			writeVarLong(raw, bytes.length);
+			raw.write(bytes);
+		}
+		for (int row = 0; row < rows; row++) {
+			writeVarLong(raw, codes.get(values[row]));
+		}
+		return raw;
+	}
+
+	/**
+	 * @return the values as packed decimals, or null if any would not be written back exactly as it is (apart
+	 * from a few distinct values which are not numbers, such as "." for missing)
+	 */
+	private static ByteArrayOutputStream encodeDecimal(String [] values, int rows) throws IOException {
+		ByteArrayOutputStream raw = new ByteArrayOutputStream(rows * 3);
+		Map<String, Integer> exceptions = new LinkedHashMap<String, Integer>();
+		long [] unscaled = new long[rows];
+		int [] scales = new int[rows];
+		for (int row = 0; row < rows; row++) {
+			BigDecimal decimal = null;
+			try {
+				decimal = new BigDecimal(values[row]);
+			} catch (NumberFormatException nfe) {
+				// kept as an exception, below
+			}
+			if (decimal == null || decimal.scale() < 0 || decimal.scale() > Byte.MAX_VALUE ||
+					decimal.unscaledValue().bitLength() > 62 || !decimal.toPlainString().equals(values[row])) {
+				Integer code = exceptions.get(values[row]);
+				if (code == null) {
+					if (exceptions.size() == MAX_DECIMAL_EXCEPTIONS) return null;
+					exceptions.put(values[row], code = exceptions.size());
+				}
+				scales[row] = -1 - code;
+			} else {
+				unscaled[row] = decimal.unscaledValue().longValue();
+				scales[row] = decimal.scale();
+			}
+		}
+		raw.write(DECIMAL);
+		writeVarLong(raw, exceptions.size());
+		for (String value : exceptions.keySet()) {
+			byte [] bytes = value.getBytes("UTF-8");
+			writeVarLong(raw, bytes.length);
+			raw.write(bytes);
+		}
+		for (int row = 0; row < rows; row++) {
+			writeVarLong(raw, (unscaled[row] << 1) ^ (unscaled[row] >> 63));
+			raw.write(scales[row]);
+		}
+		return raw;
+	}
+
+	public static void main(String... args) throws IOException {
+		if (args.length < 3) {
+			System.err.println("Usage: java -jar varitas.jar build-columnar <source.gz> <output.vcol> <columns, comma-separated>");
+			System.exit(-1);
+		}
+		String [] split = args[2].split(",");
+		int [] columns = new int[split.length];
+		for (int i = 0; i < split.length; i++) {
+			columns[i] = Integer.parseInt(split[i]);
+		}
+		build(new TabixReader(args[0]), columns, args[1]);
+	}
+
+}
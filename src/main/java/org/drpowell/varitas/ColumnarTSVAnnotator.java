@@ -0,0 +1,139 @@
+package org.drpowell.varitas;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.drpowell.vcf.VCFVariant;
+
+/**
+ * Annotates from a {@link ColumnarStore}, with the same column syntax ({@link TSVColumns}) and matching as {@link TabixTSVAnnotator}.
+ *
+ * @author bpow
+ */
+public class ColumnarTSVAnnotator extends Annotator {
+	private final ColumnarStore store;
+	private final List<Integer> storeColumns = new ArrayList<Integer>();
+	private final TSVColumns tsvColumns;
+	private final Map<Integer, String> fieldMap;
+	private final int [] valueColumns;
+	private int [] matchColumns = new int[0];
+	private boolean hasHeader = false;
+
+	public ColumnarTSVAnnotator(ColumnarStore store, String columns) {
+		this.store = store;
+		for (int column : store.getColumns()) {
+			storeColumns.add(column - 1);
+		}
+		tsvColumns = new TSVColumns(columns);
+		fieldMap = tsvColumns.getFieldMap();
+		valueColumns = new int[fieldMap.size()];
+		int i = 0;
+		for (Integer column : fieldMap.keySet()) {
+			valueColumns[i++] = storeIndex(column);
+		}
+	}
+
+	private int storeIndex(int column) {
+		int index = storeColumns.indexOf(column);
+		if (index < 0) {
+			throw new IllegalArgumentException("Column " + (column + 1) + " is not in " + store.fileName);
+		}
+		return index;
+	}
+
+	public ColumnarTSVAnnotator useHeader(boolean useHeader) {
+		hasHeader = useHeader;
+		return this;
+	}
+
+	@Override
+	public Annotator checkRef(int refColumn) {
+		super.checkRef(refColumn);
+		updateMatchColumns();
+		return this;
+	}
+
+	@Override
+	public Annotator checkAlt(int altColumn) {
+		super.checkAlt(altColumn);
+		updateMatchColumns();
+		return this;
+	}
+
+	private void updateMatchColumns() {
+		List<Integer> match = new ArrayList<Integer>(2);
+		if (refColumn >= 0) match.add(storeIndex(refColumn));
+		if (altColumn >= 0) match.add(storeIndex(altColumn));
+		matchColumns = new int[match.size()];
+		for (int i = 0; i < matchColumns.length; i++) {
+			matchColumns[i] = match.get(i);
+		}
+	}
+
+	@Override
+	public VCFVariant annotate(VCFVariant variant) {
+		String [] matchValues = new String[matchColumns.length];
+		int i = 0;
+		if (refColumn >= 0) matchValues[i++] = variant.getRef();
+		if (altColumn >= 0) matchValues[i++] = variant.getAlt();
+		List<String []> rows;
+		try {
+			rows = store.query(prefix + variant.getSequence(), variant.getStart()-1, variant.getEnd(),
+					matchColumns, matchValues, valueColumns);
+		} catch (IOException ioe) {
+			throw new RuntimeException("Problem reading " + store.fileName, ioe);
+		}
+		for (String [] values : rows) {
+			i = 0;
+			for (String infoKey : fieldMap.values()) {
+				String value = values[i++];
+				if (! ("".equals(value) || ".".equals(value)) ) {
+					variant.putInfo(infoKey, value);
+				}
+			}
+		}
+		return variant;
+	}
+
+	@Override
+	public Set<String> infoKeysRead() {
+		return Collections.emptySet();
+	}
+
+	@Override
+	public Set<String> infoKeysWritten() {
+		return new LinkedHashSet<String>(fieldMap.values());
+	}
+
+	@Override
+	public String cacheIdentity() {
+		return "ColumnarTSVAnnotator " + new File(store.fileName).getAbsolutePath() + " " + fieldMap +
+				" ref=" + refColumn + " alt=" + altColumn + " prefix=" + prefix;
+	}
+
+	@Override
+	public String cacheVersion() {
+		return fileVersion(store.fileName);
+	}
+
+	@Override
+	public Iterable<String> infoLines() {
+		List<String> headers = null;
+		if (hasHeader && store.getHeader().length() > 0) {
+			headers = Arrays.asList(store.getHeader().split("\\t",-1));
+		}
+		return tsvColumns.infoLines(headers, store.getSourceFileName());
+	}
+
+	@Override
+	public String toString() {
+		return "ColumnarTSVAnnotator: " + store.fileName;
+	}
+}
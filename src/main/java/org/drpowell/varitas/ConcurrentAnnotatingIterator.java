@@ -0,0 +1,188 @@
+package org.drpowell.varitas;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.drpowell.vcf.VCFHeaders;
+import org.drpowell.vcf.VCFIterator;
+import org.drpowell.vcf.VCFMeta;
+import org.drpowell.vcf.VCFVariant;
+
+/**
+ * Applies a series of annotators, running independent annotators concurrently.
+ *
+ * The annotators are arranged into levels using the INFO keys that each reads and writes
+ * (see {@link Annotator#infoKeysRead()}): an annotator goes in a later level than any earlier
+ * annotator whose output it reads, whose input it overwrites, or which writes the same keys.
+ * Variants are taken from the client in batches, and the annotators of a level each annotate
+ * their own copies of the batch at the same time. The copies are merged back into the variants
+ * in the order the annotators were given, before the next level is started, so the results are
+ * the same as for a chain of {@link AnnotatingIterator}s (except that INFO entries from a later
+ * level come after those from an earlier level).
+ *
+ * @author bpow
+ */
+public class ConcurrentAnnotatingIterator implements VCFIterator {
+	public static final int DEFAULT_BATCH_SIZE = 256;
+	private final VCFIterator client;
+	private final List<Annotator> annotators;
+	private final List<List<Annotator>> levels;
+	private final int batchSize;
+	private ExecutorService executor;
+	private Iterator<VCFVariant> batch = Collections.<VCFVariant>emptyList().iterator();
+	private VCFHeaders headers = null;
+
+	public ConcurrentAnnotatingIterator(VCFIterator client, List<Annotator> annotators, int threads, int batchSize) {
+		this.client = client;
+		this.annotators = new ArrayList<Annotator>(annotators);
+		this.batchSize = batchSize;
+		levels = planLevels(this.annotators);
+		executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "annotator");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	static List<List<Annotator>> planLevels(List<Annotator> annotators) {
+		List<List<Annotator>> levels = new ArrayList<List<Annotator>>();
+		int [] levelOf = new int[annotators.size()];
+		for (int i = 0; i < annotators.size(); i++) {
+			int level = 0;
+			for (int j = 0; j < i; j++) {
+				if (levelOf[j] >= level && dependsOn(annotators.get(i), annotators.get(j))) {
+					level = levelOf[j] + 1;
+				}
+			}
+			levelOf[i] = level;
+			if (level == levels.size()) {
+				levels.add(new ArrayList<Annotator>());
+			}
+			levels.get(level).add(annotators.get(i));
+		}
+		return levels;
+	}
+
+	/**
+	 * @return true if annotator <code>a</code> must be run after the (earlier) annotator <code>b</code>
+	 */
+	static boolean dependsOn(Annotator a, Annotator b) {
+		Set<String> aRead = a.infoKeysRead(), aWritten = a.infoKeysWritten();
+		Set<String> bRead = b.infoKeysRead(), bWritten = b.infoKeysWritten();
+		if (aRead == null || aWritten == null || bRead == null || bWritten == null) {
+			return true;
+		}
+		return !Collections.disjoint(bWritten, aRead) || !Collections.disjoint(bWritten, aWritten) ||
+				!Collections.disjoint(bRead, aWritten);
+	}
+
+	@Override
+	public boolean hasNext() {
+		if (batch.hasNext()) return true;
+		if (!client.hasNext()) {
+			if (executor != null) {
+				executor.shutdown();
+				executor = null;
+			}
+			return false;
+		}
+		List<VCFVariant> variants = new ArrayList<VCFVariant>(batchSize);
+		while (variants.size() < batchSize && client.hasNext()) {
+			variants.add(client.next());
+		}
+		for (List<Annotator> level : levels) {
+			annotateLevel(level, variants);
+		}
+		batch = variants.iterator();
+		return true;
+	}
+
+	private void annotateLevel(List<Annotator> level, final List<VCFVariant> variants) {
+		if (level.size() == 1) {
+			level.get(0).annotateBatch(variants);
+			return;
+		}
+		int geneReaders = 0;
+		for (Annotator annotator : level) {
+			if (annotator.infoKeysRead().contains(GeneDictionary.GENE_KEY)) geneReaders++;
+		}
+		if (geneReaders > 1) {
+			// the gene numbers are saved with the variants, so they are worked out once rather than on each copy
+			for (VCFVariant v : variants) {
+				GeneDictionary.geneIds(v);
+			}
+		}
+		List<Future<List<VCFVariant>>> results = new ArrayList<Future<List<VCFVariant>>>(level.size());
+		for (final Annotator annotator : level) {
+			final Set<String> keysRead = annotator.infoKeysRead();
+			results.add(executor.submit(new Callable<List<VCFVariant>>() {
+				@Override
+				public List<VCFVariant> call() {
+					List<VCFVariant> sites = new ArrayList<VCFVariant>(variants.size());
+					for (VCFVariant v : variants) {
+						sites.add(v.copySite(keysRead));
+					}
+					return annotator.annotateBatch(sites);
+				}
+			}));
+		}
+		try {
+			// all of the copies need to be made before any are merged back
+			List<List<VCFVariant>> annotated = new ArrayList<List<VCFVariant>>(results.size());
+			for (Future<List<VCFVariant>> result : results) {
+				annotated.add(result.get());
+			}
+			for (List<VCFVariant> sites : annotated) {
+				for (int i = 0; i < variants.size(); i++) {
+					variants.get(i).mergeSite(sites.get(i));
+				}
+			}
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while annotating", ie);
+		} catch (ExecutionException ee) {
+			throw new RuntimeException("Problem while annotating", ee.getCause());
+		}
+	}
+
+	@Override
+	public VCFVariant next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		return batch.next();
+	}
+
+	@Override
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+	/** Built once, as for {@link AnnotatingIterator#getHeaders()}, so the same object is returned each time */
+	@Override
+	public synchronized VCFHeaders getHeaders() {
+		if (headers == null) {
+			headers = new VCFHeaders(client.getHeaders());
+			for (Annotator annotator : annotators) {
+				for (String info : annotator.infoLines()) {
+					headers.add(new VCFMeta(info));
+				}
+			}
+		}
+		return headers;
+	}
+
+}
@@ -4,19 +4,28 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
 
-import org.drpowell.util.FixedKeysMapFactory;
 import org.drpowell.vcf.VCFVariant;
 
-public class GeneAnnotator extends Annotator {
+public class GeneAnnotator extends Annotator implements Preloadable {
 	public final URL fileURL;
 	public final String annotatorName;
-	private final HashMap<String, Map<String, String> > data = new HashMap<String, Map<String, String> >();
+	/** row number for each {@link GeneDictionary} number, or -1 */
+	private int [] rowByGene = new int[0];
+	/** the INFO keys written, and for each the value in each row */
+	private String [] keys;
+	private String [][] columns;
 	private int keyColumn = 0;
 	private LinkedHashMap<Integer, String> fieldMap = new LinkedHashMap<Integer, String>();
 	private boolean initialized = false;
@@ -40,7 +49,20 @@ public class GeneAnnotator extends Annotator {
 			if (fieldMap.size() == 0) {
 				fieldMap.put(keyColumn, annotatorName);
 			}
-			FixedKeysMapFactory<String, String> mapFactory = new FixedKeysMapFactory<String, String>(fieldMap.values());
+			keys = fieldMap.values().toArray(new String[fieldMap.size()]);
+			int [] inputColumns = new int[keys.length];
+			int i = 0;
+			for (Integer column : fieldMap.keySet()) {
+				inputColumns[i++] = column;
+			}
+			List<List<String>> values = new ArrayList<List<String>>(keys.length);
+			List<Map<String, String>> distinct = new ArrayList<Map<String, String>>(keys.length);
+			for (i = 0; i < keys.length; i++) {
+				values.add(new ArrayList<String>());
+				distinct.add(new HashMap<String, String>());
+			}
+			int [] rows = new int[Math.max(16, GeneDictionary.size())];
+			Arrays.fill(rows, -1);
 			try {
 				BufferedReader reader = new BufferedReader(new InputStreamReader(fileURL.openStream()));
 				String line = null;
@@ -49,23 +71,43 @@ public class GeneAnnotator extends Annotator {
 						headers = line.split("\\t", -1);
 					}
 				}
+				int rowNumber = 0;
 				while ((line = reader.readLine()) != null) {
 					String [] row = line.split("\\t", -1);
 					// FIXME - use apache CSV or something else to allow for more than just tsv files
-					Map<String, String> map = mapFactory.newMap();
-					for (Entry<Integer, String> field : fieldMap.entrySet()) {
-						map.put(field.getValue(), row[field.getKey()]);
+					for (i = 0; i < keys.length; i++) {
+						// the same values are stored once
+						String value = row[inputColumns[i]];
+						String existing = distinct.get(i).get(value);
+						if (existing == null) distinct.get(i).put(value, existing = value);
+						values.get(i).add(existing);
 					}
-					data.put(row[keyColumn], map);
+					int gene = GeneDictionary.intern(row[keyColumn]);
+					if (gene >= rows.length) {
+						int oldLength = rows.length;
+						rows = Arrays.copyOf(rows, Math.max(gene + 1, oldLength * 2));
+						Arrays.fill(rows, oldLength, rows.length, -1);
+					}
+					rows[gene] = rowNumber++;
 				}
 				reader.close();
 			} catch (IOException e) {
 				e.printStackTrace();
 				throw new RuntimeException(e);
 			}
+			columns = new String[keys.length][];
+			for (i = 0; i < keys.length; i++) {
+				columns[i] = values.get(i).toArray(new String[values.get(i).size()]);
+			}
+			rowByGene = rows;
 		}
 	}
 
+	@Override
+	public void preload() {
+		ensureFileRead();
+	}
+
 	public GeneAnnotator hasHeader(boolean hasHeader) {
 		ensureUninitialized();
 		this.hasHeader = hasHeader;
@@ -97,20 +139,30 @@ public class GeneAnnotator extends Annotator {
 	
 	@Override
 	public VCFVariant annotate(VCFVariant variant) {
-		String varGenes = variant.getInfoValue("Gene_name");
-		if (varGenes != null) {
-			for (String vg: varGenes.split(",")) {
-				if (data.containsKey(vg)) {
-					// FIXME - handle multiple matches
-					for (Entry<String, String> entry : data.get(vg).entrySet()) {
-						variant.putInfo(entry.getKey(), entry.getValue());
-					}
+		ensureFileRead();
+		for (int gene : GeneDictionary.geneIds(variant)) {
+			int row = gene < rowByGene.length ? rowByGene[gene] : -1;
+			if (row >= 0) {
+				// FIXME - handle multiple matches
+				for (int i = 0; i < keys.length; i++) {
+					variant.putInfo(keys[i], columns[i][row]);
 				}
 			}
 		}
 		return variant;
 	}
 
+	@Override
+	public Set<String> infoKeysRead() {
+		return Collections.singleton(GeneDictionary.GENE_KEY);
+	}
+	
+	@Override
+	public Set<String> infoKeysWritten() {
+		if (fieldMap.isEmpty()) return Collections.singleton(annotatorName);
+		return new LinkedHashSet<String>(fieldMap.values());
+	}
+
 	@Override
 	public Iterable<String> infoLines() {
 		ensureFileRead();
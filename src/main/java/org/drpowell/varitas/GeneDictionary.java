@@ -0,0 +1,87 @@
+package org.drpowell.varitas;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.drpowell.vcf.VCFVariant;
+
+/**
+ * Process-wide numbering of gene symbols, so that gene-keyed annotators can keep their tables as arrays
+ * (or bitsets) indexed by gene number, and the Gene_name of a variant only needs to be split and looked
+ * up once no matter how many of those annotators are configured.
+ *
+ * @author bpow
+ */
+public final class GeneDictionary {
+	public static final String GENE_KEY = "Gene_name";
+	private static final int [] NO_GENES = new int[0];
+	private static final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<String, Integer>();
+	private static final List<String> symbols = new ArrayList<String>();
+	private static final Object OWNER = new Object();
+
+	private GeneDictionary() {}
+
+	/** @return the number for a gene symbol, which is assigned if it is new */
+	public static int intern(String symbol) {
+		Integer id = ids.get(symbol);
+		if (id != null) return id;
+		synchronized (symbols) {
+			id = ids.get(symbol);
+			if (id == null) {
+				id = symbols.size();
+				symbols.add(symbol);
+				ids.put(symbol, id);
+			}
+			return id;
+		}
+	}
+
+	/** @return the number for a gene symbol, or -1 if it has not been assigned one */
+	public static int find(String symbol) {
+		Integer id = ids.get(symbol);
+		return id == null ? -1 : id;
+	}
+
+	public static String symbol(int id) {
+		synchronized (symbols) {
+			return symbols.get(id);
+		}
+	}
+
+	/** The number of symbols assigned so far, which is larger than any number assigned. */
+	public static int size() {
+		return ids.size();
+	}
+
+	/**
+	 * The numbers of the genes in the Gene_name of a variant, in order (genes which have not been
+	 * assigned numbers are not in any table, so they are left out). The result is saved with the variant.
+	 */
+	public static int [] geneIds(VCFVariant variant) {
+		// symbols may have been added (by a table read later) since the saved result was computed
+		Object [] saved = (Object []) variant.getDerivedInfo(GENE_KEY, OWNER);
+		int size = size();
+		if (saved != null && (Integer) saved[0] == size) {
+			return (int []) saved[1];
+		}
+		int [] genes = NO_GENES;
+		String varGenes = variant.getInfoValue(GENE_KEY);
+		if (varGenes != null) {
+			String [] split = varGenes.split(",");
+			int n = 0;
+			genes = new int[split.length];
+			for (String vg : split) {
+				int id = find(vg);
+				if (id >= 0) genes[n++] = id;
+			}
+			if (n < genes.length) {
+				int [] found = new int[n];
+				System.arraycopy(genes, 0, found, 0, n);
+				genes = found;
+			}
+		}
+		variant.putDerivedInfo(GENE_KEY, OWNER, new Object[] {size, genes});
+		return genes;
+	}
+}
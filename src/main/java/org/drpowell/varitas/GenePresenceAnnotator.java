@@ -4,15 +4,17 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
-import java.util.HashSet;
+import java.util.BitSet;
+import java.util.Collections;
 import java.util.LinkedList;
+import java.util.Set;
 
 import org.drpowell.vcf.VCFVariant;
 
 public class GenePresenceAnnotator extends Annotator {
 	public final String fileName;
 	public final String annotatorName;
-	private final HashSet<String> geneNames = new HashSet<String>();
+	private final BitSet genes = new BitSet();
 	public final String infoLine;
 	
 	// FIXME - handle multiple columns
@@ -24,7 +26,7 @@ public class GenePresenceAnnotator extends Annotator {
 		String line;
 		while ((line = br.readLine()) != null) {
 			if (!line.equals("")) {
-				geneNames.add(line);
+				genes.set(GeneDictionary.intern(line));
 			}
 		}
 		br.close();
@@ -37,18 +39,25 @@ public class GenePresenceAnnotator extends Annotator {
 	
 	@Override
 	public VCFVariant annotate(VCFVariant variant) {
-		String varGenes = variant.getInfoValue("Gene_name");
-		if (varGenes != null) {
-			for (String vg: varGenes.split(",")) {
-				if (geneNames.contains(vg)) {
-					// FIXME - handle multiple matches
-					variant.putInfo(annotatorName, vg);
-				}
+		for (int gene : GeneDictionary.geneIds(variant)) {
+			if (genes.get(gene)) {
+				// FIXME - handle multiple matches
+				variant.putInfo(annotatorName, GeneDictionary.symbol(gene));
 			}
 		}
 		return variant;
 	}
 
+	@Override
+	public Set<String> infoKeysRead() {
+		return Collections.singleton(GeneDictionary.GENE_KEY);
+	}
+	
+	@Override
+	public Set<String> infoKeysWritten() {
+		return Collections.singleton(annotatorName);
+	}
+
 	@Override
 	public Iterable<String> infoLines() {
 		LinkedList<String> l = new LinkedList<String>();
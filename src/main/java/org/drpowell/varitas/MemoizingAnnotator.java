@@ -0,0 +1,166 @@
+package org.drpowell.varitas;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.drpowell.vcf.VCFVariant;
+
+/**
+ * Remembers what another annotator added to each site (chromosome, position, ref and alt), so that when
+ * the same site is seen again (e.g. in the next sample of a family or batch annotated in the same JVM)
+ * the annotations are copied instead of being looked up again.
+ *
+ * Only annotators which do not read any INFO keys (see {@link Annotator#infoKeysRead()}) can be memoized,
+ * since otherwise their results depend on more than the site. The least-recently used sites are dropped
+ * when the (approximate) memory used goes over a budget.
+ *
+ * @author bpow
+ */
+public class MemoizingAnnotator extends Annotator {
+	/** rough size of the objects for one entry (map entry, site and its INFO map), apart from the strings */
+	private static final int ENTRY_OVERHEAD = 400;
+	private static final VCFVariant NOTHING = new VCFVariant("0\t0\t.\tN\t.\t.\t.\t.");
+	private final Annotator delegate;
+	private final long maxBytes;
+	private long bytes = 0;
+	private long hits = 0, misses = 0;
+	private final LinkedHashMap<String, VCFVariant> memo = new LinkedHashMap<String, VCFVariant>(1024, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, VCFVariant> eldest) {
+			if (bytes > maxBytes) {
+				bytes -= entrySize(eldest.getKey(), eldest.getValue());
+				return true;
+			}
+			return false;
+		}
+	};
+
+	public MemoizingAnnotator(Annotator delegate, long maxBytes) {
+		if (!canMemoize(delegate)) {
+			throw new IllegalArgumentException(delegate + " reads INFO from variants, so it cannot be memoized");
+		}
+		this.delegate = delegate;
+		this.maxBytes = maxBytes;
+	}
+
+	public static boolean canMemoize(Annotator annotator) {
+		Set<String> read = annotator.infoKeysRead();
+		return read != null && read.isEmpty();
+	}
+
+	private static String key(VCFVariant variant) {
+		return variant.getSequence() + "\t" + variant.getStart() + "\t" + variant.getRef() + "\t" + variant.getAlt();
+	}
+
+	private static long entrySize(String key, VCFVariant site) {
+		return site == NOTHING ? 2 * key.length() + ENTRY_OVERHEAD / 2 : 2 * (key.length() + site.toString().length()) + ENTRY_OVERHEAD;
+	}
+
+	private synchronized VCFVariant recall(String key) {
+		VCFVariant site = memo.get(key);
+		if (site == null) {
+			misses++;
+		} else {
+			hits++;
+		}
+		return site;
+	}
+
+	private synchronized void remember(String key, VCFVariant site) {
+		if (".".equals(site.getID()) && site.toString().endsWith("\t.")) {
+			site = NOTHING;
+		}
+		bytes += entrySize(key, site);
+		VCFVariant old = memo.put(key, site);
+		if (old != null) bytes -= entrySize(key, old);
+	}
+
+	@Override
+	public VCFVariant annotate(VCFVariant variant) {
+		String key = key(variant);
+		VCFVariant site = recall(key);
+		if (site == null) {
+			site = variant.siteOnly();
+			delegate.annotate(site);
+			remember(key, site);
+		}
+		if (site != NOTHING) variant.mergeSite(site);
+		return variant;
+	}
+
+	/**
+	 * The sites which have not been seen before are annotated together, by the delegate's own
+	 * {@link Annotator#annotateBatch(List)}.
+	 */
+	@Override
+	public List<VCFVariant> annotateBatch(List<VCFVariant> variants) {
+		List<VCFVariant> missed = new ArrayList<VCFVariant>();
+		List<String> missedKeys = new ArrayList<String>();
+		List<VCFVariant> sites = new ArrayList<VCFVariant>();
+		for (VCFVariant variant : variants) {
+			String key = key(variant);
+			VCFVariant site = recall(key);
+			if (site == null) {
+				missed.add(variant);
+				missedKeys.add(key);
+				sites.add(variant.siteOnly());
+			} else if (site != NOTHING) {
+				variant.mergeSite(site);
+			}
+		}
+		if (!sites.isEmpty()) {
+			delegate.annotateBatch(sites);
+			for (int i = 0; i < sites.size(); i++) {
+				missed.get(i).mergeSite(sites.get(i));
+				remember(missedKeys.get(i), sites.get(i));
+			}
+		}
+		return variants;
+	}
+
+	public Annotator getDelegate() {
+		return delegate;
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	/** The fraction of sites which were found in the memo */
+	public synchronized double getHitRate() {
+		return hits + misses == 0 ? 0 : (double) hits / (hits + misses);
+	}
+
+	public synchronized String getStatistics() {
+		return String.format("%s: %d hits, %d misses (%.1f%%), %d sites (about %d kB) remembered",
+				delegate, hits, misses, 100 * getHitRate(), memo.size(), bytes / 1024);
+	}
+
+	@Override
+	public Set<String> infoKeysRead() {
+		return delegate.infoKeysRead();
+	}
+
+	@Override
+	public Set<String> infoKeysWritten() {
+		return delegate.infoKeysWritten();
+	}
+
+	@Override
+	public Iterable<String> infoLines() {
+		return delegate.infoLines();
+	}
+
+	@Override
+	public String toString() {
+		return "MemoizingAnnotator: " + delegate;
+	}
+}
@@ -0,0 +1,12 @@
+package org.drpowell.varitas;
+
+/**
+ * An annotator with a table which it reads when it is first needed, but which can be read ahead of
+ * time (so that the tables of several annotators can be read at the same time, see {@link Varitas}).
+ *
+ * @author bpow
+ */
+public interface Preloadable {
+	/** Read the table now, if it has not been read already. */
+	public void preload();
+}
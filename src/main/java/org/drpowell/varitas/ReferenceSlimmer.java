@@ -0,0 +1,302 @@
+package org.drpowell.varitas;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import net.sf.samtools.util.BlockCompressedInputStream;
+
+import org.drpowell.tabix.TabixBuilder;
+import org.drpowell.tabix.TabixIndex;
+import org.drpowell.tabix.TabixIndex.TabixConfig;
+import org.drpowell.tabix.TabixReader;
+import org.drpowell.util.AbstractPeekableIterator;
+import org.drpowell.util.LineIterator;
+import org.drpowell.vcf.VCFMeta;
+
+/**
+ * Writes slim copies of the reference files used by an annotation configuration.
+ *
+ * A slim copy of a VCF reference keeps only the INFO keys used by the configuration (and END,
+ * which is needed for indexing) and drops any FORMAT/sample columns. A slim copy of a tab-delimited
+ * reference has every unused column emptied, so that column numbers in the configuration remain valid.
+ * The slim copy (for example <code>data/dbNSFP2.0_variant.slim.gz</code> next to
+ * <code>data/dbNSFP2.0_variant.gz</code>) is compressed, indexed, and marked with a header line listing
+ * the fields which were kept.
+ *
+ * When a configuration is loaded, a slim copy is used instead of the original if it is newer than the
+ * original and has all of the fields requested.
+ *
+ * @author bpow
+ */
+public class ReferenceSlimmer {
+	/** Follows the comment character at the start of the header line listing the fields kept. */
+	static final String SLIM_MARKER = "#varitasSlim=";
+	private static Logger logger = Logger.getLogger(ReferenceSlimmer.class.getCanonicalName());
+
+	public static String slimFileName(String fileName) {
+		if (fileName.endsWith(".vcf.gz")) {
+			return fileName.substring(0, fileName.length() - ".vcf.gz".length()) + ".slim.vcf.gz";
+		} else if (fileName.endsWith(".gz")) {
+			return fileName.substring(0, fileName.length() - ".gz".length()) + ".slim.gz";
+		}
+		return fileName + ".slim.gz";
+	}
+
+	/**
+	 * @return the fields (INFO keys or column numbers) kept in a slim reference, or null if the reference is not slim
+	 */
+	static Set<String> slimFields(TabixReader reader) throws IOException {
+		String marker = reader.conf.commentString + SLIM_MARKER;
+		for (String header : reader.readHeaders()) {
+			if (header.startsWith(marker)) {
+				Set<String> fields = new LinkedHashSet<String>();
+				for (String field : header.substring(marker.length()).split(",")) {
+					if (field.length() > 0) fields.add(field);
+				}
+				return fields;
+			}
+		}
+		return null;
+	}
+
+	static boolean covers(TabixReader reader, Collection<String> fields) {
+		try {
+			Set<String> kept = slimFields(reader);
+			return kept == null || kept.containsAll(fields);
+		} catch (IOException ioe) {
+			logger.warning("Problem reading headers from " + reader.filename + "\n" + ioe);
+			return false;
+		}
+	}
+
+	/**
+	 * @return a reader for the slim copy of a reference if it is up-to-date and has all of the fields needed, or else the original reader
+	 */
+	static TabixReader preferSlim(TabixReader reader, Collection<String> fields) {
+		File original = new File(reader.filename);
+		File slim = new File(slimFileName(reader.filename));
+		File slimIndex = new File(slim.getPath() + ".tbi");
+		if (!slim.exists() || !slimIndex.exists()) return reader;
+		if (slim.lastModified() < original.lastModified()) {
+			logger.info(slim + " is older than " + original + ", so it will not be used");
+			return reader;
+		}
+		try {
+			TabixReader slimReader = new TabixReader(slim.getPath());
+			if (slimFields(slimReader) != null && covers(slimReader, fields)) {
+				return slimReader;
+			}
+			logger.info(slim + " lacks fields needed for annotation, so it will not be used");
+		} catch (IOException ioe) {
+			logger.warning("Problem reading " + slim + ", will use " + original + "\n" + ioe);
+		}
+		return reader;
+	}
+
+	/**
+	 * Write slim copies of all of the tabix-indexed references used by the given annotators. When more
+	 * than one annotator uses the same reference, the slim copy has all of the fields used by any of them.
+	 */
+	public static void slim(List<Annotator> annotators) throws IOException {
+		Map<String, TabixReader> readers = new LinkedHashMap<String, TabixReader>();
+		Map<String, Set<String>> vcfFields = new LinkedHashMap<String, Set<String>>();
+		Map<String, Set<String>> tsvFields = new LinkedHashMap<String, Set<String>>();
+		for (Annotator annotator : annotators) {
+			if (annotator instanceof TabixVCFAnnotator) {
+				TabixVCFAnnotator a = (TabixVCFAnnotator) annotator;
+				addFields(vcfFields, readers, a.getSource(), a.getSourceFields());
+			} else if (annotator instanceof TabixTSVAnnotator) {
+				TabixTSVAnnotator a = (TabixTSVAnnotator) annotator;
+				addFields(tsvFields, readers, a.getSource(), a.getSourceFields());
+			}
+		}
+		for (Map.Entry<String, Set<String>> e : vcfFields.entrySet()) {
+			if (tsvFields.containsKey(e.getKey())) {
+				logger.warning(e.getKey() + " is used as both a VCF and a tab-delimited reference, so it will not be slimmed");
+				tsvFields.remove(e.getKey());
+				continue;
+			}
+			writeSlim(readers.get(e.getKey()), new VCFSlimmer(e.getValue()));
+		}
+		for (Map.Entry<String, Set<String>> e : tsvFields.entrySet()) {
+			TabixReader reader = readers.get(e.getKey());
+			writeSlim(reader, new TSVSlimmer(reader.conf, e.getValue()));
+		}
+	}
+
+	private static void addFields(Map<String, Set<String>> fieldsByFile, Map<String, TabixReader> readers,
+			TabixReader reader, Collection<String> fields) {
+		Set<String> fileFields = fieldsByFile.get(reader.filename);
+		if (fileFields == null) {
+			fileFields = new LinkedHashSet<String>();
+			fieldsByFile.put(reader.filename, fileFields);
+			readers.put(reader.filename, reader);
+		}
+		fileFields.addAll(fields);
+	}
+
+	private static void writeSlim(TabixReader reader, final LineSlimmer slimmer) throws IOException {
+		String slimName = slimFileName(reader.filename);
+		logger.info("Writing " + slimName + " with fields " + slimmer.fields);
+		final TabixConfig config = reader.conf;
+		final LineIterator lines = new LineIterator(new BufferedReader(new InputStreamReader(
+				new BlockCompressedInputStream(new File(reader.filename)))));
+		Iterator<String> slimLines = new AbstractPeekableIterator<String>() {
+			private int linesToSkip = config.linesToSkip;
+			private boolean started = false, markerWritten = false;
+			@Override
+			protected String computeNext() {
+				while (lines.hasNext()) {
+					String line = lines.peek();
+					boolean header = linesToSkip > 0 || line.startsWith(config.commentString);
+					if (!markerWritten && (!header || started && linesToSkip <= 0)) {
+						// after the first header line (so any column header stays first), but before the data
+						markerWritten = true;
+						return config.commentString + SLIM_MARKER + join(slimmer.fields);
+					}
+					lines.next();
+					linesToSkip--;
+					String slimLine = header ? slimmer.slimHeader(line) : slimmer.slimRecord(line);
+					if (slimLine != null) {
+						started = true;
+						return slimLine;
+					}
+				}
+				return endOfData();
+			}
+		};
+		TabixIndex index = TabixBuilder.buildIndex(slimLines, slimName, config);
+		lines.reader.close();
+		index.save();
+	}
+
+	private static String join(Collection<String> fields) {
+		StringBuilder sb = new StringBuilder();
+		for (String field : fields) {
+			if (sb.length() > 0) sb.append(',');
+			sb.append(field);
+		}
+		return sb.toString();
+	}
+
+	private static abstract class LineSlimmer {
+		final Set<String> fields;
+		LineSlimmer(Set<String> fields) {
+			this.fields = fields;
+		}
+		/** @return the header line for the slim file, or null to omit it */
+		abstract String slimHeader(String line);
+		abstract String slimRecord(String line);
+	}
+
+	private static class VCFSlimmer extends LineSlimmer {
+		VCFSlimmer(Set<String> infoKeys) {
+			super(infoKeys);
+		}
+
+		@Override
+		String slimHeader(String line) {
+			if (line.startsWith("##INFO=")) {
+				String id = new VCFMeta(line).getValue("ID");
+				return (fields.contains(id) || "END".equals(id)) ? line : null;
+			} else if (line.startsWith("##FORMAT=")) {
+				return null;
+			} else if (line.startsWith("#CHROM")) {
+				return firstColumns(line, 8);
+			}
+			return line;
+		}
+
+		@Override
+		String slimRecord(String line) {
+			String [] row = line.split("\t", 9);
+			if (row.length < 8) return line;
+			StringBuilder sb = new StringBuilder(line.length() / 2);
+			for (int i = 0; i < 7; i++) {
+				sb.append(row[i]).append('\t');
+			}
+			int infoStart = sb.length();
+			for (String entry : row[7].split(";")) {
+				int eq = entry.indexOf('=');
+				String key = eq < 0 ? entry : entry.substring(0, eq);
+				if (fields.contains(key) || "END".equals(key)) {
+					if (sb.length() > infoStart) sb.append(';');
+					sb.append(entry);
+				}
+			}
+			if (sb.length() == infoStart) sb.append('.');
+			return sb.toString();
+		}
+
+		private static String firstColumns(String line, int columns) {
+			int end = -1;
+			for (int i = 0; i < columns; i++) {
+				end = line.indexOf('\t', end + 1);
+				if (end < 0) return line;
+			}
+			return line.substring(0, end);
+		}
+	}
+
+	private static class TSVSlimmer extends LineSlimmer {
+		private final boolean [] keep;
+
+		TSVSlimmer(TabixConfig config, Set<String> columns) {
+			super(columns);
+			int maxColumn = Math.max(config.seqCol, Math.max(config.beginCol, config.endCol));
+			for (String column : columns) {
+				maxColumn = Math.max(maxColumn, Integer.parseInt(column));
+			}
+			keep = new boolean[maxColumn];
+			for (String column : columns) {
+				keep[Integer.parseInt(column) - 1] = true;
+			}
+			keep[config.seqCol - 1] = keep[config.beginCol - 1] = true;
+			if (config.endCol > 0) keep[config.endCol - 1] = true;
+		}
+
+		@Override
+		String slimHeader(String line) {
+			return line;
+		}
+
+		@Override
+		String slimRecord(String line) {
+			String [] row = line.split("\t", -1);
+			StringBuilder sb = new StringBuilder(line.length() / 2);
+			for (int i = 0; i < row.length; i++) {
+				if (i > 0) sb.append('\t');
+				if (i < keep.length && keep[i]) sb.append(row[i]);
+			}
+			return sb.toString();
+		}
+	}
+
+	public static void main(String... args) throws IOException {
+		if (args.length == 0) {
+			System.err.println("Usage: java -jar varitas.jar slim <config.js | -C> ...");
+			System.exit(-1);
+		}
+		Varitas varitas = new Varitas();
+		varitas.setPreferSlimReferences(false);
+		for (String arg : args) {
+			if ("-C".equals(arg) || "--defaultConfig".equals(arg)) {
+				varitas.applyDefaultConfig();
+			} else {
+				varitas.applyConfig(arg);
+			}
+		}
+		slim(varitas.getAnnotators());
+	}
+
+}
@@ -0,0 +1,370 @@
+package org.drpowell.varitas;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+
+import org.drpowell.util.FileUtils;
+import org.drpowell.vcf.VCFMeta;
+import org.drpowell.vcf.VCFVariant;
+
+/**
+ * Annotates variants which overlap regions from a BED or GFF file (e.g. capture targets, segmental
+ * duplications or repeats), either with a flag or with values from columns of the overlapping regions.
+ *
+ * The regions are read into memory when first needed: for each chromosome, the starts, ends and values
+ * are kept in arrays sorted by start, along with the greatest end so far, so that the regions overlapping
+ * a variant are found by a binary search and a short scan back. The arrays for each chromosome are sorted
+ * at the same time. If the variants are sorted by position (see {@link #setSortedInput(boolean)}), the
+ * regions are instead swept along with them.
+ *
+ * @author bpow
+ */
+public class RegionAnnotator extends Annotator implements Preloadable {
+	private static Logger logger = Logger.getLogger(RegionAnnotator.class.getCanonicalName());
+	public final String fileName;
+	private final boolean gff;
+	/** the column (0-based) for each INFO key, or -1 for a flag */
+	private final Map<String, Integer> fieldMap = new LinkedHashMap<String, Integer>();
+	private final Map<String, String> descriptionMap = new HashMap<String, String>();
+	private final String [] keys;
+	/** the columns of the file which are kept, and for each key its index among them (or -1 for a flag) */
+	private final int [] sourceColumns;
+	private final int [] valueColumns;
+	private Map<String, Regions> regionsByChromosome = null;
+	private boolean sortedInput = false;
+	private Regions sweepRegions = null;
+	private int sweepNext, sweepBegin;
+	private int [] sweepActive = new int[16];
+	private int sweepActiveCount;
+	private boolean warnedUnsorted = false;
+
+	/** The regions on one chromosome, sorted by start */
+	private static class Regions {
+		final int [] starts, ends, maxEnds;
+		/** for each value column, the value for each region */
+		final String [][] values;
+
+		Regions(int [] starts, int [] ends, String [][] values) {
+			this.starts = starts;
+			this.ends = ends;
+			this.values = values;
+			maxEnds = new int[ends.length];
+			int max = Integer.MIN_VALUE;
+			for (int i = 0; i < ends.length; i++) {
+				maxEnds[i] = max = Math.max(max, ends[i]);
+			}
+		}
+
+		/** @return the regions overlapping [begin, end), in order of start */
+		int [] overlapping(int begin, int end) {
+			int lo = 0, hi = starts.length;
+			while (lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if (starts[mid] < end) {
+					lo = mid + 1;
+				} else {
+					hi = mid;
+				}
+			}
+			int n = 0;
+			int [] found = null;
+			for (int i = lo - 1; i >= 0 && maxEnds[i] > begin; i--) {
+				if (ends[i] > begin) {
+					if (found == null) found = new int[4];
+					if (n == found.length) found = Arrays.copyOf(found, n * 2);
+					found[n++] = i;
+				}
+			}
+			if (found == null) return NONE;
+			int [] result = new int[n];
+			for (int i = 0; i < n; i++) {
+				result[i] = found[n - 1 - i];
+			}
+			return result;
+		}
+	}
+
+	private static final int [] NONE = new int[0];
+
+	/**
+	 * @param fields comma-separated INFO keys: <code>KEY</code> for a flag, or <code>column=KEY</code> for the
+	 * values in a column (1-based) of the overlapping regions, either optionally followed by <code>:description</code>
+	 */
+	public RegionAnnotator(String fileName, String fields) {
+		this.fileName = fileName;
+		String lower = fileName.toLowerCase();
+		gff = lower.matches(".*\\.(gff|gff3|gtf)(\\.gz)?$");
+		for (String field : fields.split(",")) {
+			int colon = field.indexOf(':');
+			String description = null;
+			if (colon >= 0) {
+				description = '"' + field.substring(colon + 1) + '"';
+				field = field.substring(0, colon);
+			}
+			int eq = field.indexOf('=');
+			String key = eq < 0 ? field : field.substring(eq + 1);
+			fieldMap.put(key, eq < 0 ? -1 : Integer.valueOf(field.substring(0, eq)) - 1);
+			descriptionMap.put(key, description);
+		}
+		keys = fieldMap.keySet().toArray(new String[fieldMap.size()]);
+		valueColumns = new int[keys.length];
+		List<Integer> used = new ArrayList<Integer>();
+		for (int i = 0; i < keys.length; i++) {
+			int column = fieldMap.get(keys[i]);
+			if (column >= 0 && !used.contains(column)) used.add(column);
+			valueColumns[i] = column < 0 ? -1 : used.indexOf(column);
+		}
+		sourceColumns = new int[used.size()];
+		for (int i = 0; i < sourceColumns.length; i++) {
+			sourceColumns[i] = used.get(i);
+		}
+	}
+
+	/**
+	 * Indicate that the variants will come in order of position (within each chromosome), so that the
+	 * regions can be swept along with them instead of being searched for each variant.
+	 */
+	public RegionAnnotator setSortedInput(boolean sorted) {
+		sortedInput = sorted;
+		return this;
+	}
+
+	/** growable columns for the regions of one chromosome, as they are read */
+	private static class RegionList {
+		int [] starts = new int[64], ends = new int[64];
+		final List<List<String>> values = new ArrayList<List<String>>();
+		int size = 0;
+
+		RegionList(int valueColumns) {
+			for (int i = 0; i < valueColumns; i++) {
+				values.add(new ArrayList<String>());
+			}
+		}
+
+		void add(int start, int end, String [] rowValues) {
+			if (size == starts.length) {
+				starts = Arrays.copyOf(starts, size * 2);
+				ends = Arrays.copyOf(ends, size * 2);
+			}
+			starts[size] = start;
+			ends[size++] = end;
+			for (int i = 0; i < rowValues.length; i++) {
+				values.get(i).add(rowValues[i]);
+			}
+		}
+
+		Regions sort() {
+			long [] order = new long[size];
+			for (int i = 0; i < size; i++) {
+				order[i] = ((long) starts[i] << 32) | i;
+			}
+			Arrays.sort(order);
+			int [] sortedStarts = new int[size], sortedEnds = new int[size];
+			String [][] sortedValues = new String[values.size()][size];
+			for (int i = 0; i < size; i++) {
+				int from = (int) order[i];
+				sortedStarts[i] = starts[from];
+				sortedEnds[i] = ends[from];
+				for (int j = 0; j < sortedValues.length; j++) {
+					sortedValues[j][i] = values.get(j).get(from);
+				}
+			}
+			return new Regions(sortedStarts, sortedEnds, sortedValues);
+		}
+	}
+
+	@Override
+	public void preload() {
+		ensureRegionsRead();
+	}
+
+	synchronized final void ensureRegionsRead() {
+		if (regionsByChromosome != null) return;
+		int [] columns = sourceColumns;
+		final Map<String, RegionList> lists = new LinkedHashMap<String, RegionList>();
+		Map<String, String> distinct = new HashMap<String, String>();
+		int chromosomeColumn = 0, startColumn = gff ? 3 : 1, endColumn = gff ? 4 : 2;
+		try {
+			BufferedReader reader = FileUtils.filenameToBufferedReader(fileName);
+			String line;
+			String [] rowValues = new String[columns.length];
+			while ((line = reader.readLine()) != null) {
+				if (line.length() == 0 || line.startsWith("#") || line.startsWith("track") || line.startsWith("browser")) {
+					continue;
+				}
+				String [] row = line.split("\t", -1);
+				int start = Integer.parseInt(row[startColumn]);
+				if (gff) start--; // GFF is 1-based and inclusive, BED is 0-based and half-open
+				int end = Integer.parseInt(row[endColumn]);
+				for (int i = 0; i < columns.length; i++) {
+					// the same values are stored once
+					String value = columns[i] < row.length ? row[columns[i]] : "";
+					String existing = distinct.get(value);
+					if (existing == null) distinct.put(value, existing = value);
+					rowValues[i] = existing;
+				}
+				RegionList list = lists.get(row[chromosomeColumn]);
+				if (list == null) {
+					list = new RegionList(columns.length);
+					lists.put(row[chromosomeColumn], list);
+				}
+				list.add(start, end, rowValues);
+			}
+			reader.close();
+		} catch (IOException ioe) {
+			throw new RuntimeException("Problem reading regions from " + fileName, ioe);
+		}
+		// each chromosome is sorted separately, at the same time
+		Map<String, Future<Regions>> sorting = new LinkedHashMap<String, Future<Regions>>();
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(lists.size(), Runtime.getRuntime().availableProcessors())));
+		Map<String, Regions> regions = new HashMap<String, Regions>();
+		try {
+			for (final Map.Entry<String, RegionList> e : lists.entrySet()) {
+				sorting.put(e.getKey(), executor.submit(new Callable<Regions>() {
+					@Override
+					public Regions call() {
+						return e.getValue().sort();
+					}
+				}));
+			}
+			for (Map.Entry<String, Future<Regions>> e : sorting.entrySet()) {
+				regions.put(e.getKey(), e.getValue().get());
+			}
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while sorting regions from " + fileName, ie);
+		} catch (ExecutionException ee) {
+			throw new RuntimeException("Problem while sorting regions from " + fileName, ee.getCause());
+		} finally {
+			executor.shutdown();
+		}
+		regionsByChromosome = regions;
+	}
+
+	/** @return the regions overlapping [begin, end), sweeping if the input is sorted */
+	private synchronized int [] sweep(Regions regions, int begin, int end) {
+		if (regions != sweepRegions) {
+			sweepRegions = regions;
+			sweepNext = 0;
+			sweepActiveCount = 0;
+		} else if (begin < sweepBegin) {
+			if (!warnedUnsorted) {
+				warnedUnsorted = true;
+				logger.warning("Variants are not sorted, so regions from " + fileName + " will be searched for instead");
+			}
+			return regions.overlapping(begin, end);
+		}
+		sweepBegin = begin;
+		while (sweepNext < regions.starts.length && regions.starts[sweepNext] < end) {
+			if (sweepActiveCount == sweepActive.length) sweepActive = Arrays.copyOf(sweepActive, sweepActiveCount * 2);
+			sweepActive[sweepActiveCount++] = sweepNext++;
+		}
+		int kept = 0, n = 0;
+		for (int i = 0; i < sweepActiveCount; i++) {
+			int region = sweepActive[i];
+			if (regions.ends[region] > begin) {
+				sweepActive[kept++] = region;
+				if (regions.starts[region] < end) n++;
+			}
+		}
+		sweepActiveCount = kept;
+		if (n == 0) return NONE;
+		int [] result = new int[n];
+		n = 0;
+		for (int i = 0; i < sweepActiveCount; i++) {
+			if (regions.starts[sweepActive[i]] < end) result[n++] = sweepActive[i];
+		}
+		return result;
+	}
+
+	@Override
+	public VCFVariant annotate(VCFVariant variant) {
+		ensureRegionsRead();
+		Regions regions = regionsByChromosome.get(prefix + variant.getSequence());
+		if (regions == null) return variant;
+		int begin = variant.getStart() - 1, end = variant.getEnd();
+		int [] found = sortedInput ? sweep(regions, begin, end) : regions.overlapping(begin, end);
+		if (found.length == 0) return variant;
+		for (int i = 0; i < keys.length; i++) {
+			if (valueColumns[i] < 0) {
+				variant.putInfoFlag(keys[i]);
+				continue;
+			}
+			String [] column = regions.values[valueColumns[i]];
+			Set<String> values = new LinkedHashSet<String>();
+			for (int region : found) {
+				String value = column[region];
+				if (! ("".equals(value) || ".".equals(value)) ) {
+					values.add(value);
+				}
+			}
+			if (!values.isEmpty()) {
+				variant.putInfo(keys[i], values.toArray(new String[values.size()]));
+			}
+		}
+		return variant;
+	}
+
+	@Override
+	public Set<String> infoKeysRead() {
+		return Collections.emptySet();
+	}
+
+	@Override
+	public Set<String> infoKeysWritten() {
+		return new LinkedHashSet<String>(fieldMap.keySet());
+	}
+
+	@Override
+	public String cacheIdentity() {
+		return "RegionAnnotator " + new File(fileName).getAbsolutePath() + " " + fieldMap + " prefix=" + prefix;
+	}
+
+	@Override
+	public String cacheVersion() {
+		return fileVersion(fileName);
+	}
+
+	@Override
+	public Iterable<String> infoLines() {
+		List<String> infos = new ArrayList<String>();
+		for (Map.Entry<String, Integer> entry : fieldMap.entrySet()) {
+			LinkedHashMap<String, String> infoValues = new LinkedHashMap<String, String>();
+			infoValues.put("ID", entry.getKey());
+			String description = descriptionMap.get(entry.getKey());
+			if (entry.getValue() < 0) {
+				infoValues.put("Number", "0");
+				infoValues.put("Type", "Flag");
+				if (description == null) description = "\"Overlaps a region from " + fileName + "\"";
+			} else {
+				infoValues.put("Number", ".");
+				infoValues.put("Type", "String");
+				if (description == null) description = "\"Column " + (entry.getValue() + 1) + " of overlapping regions from " + fileName + "\"";
+			}
+			infoValues.put("Description", description);
+			infos.add(new VCFMeta("INFO", infoValues).toString());
+		}
+		return infos;
+	}
+
+	@Override
+	public String toString() {
+		return "RegionAnnotator: " + fileName;
+	}
+}
@@ -0,0 +1,234 @@
+package org.drpowell.varitas;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.logging.Logger;
+
+import org.drpowell.tabix.DelimitedString;
+import org.drpowell.tabix.GenomicInterval;
+import org.drpowell.tabix.TabixIndex;
+import org.drpowell.tabix.TabixReader;
+import org.drpowell.util.FileUtils;
+import org.drpowell.vcf.VCFVariant;
+
+/**
+ * A Bloom filter of the sites in a tabix-indexed reference, kept next to it (<code>reference.gz.vbf</code>),
+ * so that annotators can skip the index lookup for variants which are certainly not in the reference.
+ *
+ * For a VCF reference, the filter holds each (chrom, pos, ref, alt) as {@link TabixVCFAnnotator} matches
+ * them. For other references, which are matched by overlap, it holds every position covered by a line.
+ * The filter is memory-mapped, and records the size and modification time of its reference so that it
+ * is not used if the reference changes.
+ *
+ * @author bpow
+ */
+public class SiteFilter {
+	public static final String SUFFIX = ".vbf";
+	public static final double DEFAULT_FALSE_POSITIVE_RATE = 0.01;
+	/** lines covering more positions than this make a reference unsuitable for a filter */
+	static final int MAX_POSITIONS_PER_LINE = 10000;
+	/** a filter which would pass more than this fraction of the variants not in its reference is not built */
+	static final double MAX_USEFUL_FALSE_POSITIVE_RATE = 0.5;
+	private static final byte [] MAGIC = {'V', 'B', 'F', 1};
+	/** magic, byPosition, reference length and time, hashes, bits */
+	private static final int HEADER_LENGTH = MAGIC.length + 1 + 8 + 8 + 4 + 8;
+	/** the most bits (in whole words) which can be mapped at once, after the header */
+	private static final long MAX_BITS = (Integer.MAX_VALUE - HEADER_LENGTH) / 8 * 64L;
+	private static Logger logger = Logger.getLogger(SiteFilter.class.getCanonicalName());
+
+	public final String fileName;
+	private final boolean byPosition;
+	private final int hashes;
+	private final long bits;
+	private final LongBuffer words;
+
+	private SiteFilter(String fileName, boolean byPosition, int hashes, long bits, LongBuffer words) {
+		this.fileName = fileName;
+		this.byPosition = byPosition;
+		this.hashes = hashes;
+		this.bits = bits;
+		this.words = words;
+	}
+
+	/**
+	 * The filter for a reference, if one has been built and the reference has not changed since.
+	 *
+	 * @return null if there is no (usable) filter
+	 */
+	public static SiteFilter forReference(String referenceName) {
+		File file = new File(referenceName + SUFFIX);
+		if (!file.exists()) return null;
+		try {
+			RandomAccessFile raf = new RandomAccessFile(file, "r");
+			try {
+				byte [] magic = new byte[MAGIC.length];
+				raf.readFully(magic);
+				if (!Arrays.equals(magic, MAGIC)) {
+					throw new IOException(file + " is not a site filter");
+				}
+				boolean byPosition = raf.readBoolean();
+				File reference = new File(referenceName);
+				if (raf.readLong() != reference.length() || raf.readLong() != reference.lastModified()) {
+					logger.warning(referenceName + " has changed since " + file + " was built, so it will not be used");
+					return null;
+				}
+				int hashes = raf.readInt();
+				long bits = raf.readLong();
+				if (bits <= 0 || bits > MAX_BITS) {
+					throw new IOException(file + " has " + bits + " bits, more than can be used");
+				}
+				long start = raf.getFilePointer();
+				LongBuffer words = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, start, words(bits) * 8).asLongBuffer();
+				return new SiteFilter(file.getPath(), byPosition, hashes, bits, words);
+			} finally {
+				raf.close();
+			}
+		} catch (IOException ioe) {
+			logger.warning("Unable to read " + file + ": " + ioe);
+			return null;
+		} catch (IllegalArgumentException iae) {
+			// e.g. from mapping the file, without a filter the variants are just looked up
+			logger.warning("Unable to use " + file + ": " + iae);
+			return null;
+		}
+	}
+
+	private static long words(long bits) {
+		return (bits + 63) >>> 6;
+	}
+
+	private static long bit(long hash, int i, long bits) {
+		// double hashing, from the two halves of the fingerprint
+		long combined = hash + i * ((hash >>> 32) | 1);
+		return (combined & Long.MAX_VALUE) % bits;
+	}
+
+	private boolean mightContain(long hash) {
+		for (int i = 0; i < hashes; i++) {
+			long b = bit(hash, i, bits);
+			if ((words.get((int) (b >>> 6)) & (1L << (b & 63))) == 0) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @param chrom the chromosome as it is named in the reference
+	 * @return false if the reference certainly has nothing for the variant
+	 */
+	public boolean mightMatch(String chrom, VCFVariant variant) {
+		if (!byPosition) {
+			return mightContain(AlleleHashStore.fingerprint(chrom, variant.getStart(), variant.getRef(), variant.getAlt()));
+		}
+		for (int pos = variant.getStart(); pos <= variant.getEnd(); pos++) {
+			if (mightContain(AlleleHashStore.fingerprint(chrom, pos, "", ""))) return true;
+		}
+		return false;
+	}
+
+	/** Calls a method for each key of a reference line */
+	private static abstract class KeyVisitor {
+		abstract void visit(long hash);
+	}
+
+	private static void readKeys(TabixReader reader, KeyVisitor visitor) throws IOException {
+		TabixIndex index = reader.getIndex();
+		boolean vcf = (reader.conf.preset & 0xffff) == TabixIndex.TBX_PRESET_VCF;
+		BufferedReader lines = FileUtils.filenameToBufferedReader(reader.filename);
+		try {
+			String line;
+			int skip = reader.conf.linesToSkip;
+			while ((line = lines.readLine()) != null) {
+				if (skip > 0) {
+					skip--;
+					continue;
+				}
+				if (line.length() == 0 || line.startsWith(reader.conf.commentString)) continue;
+				DelimitedString row = new DelimitedString(line, '\t', index.intervalColumns());
+				String chrom = row.get(reader.conf.seqCol - 1);
+				if (vcf) {
+					visitor.visit(AlleleHashStore.fingerprint(chrom, Integer.parseInt(row.get(1)), row.get(3), row.get(4)));
+				} else {
+					GenomicInterval interval = index.getInterval(row);
+					if (interval.getEnd() - interval.getBegin() > MAX_POSITIONS_PER_LINE) {
+						throw new IOException("A line of " + reader.filename + " covers more than " + MAX_POSITIONS_PER_LINE +
+								" positions, so it is not suitable for a site filter:\n" + line);
+					}
+					for (int pos = interval.getBegin() + 1; pos <= interval.getEnd(); pos++) {
+						visitor.visit(AlleleHashStore.fingerprint(chrom, pos, "", ""));
+					}
+				}
+			}
+		} finally {
+			lines.close();
+		}
+	}
+
+	/**
+	 * Write the filter for a (tabix-indexed) reference, sized for the given false positive rate.
+	 */
+	public static void build(String referenceName, double falsePositiveRate) throws IOException {
+		TabixReader reader = new TabixReader(referenceName);
+		final long [] count = new long[1];
+		readKeys(reader, new KeyVisitor() {
+			@Override
+			void visit(long hash) {
+				count[0]++;
+			}
+		});
+		long n = Math.max(1, count[0]);
+		final long bits = Math.min(MAX_BITS, Math.max(64, (long) Math.ceil(-n * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)))));
+		final int hashes = Math.max(1, (int) Math.round((double) bits / n * Math.log(2)));
+		double expectedRate = Math.pow(1 - Math.exp(-(double) hashes * n / bits), hashes);
+		if (expectedRate > MAX_USEFUL_FALSE_POSITIVE_RATE) {
+			throw new IOException(String.format("A site filter for %s (with %d keys) would pass %.0f%% of the variants " +
+					"not in it, so it is not built", referenceName, count[0], 100 * expectedRate));
+		}
+		if (bits == MAX_BITS) {
+			logger.warning(String.format("The site filter for %s is as large as it can be, and will pass %.1f%% of the variants " +
+					"not in it", referenceName, 100 * expectedRate));
+		}
+		final long [] words = new long[(int) words(bits)];
+		readKeys(reader, new KeyVisitor() {
+			@Override
+			void visit(long hash) {
+				for (int i = 0; i < hashes; i++) {
+					long b = bit(hash, i, bits);
+					words[(int) (b >>> 6)] |= 1L << (b & 63);
+				}
+			}
+		});
+		File reference = new File(referenceName);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(referenceName + SUFFIX), 1 << 16));
+		try {
+			out.write(MAGIC);
+			out.writeBoolean((reader.conf.preset & 0xffff) != TabixIndex.TBX_PRESET_VCF);
+			out.writeLong(reference.length());
+			out.writeLong(reference.lastModified());
+			out.writeInt(hashes);
+			out.writeLong(bits);
+			for (long word : words) {
+				out.writeLong(word);
+			}
+		} finally {
+			out.close();
+		}
+		logger.info(String.format("Wrote %s%s: %d keys, %d bits, %d hashes", referenceName, SUFFIX, count[0], bits, hashes));
+	}
+
+	public static void main(String... args) throws IOException {
+		if (args.length < 1) {
+			System.err.println("Usage: java -jar varitas.jar build-filter <reference.gz> [false positive rate (default " +
+					DEFAULT_FALSE_POSITIVE_RATE + ")]");
+			System.exit(-1);
+		}
+		build(args[0], args.length > 1 ? Double.parseDouble(args[1]) : DEFAULT_FALSE_POSITIVE_RATE);
+	}
+}
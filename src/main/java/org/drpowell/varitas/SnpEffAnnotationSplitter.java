@@ -2,8 +2,9 @@ package org.drpowell.varitas;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
-import java.util.regex.Pattern;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 
 import org.drpowell.vcf.VCFVariant;
 
@@ -23,6 +24,8 @@ import org.drpowell.vcf.VCFVariant;
 public class SnpEffAnnotationSplitter extends Annotator {
 	
 	public static final String SNPEFF_INFO_TAG = "EFF";
+	public static final String ANN_INFO_TAG = "ANN";
+	public static final String GENE_EFFECTS_TAG = "Gene_effects";
 	public static final String SNPEFF_FIELD_DELIMITER = "|";
 	public static final String [] EXTRA_HEADERS = {
 		"##INFO=<ID=EFFECT,Number=.,Type=String,Description=\"Effect type of the change (from SnpEffect)\">",
@@ -31,25 +34,44 @@ public class SnpEffAnnotationSplitter extends Annotator {
 	};
 	
 	/**
-	 * The effect types produced by SnpEff.
+	 * The effect types produced by SnpEff, with the corresponding Sequence Ontology terms used in the
+	 * ANN field by later versions.
 	 * 
 	 * The order is as per http://snpeff.sourceforge.net/faq.html#How_is_impact_categorized?_(VCF_output)
 	 *
 	 */
 	public enum Effect {
 		// HIGH
-		SPLICE_SITE_ACCEPTOR, SPLICE_SITE_DONOR, START_LOST, EXON_DELETED, FRAME_SHIFT,
-		STOP_GAINED, STOP_LOST,	RARE_AMINO_ACID,
+		SPLICE_SITE_ACCEPTOR("splice_acceptor_variant"), SPLICE_SITE_DONOR("splice_donor_variant"),
+		START_LOST("start_lost"), EXON_DELETED("exon_loss_variant", "transcript_ablation"),
+		FRAME_SHIFT("frameshift_variant"), STOP_GAINED("stop_gained"), STOP_LOST("stop_lost"),
+		RARE_AMINO_ACID("rare_amino_acid_variant"),
 		// MODERATE
-		NON_SYNONYMOUS_CODING, CODON_CHANGE, CODON_INSERTION, CODON_CHANGE_PLUS_CODON_INSERTION,
-		CODON_DELETION, CODON_CHANGE_PLUS_CODON_DELETION, UTR_5_DELETED, UTR_3_DELETED,
+		NON_SYNONYMOUS_CODING("missense_variant"), CODON_CHANGE(),
+		CODON_INSERTION("inframe_insertion", "conservative_inframe_insertion"),
+		CODON_CHANGE_PLUS_CODON_INSERTION("disruptive_inframe_insertion"),
+		CODON_DELETION("inframe_deletion", "conservative_inframe_deletion"),
+		CODON_CHANGE_PLUS_CODON_DELETION("disruptive_inframe_deletion"),
+		UTR_5_DELETED("5_prime_UTR_truncation"), UTR_3_DELETED("3_prime_UTR_truncation"),
 		// LOW
-		SYNONYMOUS_START, NON_SYNONYMOUS_START, START_GAINED, SYNONYMOUS_CODING,
-		SYNONYMOUS_STOP, NON_SYNONYMOUS_STOP,
+		SYNONYMOUS_START("start_retained"), NON_SYNONYMOUS_START("initiator_codon_variant"),
+		START_GAINED("5_prime_UTR_premature_start_codon_gain_variant"), SYNONYMOUS_CODING("synonymous_variant"),
+		SYNONYMOUS_STOP("stop_retained_variant"), NON_SYNONYMOUS_STOP(),
 		// MODIFIER
-		UTR_5_PRIME, UTR_3_PRIME, REGULATION, UPSTREAM, DOWNSTREAM, GENE, TRANSCRIPT, EXON,
-		INTRON_CONSERVED, INTRON, INTRAGENIC, INTERGENIC, INTERGENIC_CONSERVED,
-		NONE, CHROMOSOME, CUSTOM, CDS
+		UTR_5_PRIME("5_prime_UTR_variant"), UTR_3_PRIME("3_prime_UTR_variant"),
+		REGULATION("regulatory_region_variant", "TF_binding_site_variant"),
+		UPSTREAM("upstream_gene_variant"), DOWNSTREAM("downstream_gene_variant"), GENE("gene_variant"),
+		TRANSCRIPT("transcript_variant", "non_coding_transcript_variant"),
+		EXON("exon_variant", "non_coding_transcript_exon_variant"), INTRON_CONSERVED("conserved_intron_variant"),
+		INTRON("intron_variant"), INTRAGENIC("intragenic_variant"), INTERGENIC("intergenic_region"),
+		INTERGENIC_CONSERVED("conserved_intergenic_variant"),
+		NONE(), CHROMOSOME("chromosome"), CUSTOM("custom"), CDS("coding_sequence_variant");
+		
+		public final String [] sequenceOntologyTerms;
+		
+		private Effect(String... sequenceOntologyTerms) {
+			this.sequenceOntologyTerms = sequenceOntologyTerms;
+		}
 	};
 
 	public enum SnpEffAnnotationField {
@@ -60,75 +82,262 @@ public class SnpEffAnnotationSplitter extends Annotator {
 
 	public enum SnpEffImpact { HIGH, MODERATE, LOW, MODIFIER };
 	
-	private class SNPEffectVCFInfo implements Comparable<SNPEffectVCFInfo> {
-		public final Effect effect;
-		public final String [] annotations;
-		
-		public String toString() {
-			StringBuilder sb = new StringBuilder(effect.toString()).append("(");
-			for (String annotation : annotations) {
-				sb.append(annotation).append(SNPEFF_FIELD_DELIMITER);
+	/** Fields of an ANN entry: Allele | Annotation | Annotation_Impact | Gene_Name | ... */
+	private static final int ANN_EFFECT = 1, ANN_IMPACT = 2, ANN_GENE_NAME = 3;
+	private static final int UNKNOWN_RANK = Effect.values().length;
+	/** ints kept for each gene of a variant, for its most severe effect */
+	private static final int GENE_SLOTS = 7;
+	
+	// effect names and terms with their ranks (the ordinal of the effect), looked up without making substrings
+	private static final String [] rankNames;
+	private static final int [] ranks;
+	static {
+		List<String> names = new ArrayList<String>();
+		List<Integer> nameRanks = new ArrayList<Integer>();
+		for (Effect effect : Effect.values()) {
+			names.add(effect.name());
+			nameRanks.add(effect.ordinal());
+			for (String term : effect.sequenceOntologyTerms) {
+				names.add(term);
+				nameRanks.add(effect.ordinal());
 			}
-			sb.setCharAt(sb.length()-2, ')');
-			return sb.toString();
 		}
-		
-		public SNPEffectVCFInfo(String encoded) {
-			int openParan = encoded.indexOf('(');
-			effect = Effect.valueOf(encoded.substring(0, openParan));
-			String [] annos = encoded.substring(openParan+1, encoded.length()-1).split(Pattern.quote(SNPEFF_FIELD_DELIMITER), SnpEffAnnotationField.size);
-			if (annos.length == SnpEffAnnotationField.size) {
-				annotations = annos;
-			} else {
-				annotations = Arrays.copyOf(annos, SnpEffAnnotationField.size);
-				for (int i = annos.length; i < annotations.length; i++) {
-					annotations[i] = "";
-				}
+		rankNames = names.toArray(new String[names.size()]);
+		ranks = new int[rankNames.length];
+		for (int i = 0; i < ranks.length; i++) {
+			ranks[i] = nameRanks.get(i);
+		}
+	}
+	
+	private boolean perGene = false;
+	
+	/**
+	 * Also add the most severe effect for each gene (as Gene_name|EFFECT|IMPACT) to the INFO key
+	 * {@value #GENE_EFFECTS_TAG}, for variants affecting more than one gene.
+	 */
+	public SnpEffAnnotationSplitter setPerGene(boolean perGene) {
+		this.perGene = perGene;
+		return this;
+	}
+	
+	private static int rank(String s, int start, int end) {
+		int length = end - start;
+		for (int i = 0; i < rankNames.length; i++) {
+			if (rankNames[i].length() == length && s.regionMatches(start, rankNames[i], 0, length)) {
+				return ranks[i];
 			}
 		}
-		
-		public String get(SnpEffAnnotationField field) {
-			return annotations[field.ordinal()];
+		return UNKNOWN_RANK;
+	}
+	
+	/** The rank of an ANN entry: by impact, then by the most severe of its effect terms (separated by '&') */
+	private static int annRank(String s, int start, int end) {
+		int impactStart = fieldStart(s, start, end, ANN_IMPACT);
+		int impactEnd = fieldEnd(s, impactStart, end);
+		int impact = SnpEffImpact.values().length;
+		for (SnpEffImpact i : SnpEffImpact.values()) {
+			if (i.name().length() == impactEnd - impactStart && s.regionMatches(impactStart, i.name(), 0, impactEnd - impactStart)) {
+				impact = i.ordinal();
+			}
 		}
-		
-		@SuppressWarnings("unused")
-		public SnpEffImpact getImpact() {
-			return SnpEffImpact.valueOf(annotations[SnpEffAnnotationField.IMPACT.ordinal()]);
+		int termStart = fieldStart(s, start, end, ANN_EFFECT);
+		int effectEnd = fieldEnd(s, termStart, end);
+		int best = UNKNOWN_RANK;
+		while (termStart < effectEnd) {
+			int termEnd = s.indexOf('&', termStart);
+			if (termEnd < 0 || termEnd > effectEnd) termEnd = effectEnd;
+			best = Math.min(best, rank(s, termStart, termEnd));
+			termStart = termEnd + 1;
 		}
-		
-		@Override
-		public int compareTo(SNPEffectVCFInfo o) {
-			int cmp = effect.compareTo(o.effect);
-			// ideally this would compare by gene name before aa change, but for simplicity just work through the fields
-			int i = 0;
-			while (cmp == 0 && i < annotations.length) {
-				cmp = annotations[i].compareTo(o.annotations[i]);
-				i++;
+		return impact * (UNKNOWN_RANK + 1) + best;
+	}
+	
+	/**
+	 * The name of the effect of an ANN entry, from its rank: the {@link Effect} of its most severe term, or
+	 * the first term if none of them is known.
+	 */
+	private static String annEffectName(String s, int start, int end, int rank) {
+		int effect = rank % (UNKNOWN_RANK + 1);
+		if (effect < UNKNOWN_RANK) {
+			return Effect.values()[effect].name();
+		}
+		int termStart = fieldStart(s, start, end, ANN_EFFECT);
+		int termEnd = fieldEnd(s, termStart, end);
+		int amp = s.indexOf('&', termStart);
+		return s.substring(termStart, amp < 0 || amp > termEnd ? termEnd : amp);
+	}
+	
+	private static int fieldEnd(String s, int start, int end) {
+		int bar = s.indexOf('|', start);
+		return (bar < 0 || bar > end) ? end : bar;
+	}
+	
+	private static int fieldStart(String s, int start, int end, int field) {
+		for (int i = 0; i < field && start < end; i++) {
+			start = Math.min(fieldEnd(s, start, end) + 1, end);
+		}
+		return start;
+	}
+	
+	/**
+	 * @return one field of a record, where the last of <code>maxFields</code> fields has the rest of the record
+	 */
+	private static String field(String s, int start, int end, int field, int maxFields) {
+		start = fieldStart(s, start, end, field);
+		return s.substring(start, field == maxFields - 1 ? end : fieldEnd(s, start, end));
+	}
+	
+	/**
+	 * Compare two records field by field (as strings, with missing fields treated as empty), where the
+	 * last of <code>maxFields</code> fields has the rest of the record.
+	 */
+	private static int compareFields(String s, int a, int aEnd, int b, int bEnd, int maxFields) {
+		for (int field = 0; field < maxFields && (a < aEnd || b < bEnd); field++) {
+			int ae = field == maxFields - 1 ? aEnd : fieldEnd(s, a, aEnd);
+			int be = field == maxFields - 1 ? bEnd : fieldEnd(s, b, bEnd);
+			int length = Math.min(ae - a, be - b);
+			for (int i = 0; i < length; i++) {
+				int cmp = s.charAt(a + i) - s.charAt(b + i);
+				if (cmp != 0) return cmp;
 			}
-			return cmp;
+			if (ae - a != be - b) return (ae - a) - (be - b);
+			a = Math.min(ae + 1, aEnd);
+			b = Math.min(be + 1, bEnd);
 		}
+		return 0;
 	}
-
+	
+	/**
+	 * Whether an entry is more severe than the best so far: by rank, then by the effect name and then by each
+	 * of the other fields (so that the same entry is chosen whichever order they are in).
+	 */
+	private static boolean isMoreSevere(String s, int rank, int name, int nameEnd, int record, int recordEnd,
+			int bestRank, int bestName, int bestNameEnd, int best, int bestEnd, int maxFields) {
+		if (rank != bestRank) return rank < bestRank;
+		int byName = compareRegions(s, name, nameEnd, bestName, bestNameEnd);
+		return byName < 0 || byName == 0 && compareFields(s, record, recordEnd, best, bestEnd, maxFields) < 0;
+	}
+	
+	/**
+	 * Each entry of EFF (or ANN, if there is no EFF) is ranked in a single pass through the value, without
+	 * splitting it, and the most severe (ordered by effect then by each of the other fields) is kept.
+	 */
 	@Override
 	public VCFVariant annotate(VCFVariant variant) {
 		String effects = variant.getInfoValue(SNPEFF_INFO_TAG);
-		if (effects != null) {
-			ArrayList<SNPEffectVCFInfo> effList = new ArrayList<SNPEffectVCFInfo>();
-			for (String s: effects.split(",")) {
-				effList.add(new SNPEffectVCFInfo(s));
+		boolean ann = false;
+		if (effects == null) {
+			effects = variant.getInfoValue(ANN_INFO_TAG);
+			ann = true;
+		}
+		if (effects == null || effects.length() == 0) {
+			return variant;
+		}
+		int maxFields = ann ? Integer.MAX_VALUE : SnpEffAnnotationField.size;
+		int bestRank = Integer.MAX_VALUE, bestStart = 0, bestEnd = 0, bestName = 0, bestNameEnd = 0;
+		// for each gene: start, end, rank, effect name start and end, record start and end
+		int [] genes = perGene ? new int[4 * GENE_SLOTS] : null;
+		int nGenes = 0;
+		for (int start = 0; start < effects.length(); ) {
+			int end = effects.indexOf(',', start);
+			if (end < 0) end = effects.length();
+			int recordStart, recordEnd, nameStart, nameEnd, rank;
+			if (ann) {
+				recordStart = start;
+				recordEnd = end;
+				nameStart = fieldStart(effects, start, end, ANN_EFFECT);
+				nameEnd = fieldEnd(effects, nameStart, end);
+				rank = annRank(effects, start, end);
+			} else {
+				int open = effects.indexOf('(', start);
+				if (open < 0 || open > end) open = end;
+				nameStart = start;
+				nameEnd = open;
+				recordStart = Math.min(open + 1, end);
+				recordEnd = Math.max(recordStart, end - 1); // without the closing parenthesis
+				rank = rank(effects, nameStart, nameEnd);
+			}
+			if (isMoreSevere(effects, rank, nameStart, nameEnd, recordStart, recordEnd,
+					bestRank, bestName, bestNameEnd, bestStart, bestEnd, maxFields)) {
+				bestRank = rank;
+				bestStart = recordStart;
+				bestEnd = recordEnd;
+				bestName = nameStart;
+				bestNameEnd = nameEnd;
+			}
+			if (perGene) {
+				int geneStart = fieldStart(effects, recordStart, recordEnd, ann ? ANN_GENE_NAME : SnpEffAnnotationField.GENE_NAME.ordinal());
+				int geneEnd = fieldEnd(effects, geneStart, recordEnd);
+				int g = 0;
+				while (g < nGenes && !(genes[g*GENE_SLOTS+1] - genes[g*GENE_SLOTS] == geneEnd - geneStart &&
+						effects.regionMatches(genes[g*GENE_SLOTS], effects, geneStart, geneEnd - geneStart))) {
+					g++;
+				}
+				int slot = g * GENE_SLOTS;
+				if (g == nGenes) {
+					if (genes.length < slot + GENE_SLOTS) genes = Arrays.copyOf(genes, genes.length * 2);
+					genes[slot] = geneStart;
+					genes[slot+1] = geneEnd;
+					genes[slot+2] = Integer.MAX_VALUE;
+					nGenes++;
+				}
+				if (isMoreSevere(effects, rank, nameStart, nameEnd, recordStart, recordEnd,
+						genes[slot+2], genes[slot+3], genes[slot+4], genes[slot+5], genes[slot+6], maxFields)) {
+					genes[slot+2] = rank;
+					genes[slot+3] = nameStart;
+					genes[slot+4] = nameEnd;
+					genes[slot+5] = recordStart;
+					genes[slot+6] = recordEnd;
+				}
+			}
+			start = end + 1;
+		}
+		int impactField = ann ? ANN_IMPACT : SnpEffAnnotationField.IMPACT.ordinal();
+		int geneField = ann ? ANN_GENE_NAME : SnpEffAnnotationField.GENE_NAME.ordinal();
+		variant.putInfo("EFFECT", ann ? annEffectName(effects, bestStart, bestEnd, bestRank) : effects.substring(bestName, bestNameEnd));
+		variant.putInfo("Gene_name", field(effects, bestStart, bestEnd, geneField, maxFields));
+		variant.putInfo("IMPACT", field(effects, bestStart, bestEnd, impactField, maxFields));
+		if (perGene && nGenes > 1) {
+			List<String> geneEffects = new ArrayList<String>(nGenes);
+			for (int g = 0; g < nGenes; g++) {
+				int slot = g * GENE_SLOTS;
+				if (genes[slot] == genes[slot+1]) continue; // no gene name
+				int recordStart = genes[slot+5], recordEnd = genes[slot+6];
+				String name = ann ? annEffectName(effects, recordStart, recordEnd, genes[slot+2]) :
+					effects.substring(genes[slot+3], genes[slot+4]);
+				geneEffects.add(effects.substring(genes[slot], genes[slot+1]) + SNPEFF_FIELD_DELIMITER + name +
+						SNPEFF_FIELD_DELIMITER + field(effects, recordStart, recordEnd, impactField, maxFields));
+			}
+			if (!geneEffects.isEmpty()) {
+				variant.putInfo(GENE_EFFECTS_TAG, geneEffects.toArray(new String[geneEffects.size()]));
 			}
-			Collections.sort(effList);
-			variant.putInfo("EFFECT", effList.get(0).effect.toString());
-			variant.putInfo("Gene_name", effList.get(0).get(SnpEffAnnotationField.GENE_NAME));
-			variant.putInfo("IMPACT", effList.get(0).get(SnpEffAnnotationField.IMPACT));
-			// FIXME = include others in addition to the first...
 		}
 		return variant;
 	}
+	
+	private static int compareRegions(String s, int a, int aEnd, int b, int bEnd) {
+		return compareFields(s, a, aEnd, b, bEnd, 1);
+	}
+
+	@Override
+	public Set<String> infoKeysRead() {
+		return new HashSet<String>(Arrays.asList(SNPEFF_INFO_TAG, ANN_INFO_TAG));
+	}
+	
+	@Override
+	public Set<String> infoKeysWritten() {
+		Set<String> keys = new HashSet<String>(Arrays.asList("EFFECT", "Gene_name", "IMPACT"));
+		if (perGene) keys.add(GENE_EFFECTS_TAG);
+		return keys;
+	}
 
 	@Override
 	public Iterable<String> infoLines() {
-		return Arrays.asList(EXTRA_HEADERS);
+		List<String> headers = new ArrayList<String>(Arrays.asList(EXTRA_HEADERS));
+		if (perGene) {
+			headers.add("##INFO=<ID=" + GENE_EFFECTS_TAG + ",Number=.,Type=String,Description=\"Most severe effect for each affected gene, as Gene_name|EFFECT|IMPACT (from SnpEffect)\">");
+		}
+		return headers;
 	}
 	
 	@Override
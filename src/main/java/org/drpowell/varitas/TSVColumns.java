@@ -0,0 +1,82 @@
+package org.drpowell.varitas;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.drpowell.vcf.VCFMeta;
+
+/**
+ * The columns copied from a tab-delimited reference, as given to {@link TabixTSVAnnotator} and
+ * {@link ColumnarTSVAnnotator}: a comma-separated list of column numbers (1-based), each of which may
+ * be followed by the INFO key to use for it and a description, e.g. <code>5=AF:Allele frequency,7</code>
+ * (the key for a column without one is <code>col</code> and the column number).
+ *
+ * @author bpow
+ */
+class TSVColumns {
+	/** the INFO key for each column (0-based), in the order given */
+	private final Map<Integer, String> fieldMap = new LinkedHashMap<Integer, String>();
+	private final Map<Integer, String> descriptionMap = new LinkedHashMap<Integer, String>();
+
+	TSVColumns(String columns) {
+		for (String column : columns.split(",")) {
+			int eq = column.indexOf('=');
+			Integer inputColumnNumber;
+			String infoKey, description = null;
+			if (eq >= 0) {
+				inputColumnNumber = Integer.valueOf(column.substring(0, eq))-1;
+				column = column.substring(eq+1);
+				int colon = column.indexOf(':');
+				if (colon >= 0) {
+					infoKey = column.substring(0, colon);
+					description = '"' + column.substring(colon+1) + '"';
+				} else {
+					infoKey = column;
+				}
+			} else {
+				inputColumnNumber = Integer.valueOf(column)-1;
+				infoKey = "col" + column;
+			}
+			fieldMap.put(inputColumnNumber, infoKey);
+			descriptionMap.put(inputColumnNumber, description);
+		}
+	}
+
+	/** @return the columns (0-based) and the INFO key for each */
+	Map<Integer, String> getFieldMap() {
+		return fieldMap;
+	}
+
+	/**
+	 * @param headers - the names of the columns from the header line of the reference, or null
+	 * @param sourceName - the reference file, to name in the descriptions
+	 */
+	List<String> infoLines(List<String> headers, String sourceName) {
+		ArrayList<String> infos = new ArrayList<String>();
+		for (Map.Entry<Integer, String> entry : fieldMap.entrySet()) {
+			LinkedHashMap<String, String> infoValues = new LinkedHashMap<String, String>();
+			infoValues.put("ID", entry.getValue());
+			infoValues.put("Number", "1");
+			infoValues.put("Type", "String");
+			int colIndex = entry.getKey();
+			String description = descriptionMap.get(colIndex);
+			if (description != null) {
+				infoValues.put("Description", description);
+			} else if (headers != null && colIndex < headers.size()) {
+				infoValues.put("Description", "\"" + headers.get(colIndex) + ", column " + Integer.toString(colIndex + 1) + " from " + sourceName + "\"");
+			} else {
+				infoValues.put("Description", "\"Column " + Integer.toString(colIndex + 1) + " from " + sourceName + "\"");
+			}
+			// FIXME - can do better with the descriptions!
+			infos.add(new VCFMeta("INFO", infoValues).toString());
+		}
+		return infos;
+	}
+
+	@Override
+	public String toString() {
+		return fieldMap.toString();
+	}
+}
@@ -1,50 +1,59 @@
 package org.drpowell.varitas;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Iterator;
-import java.util.LinkedHashMap;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.logging.Logger;
 
+import org.drpowell.tabix.DelimitedString;
+import org.drpowell.tabix.GenomicInterval;
+import org.drpowell.tabix.TabixIterator;
 import org.drpowell.tabix.TabixReader;
-import org.drpowell.vcf.VCFMeta;
 import org.drpowell.vcf.VCFVariant;
 
 public class TabixTSVAnnotator extends Annotator {
-	private final TabixReader tabix;
-	private final Map<Integer, String> fieldMap = new LinkedHashMap<Integer, String>();
-	private final Map<Integer, String> descriptionMap = new LinkedHashMap<Integer, String>();
+	private final TabixReader source;
+	private TabixReader tabix;
+	private final TSVColumns tsvColumns;
+	private final Map<Integer, String> fieldMap;
 	private static Logger logger = Logger.getLogger(TabixTSVAnnotator.class.getCanonicalName());
 	private boolean hasHeader = false;
+	/** the positions of the (full) reference, if a filter has been built for it */
+	private final SiteFilter siteFilter;
+	/** the number of leading columns of the reference which are needed (for matching or output) */
+	private int columnsNeeded = 0;
+	/** the output columns, and the INFO keys for them */
+	private int [] outputColumns;
+	private String [] outputKeys;
 	
 	public TabixTSVAnnotator(final TabixReader reader, String columns) {
-		tabix = reader;
-		String [] splitColumns = columns.split(",");
-		Integer inputColumnNumber;
-		String infoKey = null;
-		String description = null;
-		for (String column : splitColumns) {
-			int eq = column.indexOf('=');
-			if (eq >= 0) {
-				inputColumnNumber = Integer.valueOf(column.substring(0, eq))-1;
-				column = column.substring(eq+1);
-				int colon = column.indexOf(':');
-				if (colon >= 0) {
-					infoKey = column.substring(0, colon);
-					description = '"' + column.substring(colon+1) + '"';
-				} else {
-					infoKey = column;
-				}
-			} else {
-				inputColumnNumber = Integer.valueOf(column)-1;
-				infoKey = "col" + column;
-			}
-			fieldMap.put(inputColumnNumber, infoKey);
-			descriptionMap.put(inputColumnNumber, description);
+		source = tabix = reader;
+		siteFilter = SiteFilter.forReference(reader.filename);
+		tsvColumns = new TSVColumns(columns);
+		fieldMap = tsvColumns.getFieldMap();
+		outputColumns = new int[fieldMap.size()];
+		outputKeys = new String[fieldMap.size()];
+		int i = 0;
+		for (Map.Entry<Integer, String> entry : fieldMap.entrySet()) {
+			outputColumns[i] = entry.getKey();
+			outputKeys[i++] = entry.getValue();
+		}
+		updateColumnsNeeded();
+	}
+	
+	private void updateColumnsNeeded() {
+		int max = Math.max(refColumn, altColumn);
+		for (int column : outputColumns) {
+			max = Math.max(max, column);
 		}
+		columnsNeeded = max + 1;
 	}
 	
 	public TabixTSVAnnotator useHeader(boolean useHeader) {
@@ -52,6 +61,55 @@ public class TabixTSVAnnotator extends Annotator {
 		return this;
 	}
 	
+	@Override
+	public Annotator checkRef(int refColumn) {
+		super.checkRef(refColumn);
+		updateColumnsNeeded();
+		checkSlimReference();
+		return this;
+	}
+	
+	@Override
+	public Annotator checkAlt(int altColumn) {
+		super.checkAlt(altColumn);
+		updateColumnsNeeded();
+		checkSlimReference();
+		return this;
+	}
+	
+	/**
+	 * Switch to a slim copy of the reference (see {@link ReferenceSlimmer}) if an up-to-date one exists.
+	 */
+	void preferSlimReference() {
+		tabix = ReferenceSlimmer.preferSlim(source, getSourceFields());
+	}
+	
+	/**
+	 * Go back to the full reference if the slim copy in use lacks a column that has since been configured.
+	 */
+	private void checkSlimReference() {
+		if (tabix != source && !ReferenceSlimmer.covers(tabix, getSourceFields())) {
+			logger.info(tabix.filename + " lacks columns needed for annotation, using " + source.filename);
+			tabix = source;
+		}
+	}
+	
+	/** The full (not slimmed) reference file. */
+	TabixReader getSource() {
+		return source;
+	}
+	
+	/** Column numbers (1-based, as strings) read from the reference. */
+	Collection<String> getSourceFields() {
+		Set<String> columns = new LinkedHashSet<String>();
+		for (Integer column : fieldMap.keySet()) {
+			columns.add(Integer.toString(column + 1));
+		}
+		if (refColumn >= 0) columns.add(Integer.toString(refColumn + 1));
+		if (altColumn >= 0) columns.add(Integer.toString(altColumn + 1));
+		return columns;
+	}
+	
 	@Override
 	public VCFVariant annotate(VCFVariant variant) {
 		String chromosome = variant.getSequence();
@@ -60,32 +118,144 @@ public class TabixTSVAnnotator extends Annotator {
 			logger.info(prefix + chromosome + " is not found in file " + tabix.filename);
 			return variant;
 		}
-		String [] row;
+		if (siteFilter != null && !siteFilter.mightMatch(prefix + chromosome, variant)) {
+			return variant;
+		}
+		DelimitedString row;
 		String ref = variant.getRef();
 		String alt = variant.getAlt();
 		// when using this query form, tabix expects space-based (0-based) coordinates
-		Iterator<String []> iterator = tabix.getIndex().query(tid, variant.getStart()-1, variant.getEnd());
-		while ((row = iterator.next()) != null) {
+		TabixIterator iterator = tabix.getIndex().query(tid, variant.getStart()-1, variant.getEnd(), columnsNeeded);
+		while ((row = iterator.nextRow()) != null) {
 			// TODO - should we check start/stop to make sure exact? probably...
-			if ((refColumn < 0 || row[refColumn].equals(ref)) &&
-				(altColumn < 0 || row[altColumn].equals(alt))) {
+			if (allelesMatch(row, ref, alt)) {
 				// we have a match!
-				for (Map.Entry<Integer, String> entry: fieldMap.entrySet()) {
-					String value = row[entry.getKey()];
-					if (! ("".equals(value) || ".".equals(value)) ) {
-						// FIXME -- "." is frequently used to represent missing data, but consider whether I should pass it along
-						variant.putInfo(entry.getValue(), value);
-					}
-				}
+				copyAnnotations(row, variant);
 			}
 		}
 		return variant;
 		
 	}
+	
+	/** Lines are only split as far as the columns needed, and the alleles are compared in place. */
+	private boolean allelesMatch(DelimitedString row, String ref, String alt) {
+		return (refColumn < 0 || row.itemEquals(refColumn, ref)) &&
+				(altColumn < 0 || row.itemEquals(altColumn, alt));
+	}
+	
+	private void copyAnnotations(DelimitedString row, VCFVariant variant) {
+		for (int i = 0; i < outputColumns.length; i++) {
+			String value = row.get(outputColumns[i]);
+			if (! ("".equals(value) || ".".equals(value)) ) {
+				variant.putInfo(outputKeys[i], value);
+			}
+		}
+	}
+	
+	private boolean allelesMatch(String [] row, String ref, String alt) {
+		return (refColumn < 0 || row[refColumn].equals(ref)) &&
+				(altColumn < 0 || row[altColumn].equals(alt));
+	}
+	
+	private void copyAnnotations(String [] row, VCFVariant variant) {
+		for (Map.Entry<Integer, String> entry: fieldMap.entrySet()) {
+			String value = row[entry.getKey()];
+			if (! ("".equals(value) || ".".equals(value)) ) {
+				// FIXME -- "." is frequently used to represent missing data, but consider whether I should pass it along
+				variant.putInfo(entry.getValue(), value);
+			}
+		}
+	}
+	
+	/**
+	 * Annotate from a single row of the reference (used when merge-joining references).
+	 * 
+	 * @return true if the row matched the variant
+	 */
+	boolean annotateFromRow(String [] row, VCFVariant variant) {
+		if (allelesMatch(row, variant.getRef(), variant.getAlt())) {
+			copyAnnotations(row, variant);
+			return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * Nearby variants are looked up with a single query, and each row is matched to the variants
+	 * which it overlaps (as for separate queries).
+	 */
+	@Override
+	public List<VCFVariant> annotateBatch(List<VCFVariant> variants) {
+		for (List<VCFVariant> cluster : VariantClusters.cluster(filter(variants), VariantClusters.DEFAULT_MAX_GAP)) {
+			if (cluster.size() == 1) {
+				annotate(cluster.get(0));
+			} else {
+				annotateCluster(cluster);
+			}
+		}
+		return variants;
+	}
+	
+	/** @return the variants which might overlap the reference, according to its {@link SiteFilter} */
+	private List<VCFVariant> filter(List<VCFVariant> variants) {
+		if (siteFilter == null) return variants;
+		List<VCFVariant> candidates = new ArrayList<VCFVariant>(variants.size());
+		for (VCFVariant variant : variants) {
+			if (siteFilter.mightMatch(prefix + variant.getSequence(), variant)) {
+				candidates.add(variant);
+			}
+		}
+		return candidates;
+	}
+	
+	private void annotateCluster(List<VCFVariant> cluster) {
+		String chromosome = cluster.get(0).getSequence();
+		Integer tid = tabix.getIdForChromosome(prefix + chromosome);
+		if (tid == null) {
+			logger.info(prefix + chromosome + " is not found in file " + tabix.filename);
+			return;
+		}
+		DelimitedString row;
+		int first = 0; // variants before this end before the current row (rows are sorted by start)
+		TabixIterator iterator = tabix.getIndex().query(tid, cluster.get(0).getStart()-1, VariantClusters.maxEnd(cluster), columnsNeeded);
+		while ((row = iterator.nextRow()) != null) {
+			GenomicInterval rowInterval = tabix.getIndex().getInterval(row);
+			while (first < cluster.size() && cluster.get(first).getEnd() <= rowInterval.getBegin()) {
+				first++;
+			}
+			for (int i = first; i < cluster.size(); i++) {
+				VCFVariant variant = cluster.get(i);
+				if (variant.getStart()-1 >= rowInterval.getEnd()) break;
+				if (variant.getEnd() > rowInterval.getBegin() && allelesMatch(row, variant.getRef(), variant.getAlt())) {
+					copyAnnotations(row, variant);
+				}
+			}
+		}
+	}
+
+	@Override
+	public Set<String> infoKeysRead() {
+		return Collections.emptySet();
+	}
+	
+	@Override
+	public Set<String> infoKeysWritten() {
+		return new LinkedHashSet<String>(fieldMap.values());
+	}
+
+	@Override
+	public String cacheIdentity() {
+		return "TabixTSVAnnotator " + new File(source.filename).getAbsolutePath() + " " + fieldMap +
+				" ref=" + refColumn + " alt=" + altColumn + " prefix=" + prefix;
+	}
+	
+	@Override
+	public String cacheVersion() {
+		return fileVersion(source.filename) + " " + fileVersion(source.filename + ".tbi");
+	}
 
 	@Override
 	public Iterable<String> infoLines() {
-		ArrayList<String> infos = new ArrayList<String>();
 		List<String> headers = null;
 		if (hasHeader) {
 			try {
@@ -97,24 +267,7 @@ public class TabixTSVAnnotator extends Annotator {
 				logger.warning("problem reading from headers for " + tabix.filename + "\n" + ioe);
 			}
 		}
-		for (Map.Entry<Integer, String> entry : fieldMap.entrySet()) {
-			LinkedHashMap<String, String> infoValues = new LinkedHashMap<String, String>();
-			infoValues.put("ID", entry.getValue());
-			infoValues.put("Number", "1");
-			infoValues.put("Type", "String");
-			int colIndex = entry.getKey();
-			String description = descriptionMap.get(colIndex);
-			if (description != null) {
-				infoValues.put("Description", description);
-			} else if (headers != null && headers.size() >= colIndex) {
-				infoValues.put("Description", "\"" + headers.get(colIndex) + ", column " + Integer.toString(colIndex + 1) + " from " + tabix.filename + "\"");
-			} else {
-				infoValues.put("Description", "\"Column " + Integer.toString(colIndex + 1) + " from " + tabix.filename + "\"");
-			}
-			// FIXME - can do better with the descriptions!
-			infos.add(new VCFMeta("INFO", infoValues).toString());
-		}
-		return infos;
+		return tsvColumns.infoLines(headers, source.filename);
 	}
 	
 	@Override
@@ -1,22 +1,38 @@
 package org.drpowell.varitas;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
 
+import org.drpowell.tabix.DelimitedString;
+import org.drpowell.tabix.TabixIterator;
 import org.drpowell.tabix.TabixReader;
 import org.drpowell.vcf.VCFMeta;
 import org.drpowell.vcf.VCFVariant;
 
 public class TabixVCFAnnotator extends Annotator {
-	private final TabixReader tabix;
+	private final TabixReader source;
+	private TabixReader tabix;
 	private final Map<String, String> fieldMap = new LinkedHashMap<String, String>();
+	/** reference lines are only split as far as the INFO column */
+	private static final int COLUMNS_NEEDED = 8;
+	private static final int POS = 1, ID = 2, REF = 3, ALT = 4, FILTER = 6, INFO = 7;
 	private boolean requirePass;
 	private boolean copyID = false;
+	/** the sites of the (full) reference, if a filter has been built for it */
+	private final SiteFilter siteFilter;
 
 	public static final String stringJoin(String delimiter, String[] strings) {
 		StringBuilder sb = new StringBuilder();
@@ -27,12 +43,14 @@ public class TabixVCFAnnotator extends Annotator {
 	}
 	
 	public TabixVCFAnnotator(final TabixReader reader, final Map<String, String> fields) {
-		tabix = reader;
+		source = tabix = reader;
+		siteFilter = SiteFilter.forReference(reader.filename);
 		fieldMap.putAll(fields);
 	}
 	
 	public TabixVCFAnnotator(final TabixReader reader, String fieldString) {
-		this.tabix = reader;
+		source = tabix = reader;
+		siteFilter = SiteFilter.forReference(reader.filename);
 		String [] fields = fieldString.split(",");
 		for (String field : fields) {
 			int eq = field.indexOf("=");
@@ -52,49 +70,188 @@ public class TabixVCFAnnotator extends Annotator {
 			// may want to log this...
 			return variant;
 		}
-		String [] resultRow;
+		if (siteFilter != null && !siteFilter.mightMatch(prefix + chromosome, variant)) {
+			return variant;
+		}
+		DelimitedString resultRow;
 		int start = variant.getStart();
 		int end = variant.getEnd();
 		String ref = variant.getRef();
 		String alt = variant.getAlt();
 		// when using this query form, tabix expects space-based (0-based) coordinates
-		Iterator<String []> iterator = tabix.getIndex().query(tid, start-1, end);
-		while ((resultRow = iterator.next()) != null) {
-			VCFVariant target = new VCFVariant(resultRow);
-			// check on position (1), ref (3) and alt (4)
-			if (target.getStart() == start &&
-				target.getRef().equals(ref) &&
-				target.getAlt().equals(alt)) {
+		TabixIterator iterator = tabix.getIndex().query(tid, start-1, end, COLUMNS_NEEDED);
+		while ((resultRow = iterator.nextRow()) != null) {
+			// check on position, ref and alt
+			if (Integer.parseInt(resultRow.get(POS)) == start &&
+				resultRow.itemEquals(REF, ref) &&
+				resultRow.itemEquals(ALT, alt)) {
 				// FIXME - some target files will have more than one variant per line
-				if (requirePass && !target.getFilter().equals("PASS")) {
+				if (requirePass && !resultRow.itemEquals(FILTER, "PASS")) {
 					continue;
 				}
 				// found a match!
-				for (Entry<String, String> e: fieldMap.entrySet()) {
-					if (target.hasInfo(e.getKey())) {
-						// FIXME- should check to prevent duplicates being overwritten
-						variant.putInfo(e.getValue(), target.getInfoValue(e.getKey()));
-					}
-				}
-				if (copyID) {
-					variant.mergeID(target.getID());
-				}
+				copyAnnotations(resultRow, variant);
 				break;
 			}
 		}		
 		return variant;
 	}
 	
+	/**
+	 * Only the INFO entries which are wanted are taken from the reference line (which is not otherwise parsed).
+	 */
+	private void copyAnnotations(List<String> target, VCFVariant variant) {
+		String info = target.get(INFO);
+		for (Entry<String, String> e: fieldMap.entrySet()) {
+			String value = VCFVariant.findInfoValue(info, e.getKey());
+			if (value != null) {
+				// FIXME- should check to prevent duplicates being overwritten
+				variant.putInfo(e.getValue(), value);
+			}
+		}
+		String id = target.get(ID);
+		if (copyID && !".".equals(id)) {
+			variant.mergeID(id);
+		}
+	}
+	
+	/**
+	 * Annotate from a single row of the reference (used when merge-joining references).
+	 * 
+	 * @return true if the row matched the variant
+	 */
+	boolean annotateFromRow(String [] row, VCFVariant variant) {
+		if (Integer.parseInt(row[POS]) == variant.getStart() &&
+				row[REF].equals(variant.getRef()) &&
+				row[ALT].equals(variant.getAlt()) &&
+				!(requirePass && !row[FILTER].equals("PASS"))) {
+			copyAnnotations(Arrays.asList(row), variant);
+			return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * Nearby variants are looked up with a single query, and only reference rows at the position of
+	 * one of the variants are compared.
+	 */
+	@Override
+	public List<VCFVariant> annotateBatch(List<VCFVariant> variants) {
+		for (List<VCFVariant> cluster : VariantClusters.cluster(filter(variants), VariantClusters.DEFAULT_MAX_GAP)) {
+			if (cluster.size() == 1) {
+				annotate(cluster.get(0));
+			} else {
+				annotateCluster(cluster);
+			}
+		}
+		return variants;
+	}
+	
+	/** @return the variants which might be in the reference, according to its {@link SiteFilter} */
+	private List<VCFVariant> filter(List<VCFVariant> variants) {
+		if (siteFilter == null) return variants;
+		List<VCFVariant> candidates = new ArrayList<VCFVariant>(variants.size());
+		for (VCFVariant variant : variants) {
+			if (siteFilter.mightMatch(prefix + variant.getSequence(), variant)) {
+				candidates.add(variant);
+			}
+		}
+		return candidates;
+	}
+	
+	private void annotateCluster(List<VCFVariant> cluster) {
+		Integer tid = tabix.getIdForChromosome(prefix + cluster.get(0).getSequence());
+		if (tid == null) {
+			return;
+		}
+		Map<String, List<VCFVariant>> unmatchedByStart = new HashMap<String, List<VCFVariant>>();
+		for (VCFVariant variant : cluster) {
+			String start = Integer.toString(variant.getStart());
+			List<VCFVariant> atStart = unmatchedByStart.get(start);
+			if (atStart == null) {
+				atStart = new LinkedList<VCFVariant>();
+				unmatchedByStart.put(start, atStart);
+			}
+			atStart.add(variant);
+		}
+		DelimitedString resultRow;
+		TabixIterator iterator = tabix.getIndex().query(tid, cluster.get(0).getStart()-1, VariantClusters.maxEnd(cluster), COLUMNS_NEEDED);
+		while ((resultRow = iterator.nextRow()) != null) {
+			List<VCFVariant> candidates = unmatchedByStart.get(resultRow.get(POS));
+			if (candidates == null || candidates.isEmpty()) {
+				continue;
+			}
+			for (Iterator<VCFVariant> ci = candidates.iterator(); ci.hasNext(); ) {
+				VCFVariant variant = ci.next();
+				if (resultRow.itemEquals(REF, variant.getRef()) && resultRow.itemEquals(ALT, variant.getAlt())) {
+					if (requirePass && !resultRow.itemEquals(FILTER, "PASS")) {
+						continue;
+					}
+					copyAnnotations(resultRow, variant);
+					ci.remove();
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Switch to a slim copy of the reference (see {@link ReferenceSlimmer}) if an up-to-date one exists.
+	 */
+	void preferSlimReference() {
+		tabix = ReferenceSlimmer.preferSlim(source, getSourceFields());
+	}
+
+	/** The full (not slimmed) reference file. */
+	TabixReader getSource() {
+		return source;
+	}
+
+	/** INFO keys read from the reference. */
+	Collection<String> getSourceFields() {
+		return fieldMap.keySet();
+	}
+
 	public Annotator setRequirePass(boolean require) {
 		requirePass = require;
 		return this;
 	}
 	
+	boolean isRequirePass() {
+		return requirePass;
+	}
+	
+	boolean isCopyID() {
+		return copyID;
+	}
+	
 	public Annotator setCopyID(boolean copyID) {
 		this.copyID  = copyID;
 		return this;
 	}
 
+	@Override
+	public Set<String> infoKeysRead() {
+		return Collections.emptySet();
+	}
+	
+	@Override
+	public Set<String> infoKeysWritten() {
+		Set<String> keys = new LinkedHashSet<String>(fieldMap.values());
+		if (copyID) keys.add(ID_KEY);
+		return keys;
+	}
+
+	@Override
+	public String cacheIdentity() {
+		return "TabixVCFAnnotator " + new File(source.filename).getAbsolutePath() + " " + fieldMap +
+				" requirePass=" + requirePass + " copyID=" + copyID + " prefix=" + prefix;
+	}
+	
+	@Override
+	public String cacheVersion() {
+		return fileVersion(source.filename) + " " + fileVersion(source.filename + ".tbi");
+	}
+
 	@Override
 	public Iterable<String> infoLines() {
 		ArrayList<String> infos = new ArrayList<String>();
@@ -0,0 +1,69 @@
+package org.drpowell.varitas;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.drpowell.vcf.VCFVariant;
+
+/**
+ * Groups a batch of variants into clusters of nearby variants on the same sequence, so that one
+ * tabix query can be made for each cluster instead of for each variant.
+ * 
+ * @author bpow
+ */
+class VariantClusters {
+	/**
+	 * Variants closer than this are queried together. A single query starts reading from the
+	 * beginning of its 16kb linear index window anyway, so reading through a few kb between
+	 * variants costs less than a second query.
+	 */
+	static final int DEFAULT_MAX_GAP = 4096;
+
+	/**
+	 * @return clusters of variants, each sorted by position
+	 */
+	static List<List<VCFVariant>> cluster(List<VCFVariant> variants, int maxGap) {
+		final Map<String, Integer> sequenceOrder = new HashMap<String, Integer>();
+		for (VCFVariant v : variants) {
+			if (!sequenceOrder.containsKey(v.getSequence())) {
+				sequenceOrder.put(v.getSequence(), sequenceOrder.size());
+			}
+		}
+		List<VCFVariant> sorted = new ArrayList<VCFVariant>(variants);
+		Collections.sort(sorted, new Comparator<VCFVariant>() {
+			@Override
+			public int compare(VCFVariant a, VCFVariant b) {
+				int cmp = sequenceOrder.get(a.getSequence()).compareTo(sequenceOrder.get(b.getSequence()));
+				if (cmp != 0) return cmp;
+				return a.getStart() < b.getStart() ? -1 : (a.getStart() == b.getStart() ? 0 : 1);
+			}
+		});
+		List<List<VCFVariant>> clusters = new ArrayList<List<VCFVariant>>();
+		List<VCFVariant> current = null;
+		int currentEnd = 0;
+		for (VCFVariant v : sorted) {
+			if (current == null || !current.get(0).getSequence().equals(v.getSequence()) ||
+					v.getStart() - currentEnd > maxGap) {
+				current = new ArrayList<VCFVariant>();
+				clusters.add(current);
+				currentEnd = v.getEnd();
+			}
+			current.add(v);
+			currentEnd = Math.max(currentEnd, v.getEnd());
+		}
+		return clusters;
+	}
+
+	static int maxEnd(List<VCFVariant> cluster) {
+		int end = 0;
+		for (VCFVariant v : cluster) {
+			end = Math.max(end, v.getEnd());
+		}
+		return end;
+	}
+
+}
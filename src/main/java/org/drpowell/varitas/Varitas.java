@@ -14,9 +14,15 @@ import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.lang.reflect.InvocationTargetException;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Scanner;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -24,6 +30,7 @@ import javax.script.ScriptEngine;
 import javax.script.ScriptEngineManager;
 import javax.script.ScriptException;
 
+import org.codehaus.groovy.control.CompilationFailedException;
 import org.drpowell.acclimate.CLIParser;
 import org.drpowell.acclimate.Option;
 import org.drpowell.tabix.TabixReader;
@@ -35,10 +42,15 @@ import org.drpowell.vcf.VCFParser;
 import org.drpowell.vcf.VCFUtils;
 import org.drpowell.vcf.VCFVariant;
 import org.drpowell.vcffilters.CompoundMutationFilter;
+import org.drpowell.vcffilters.ExpressionVCFFilter;
+import org.drpowell.vcffilters.GroovyVCFFilter;
 import org.drpowell.vcffilters.JavascriptBooleanVCFFilter;
 import org.drpowell.vcffilters.MendelianConstraintFilter;
+import org.drpowell.vcffilters.ParallelVCFFilter;
+import org.drpowell.vcffilters.RuleVCFFilter;
 import org.drpowell.vcffilters.ScriptVCFFilter;
 import org.drpowell.vcffilters.TSVWritingFilter;
+import org.drpowell.vcffilters.VCFFilteringIterator;
 import org.drpowell.vcffilters.VCFWritingFilter;
 import org.drpowell.vcffilters.VariantOutput;
 import org.drpowell.vcffilters.XLifyVcf;
@@ -48,6 +60,16 @@ public class Varitas implements Iterable<VCFVariant> {
 	private VCFIterator variants = null;
 	private static Logger logger = Logger.getLogger("Varitas");
 	private File configParent;
+	private final List<Annotator> annotators = new ArrayList<Annotator>();
+	private boolean preferSlimReferences = true;
+	private final List<Annotator> pendingAnnotators = new ArrayList<Annotator>();
+	private final List<Annotator> annotatorChain = new ArrayList<Annotator>();
+	private int annotationThreads = 1;
+	private int filterThreads = 1;
+	private long memoBytes = 0;
+	private final List<MemoizingAnnotator> memoizedAnnotators = new ArrayList<MemoizingAnnotator>();
+	private File cacheDirectory = null;
+	private final List<CachedAnnotator> cachedAnnotators = new ArrayList<CachedAnnotator>();
 
 	@Option(name = "-c", aliases = {"--config"}, usage = "configuration file (.js) for variant annotation")
 	public VCFIterator applyConfig(String filename) {
@@ -82,36 +104,208 @@ public class Varitas implements Iterable<VCFVariant> {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
 		}
+		flushAnnotators();
 		return this.variants;		
 	}
 	
+	@Option(name = "-p", aliases = {"--annotationThreads"}, usage = "number of threads for running independent annotators, which may change the order of the INFO entries (default: 1)", priority = -1)
+	public Varitas setAnnotationThreads(String threads) {
+		annotationThreads = Integer.parseInt(threads);
+		return this;
+	}
+	
+	@Option(name = "-P", aliases = {"--filterThreads"}, usage = "number of threads for filters (-j, -m, -f and -g), for which scripts must not keep anything from one variant to the next (default: 1)", priority = -1)
+	public Varitas setFilterThreads(String threads) {
+		filterThreads = Integer.parseInt(threads);
+		return this;
+	}
+	
+	@Option(name = "-M", aliases = {"--memoMegabytes"}, usage = "memory (in MB) for each annotator to remember the annotations of sites already seen (default: 0, none)", priority = -1)
+	public Varitas setMemoMegabytes(String megabytes) {
+		memoBytes = Long.parseLong(megabytes) << 20;
+		return this;
+	}
+	
+	/** The memoized annotators (see {@link #setMemoMegabytes(String)}), for their hit rates. */
+	public List<MemoizingAnnotator> getMemoizedAnnotators() {
+		return memoizedAnnotators;
+	}
+	
+	@Option(name = "-K", aliases = {"--cacheDir"}, usage = "directory for caches of annotations which are kept between runs (default: none)", priority = -1)
+	public Varitas setCacheDirectory(String directory) {
+		cacheDirectory = new File(directory);
+		return this;
+	}
+	
+	/** The annotators using the cache directory (see {@link #setCacheDirectory(String)}). */
+	public List<CachedAnnotator> getCachedAnnotators() {
+		return cachedAnnotators;
+	}
+	
+	/** Write the indexes of the annotation caches, so that they can be opened quickly next time. */
+	public void closeCaches() {
+		for (CachedAnnotator cached : cachedAnnotators) {
+			try {
+				cached.getCache().close();
+			} catch (IOException ioe) {
+				logger.warning("Problem closing annotation cache for " + cached.getDelegate() + ": " + ioe);
+			}
+		}
+	}
+	
+	private void addAnnotator(Annotator annotator) {
+		annotators.add(annotator);
+		pendingAnnotators.add(annotator);
+	}
+	
+	/**
+	 * Read the tables of the {@link Preloadable} annotators in a list at the same time (otherwise each is read when it is first needed).
+	 */
+	static void preload(List<Annotator> annotators, int threads) {
+		List<Future<?>> reads = new ArrayList<Future<?>>();
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			for (Annotator annotator : annotators) {
+				if (annotator instanceof Preloadable) {
+					final Preloadable preloadable = (Preloadable) annotator;
+					reads.add(executor.submit(new Runnable() {
+						@Override
+						public void run() {
+							preloadable.preload();
+						}
+					}));
+				}
+			}
+			for (Future<?> read : reads) {
+				read.get();
+			}
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while reading annotation tables", ie);
+		} catch (ExecutionException ee) {
+			throw new RuntimeException("Problem while reading annotation tables", ee.getCause());
+		} finally {
+			executor.shutdown();
+		}
+	}
+	
+	/**
+	 * Add the annotators from a configuration to the chain-- they are held until the whole configuration
+	 * has been read so that any chained settings are known before deciding which can be run concurrently.
+	 */
+	private void flushAnnotators() {
+		if (annotationThreads > 1) {
+			preload(pendingAnnotators, annotationThreads);
+		}
+		if (cacheDirectory != null) {
+			for (int i = 0; i < pendingAnnotators.size(); i++) {
+				if (CachedAnnotator.canCache(pendingAnnotators.get(i))) {
+					try {
+						CachedAnnotator cached = new CachedAnnotator(pendingAnnotators.get(i), cacheDirectory);
+						cachedAnnotators.add(cached);
+						pendingAnnotators.set(i, cached);
+					} catch (IOException ioe) {
+						logger.warning("Unable to use annotation cache for " + pendingAnnotators.get(i) + ": " + ioe);
+					}
+				}
+			}
+		}
+		if (memoBytes > 0) {
+			for (int i = 0; i < pendingAnnotators.size(); i++) {
+				if (MemoizingAnnotator.canMemoize(pendingAnnotators.get(i))) {
+					MemoizingAnnotator memo = new MemoizingAnnotator(pendingAnnotators.get(i), memoBytes);
+					memoizedAnnotators.add(memo);
+					pendingAnnotators.set(i, memo);
+				}
+			}
+		}
+		if (annotationThreads > 1 && pendingAnnotators.size() > 1) {
+			variants = new ConcurrentAnnotatingIterator(variants, pendingAnnotators, annotationThreads,
+					ConcurrentAnnotatingIterator.DEFAULT_BATCH_SIZE);
+		} else {
+			for (Annotator annotator : pendingAnnotators) {
+				variants = new AnnotatingIterator(variants, annotator);
+			}
+		}
+		annotatorChain.addAll(pendingAnnotators);
+		pendingAnnotators.clear();
+	}
+	
 	@Option(name = "-f", aliases = {"--filter"}, usage = "script file(s) by which to filter variants")
 	public VCFIterator applyFilter(String filename) {
 		return applyFilter(FileUtils.findExistingFile(filename));
 	}
 	
 	@Option(name = "-F", aliases = {"--defaultFilter"}, usage = "apply default variant filter")
-	public ScriptVCFFilter applyDefaultFilter() {
-		return applyFilter(getClass().getResource("/defaultVariantFilter.js"));
+	public VCFIterator applyDefaultFilter() {
+		return applyRuleFilter(getClass().getResource("/defaultVariantFilter.rules"));
+	}
+	
+	@Option(name = "-r", aliases = {"--ruleFilter"}, usage = "file of threshold rules by which to filter variants")
+	public VCFIterator applyRuleFilter(String filename) {
+		return applyRuleFilter(FileUtils.findExistingFile(filename));
+	}
+	
+	private VCFIterator applyRuleFilter(URL rulesURL) {
+		try {
+			variants = new RuleVCFFilter(variants, rulesURL);
+		} catch (IOException ioe) {
+			String message = "Problem reading filter rules from " + rulesURL + ": " + ioe.getMessage();
+			logger.severe(message);
+			throw new RuntimeException(message, ioe);
+		}
+		return variants;
 	}
 	
 	private ScriptVCFFilter applyFilter(URL filterURL) {
-		ScriptVCFFilter filter = new ScriptVCFFilter(variants, filterURL, "javascript");
+		ScriptVCFFilter filter = new ScriptVCFFilter(variants, filterURL, "javascript", filterThreads);
 		variants = filter;
 		return filter;
 	}
 	
 	@Option(name = "-g", aliases = {"--groovyFilter"}, usage = "groovy script file by which to filter variants")
 	public VCFIterator applyGroovyFilter(String filename) {
-		variants = new ScriptVCFFilter(variants, FileUtils.findExistingFile(filename), "groovy");
+		URL filterURL = FileUtils.findExistingFile(filename);
+		try {
+			addFilter(new GroovyVCFFilter(variants, filterURL));
+		} catch (CompilationFailedException cfe) {
+			logger.info("Unable to compile " + filterURL + " statically, it will be run as a script:\n" + cfe.getMessage());
+			variants = new ScriptVCFFilter(variants, filterURL, "groovy", filterThreads);
+		} catch (IOException ioe) {
+			String message = "Problem reading groovy filter from " + filterURL + ": " + ioe.getMessage();
+			logger.severe(message);
+			throw new RuntimeException(message, ioe);
+		}
 		return variants;
 	}
 	
-	@Option(name = "-j", aliases = {"--jsBoolean"}, usage = "javascript by which to filter variants (if result is true, the variant passes)")
-	public JavascriptBooleanVCFFilter jsBoolean(String filter) {
-		JavascriptBooleanVCFFilter f = new JavascriptBooleanVCFFilter(variants, filter);
-		variants = f;
-		return f;
+	@Option(name = "-j", aliases = {"--jsBoolean"}, usage = "expression (or javascript) by which to filter variants (if result is true, the variant passes)")
+	public VCFIterator jsBoolean(String filter) {
+		VCFFilteringIterator f;
+		try {
+			f = new ExpressionVCFFilter(variants, filter);
+		} catch (IllegalArgumentException iae) {
+			logger.info("Filter will be evaluated as javascript: " + iae.getMessage());
+			JavascriptBooleanVCFFilter js = new JavascriptBooleanVCFFilter(variants, filter);
+			if (!js.isUsable()) {
+				// rather than passing every variant because of a mistake in the expression
+				String message = "Unable to use filter '" + filter + "': " + iae.getMessage();
+				logger.severe(message);
+				throw new RuntimeException(message, iae);
+			}
+			f = js;
+		}
+		return addFilter(f);
+	}
+	
+	/** Apply a filter, on several threads if there are filter threads and it allows it */
+	private VCFIterator addFilter(VCFFilteringIterator filter) {
+		if (filterThreads > 1 && filter.isParallelSafe()) {
+			variants = new ParallelVCFFilter(filter, filterThreads);
+		} else {
+			variants = filter;
+		}
+		return variants;
 	}
 	
 	@Option(name = "-i", aliases = {"--input"}, usage = "input file of variants (VCF format, provide '-' to read from stdin)", required = true, defaultArguments = {"-"}, priority = -1)
@@ -198,8 +392,7 @@ public class Varitas implements Iterable<VCFVariant> {
 	
 	@Option(name = "-m", aliases = {"--mendelianContstraint"}, usage = "apply mendelian constraint filter")
 	public VCFIterator applyMendelianConstraintFilter() {
-		variants = new MendelianConstraintFilter(variants);
-		return variants;
+		return addFilter(new MendelianConstraintFilter(variants));
 	}
 	
 	@Option(name = "-a", aliases = {"--addHeaders"}, usage = "file with additional headers to add to input vcf file")
@@ -222,7 +415,7 @@ public class Varitas implements Iterable<VCFVariant> {
 		URL url = FileUtils.findExistingFile(fileName, configParent);
 		try {
 			GeneAnnotator annotator = new GeneAnnotator(id, url);
-			variants = new AnnotatingIterator(variants, annotator);
+			addAnnotator(annotator);
 			return annotator;
 		} catch (IOException ioe) {
 			ioe.printStackTrace();
@@ -234,7 +427,7 @@ public class Varitas implements Iterable<VCFVariant> {
 	public SnpEffAnnotationSplitter snpEffSplitter() {
 		// FIXME -- we really only need one of these, and it should go before any gene annotators
 		SnpEffAnnotationSplitter a = new SnpEffAnnotationSplitter();
-		variants = new AnnotatingIterator(variants, a);
+		addAnnotator(a);
 		return a;
 	}
 
@@ -246,7 +439,8 @@ public class Varitas implements Iterable<VCFVariant> {
 		}
 		try {
 			TabixVCFAnnotator annotator = new TabixVCFAnnotator(new TabixReader(url.getFile()), fieldString);
-			variants = new AnnotatingIterator(variants, annotator);
+			if (preferSlimReferences) annotator.preferSlimReference();
+			addAnnotator(annotator);
 			return annotator;
 		} catch (IOException e) {
 			e.printStackTrace();
@@ -263,7 +457,8 @@ public class Varitas implements Iterable<VCFVariant> {
 		}
 		try {
 			TabixTSVAnnotator annotator = new TabixTSVAnnotator(new TabixReader(url.getFile()), fieldString);
-			variants = new AnnotatingIterator(variants, annotator);
+			if (preferSlimReferences) annotator.preferSlimReference();
+			addAnnotator(annotator);
 			return annotator;
 		} catch (IOException ioe) {
 			ioe.printStackTrace();
@@ -272,12 +467,125 @@ public class Varitas implements Iterable<VCFVariant> {
 		return null;
 	}
 	
+	/**
+	 * Add all of the annotations from a database made by {@link AnnotationDatabaseCompiler} (<code>varitas compile-db</code>).
+	 */
+	public TabixVCFAnnotator compiledDb(String fileName) {
+		URL url = FileUtils.findExistingFile(fileName, configParent);
+		if (url == null) {
+			logger.severe("Unable to read file '" + fileName + "'");
+			return null;
+		}
+		try {
+			TabixVCFAnnotator annotator = AnnotationDatabaseCompiler.openCompiled(url.getFile());
+			addAnnotator(annotator);
+			return annotator;
+		} catch (IOException e) {
+			e.printStackTrace();
+			logger.severe("Unable to read file '" + fileName + "':\n" + e.toString());
+		}
+		return null;
+	}
+	
+	/**
+	 * Add annotations from an allele hash file made by {@link AlleleHashStore} (<code>varitas build-hash</code>).
+	 */
+	public AlleleHashAnnotator alleleHashAnnotator(String fileName, String fieldString) {
+		URL url = FileUtils.findExistingFile(fileName, configParent);
+		if (url == null) {
+			logger.severe("Unable to read file '" + fileName + "'");
+			return null;
+		}
+		try {
+			AlleleHashAnnotator annotator = new AlleleHashAnnotator(AlleleHashStore.open(url.getFile()), fieldString);
+			addAnnotator(annotator);
+			return annotator;
+		} catch (IOException e) {
+			e.printStackTrace();
+			logger.severe("Unable to read file '" + fileName + "':\n" + e.toString());
+		}
+		return null;
+	}
+	
+	/**
+	 * Add annotations from a columnar copy of a tab-delimited reference made by {@link ColumnarStore} (<code>varitas build-columnar</code>).
+	 */
+	public ColumnarTSVAnnotator columnarAnnotator(String fileName, String fieldString) {
+		URL url = FileUtils.findExistingFile(fileName, configParent);
+		if (url == null) {
+			logger.severe("Unable to read file '" + fileName + "'");
+			return null;
+		}
+		try {
+			ColumnarTSVAnnotator annotator = new ColumnarTSVAnnotator(ColumnarStore.open(url.getFile()), fieldString);
+			addAnnotator(annotator);
+			return annotator;
+		} catch (IOException e) {
+			e.printStackTrace();
+			logger.severe("Unable to read file '" + fileName + "':\n" + e.toString());
+		}
+		return null;
+	}
+	
+	/**
+	 * Add flags or values for the regions (from a BED or GFF file) which variants overlap.
+	 */
+	public RegionAnnotator regionAnnotator(String fileName, String fieldString) {
+		URL url = FileUtils.findExistingFile(fileName, configParent);
+		if (url == null) {
+			logger.severe("Unable to read file '" + fileName + "'");
+			return null;
+		}
+		RegionAnnotator annotator = new RegionAnnotator(url.getFile(), fieldString);
+		addAnnotator(annotator);
+		return annotator;
+	}
+	
+	/** The annotators added by configuration(s), in the order they were added. */
+	List<Annotator> getAnnotators() {
+		return annotators;
+	}
+	
+	/** The annotators as they are run (which may be wrapped in a cache or memo), in order. */
+	List<Annotator> getAnnotatorChain() {
+		return annotatorChain;
+	}
+	
+	/** Whether slim copies of references (see {@link ReferenceSlimmer}) are used when available (default true). */
+	void setPreferSlimReferences(boolean prefer) {
+		preferSlimReferences = prefer;
+	}
+	
 	@Override
 	public Iterator<VCFVariant> iterator() {
 		return variants;
 	}
 	
-	public static void main(String... args) throws InvocationTargetException, IllegalAccessException {
+	public static void main(String... args) throws InvocationTargetException, IllegalAccessException, IOException {
+		if (args.length > 0 && "slim".equals(args[0])) {
+			ReferenceSlimmer.main(Arrays.copyOfRange(args, 1, args.length));
+			return;
+		}
+		if (args.length > 0 && "compile-db".equals(args[0])) {
+			AnnotationDatabaseCompiler.main(Arrays.copyOfRange(args, 1, args.length));
+			return;
+		}
+		if (args.length > 0 && "build-hash".equals(args[0])) {
+			AlleleHashStore.main(Arrays.copyOfRange(args, 1, args.length));
+			return;
+		}
+		if (args.length > 0 && "cohort".equals(args[0])) {
+			CohortAnnotator.main(Arrays.copyOfRange(args, 1, args.length));
+			return;
+		}
+		if (args.length > 0 && "build-filter".equals(args[0])) {
+			SiteFilter.main(Arrays.copyOfRange(args, 1, args.length));
+			return;
+		}
+		if (args.length > 0 && "build-columnar".equals(args[0])) {
+			ColumnarStore.main(Arrays.copyOfRange(args, 1, args.length));
+			return;
+		}
 		Varitas varitas = new Varitas();
 		CLIParser<Varitas> cli = new CLIParser<Varitas>(varitas).interpret(args);
 		if (args.length == 0) {
@@ -294,6 +602,13 @@ public class Varitas implements Iterable<VCFVariant> {
 		while (variants.hasNext()) {
 			variants.next();
 		}
+		for (MemoizingAnnotator memo : varitas.getMemoizedAnnotators()) {
+			logger.info(memo.getStatistics());
+		}
+		for (CachedAnnotator cached : varitas.getCachedAnnotators()) {
+			logger.info(cached.getCache().getStatistics());
+		}
+		varitas.closeCaches();
 	}
 	
 }
@@ -1,7 +1,9 @@
 package org.drpowell.vcf;
 
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
@@ -31,6 +33,8 @@ public class VCFVariant {
 	private static final CustomPercentEncoder INFO_ENCODER = CustomPercentEncoder.allowAsciiPrintable(true).recodeAdditionalCharacters(" ;=".toCharArray());
 	private String [] formatKeys;
 	private String [][] splitCalls;
+	private String copiedID; // for a copy made by copySite
+	private Map<Object, Object[]> derivedInfo; // by owner: {INFO values derived from, derived value}
 	
 	public VCFVariant(String line) {
 		this(line.split("\t", -1));
@@ -269,6 +273,60 @@ public class VCFVariant {
 		return this;
 	}
 	
+	/**
+	 * Make a copy of this site (the columns up to FILTER) with only the given INFO entries and no
+	 * genotypes, which can be annotated separately from this variant (e.g. on another thread).
+	 * Changes to the copy can be brought back with {@link #mergeSite(VCFVariant)}.
+	 */
+	public VCFVariant copySite(Collection<String> infoKeys) {
+		String [] siteRow = Arrays.copyOf(row, VCFParser.VCFFixedColumns.INFO.ordinal() + 1);
+		siteRow[VCFParser.VCFFixedColumns.INFO.ordinal()] = ".";
+		VCFVariant site = new VCFVariant(siteRow);
+		site.urlEncode = urlEncode;
+		site.copiedID = getID();
+		for (String key : infoKeys) {
+			String [] values = info.get(key);
+			if (values != null) site.info.put(key, values);
+		}
+		if (derivedInfo != null) {
+			site.derivedInfo = new HashMap<Object, Object[]>(derivedInfo);
+		}
+		return site;
+	}
+	
+	/**
+	 * Make a new site with just the position and alleles of this variant (no ID, INFO or genotypes), for
+	 * annotating once on behalf of every variant at the same site. Its annotations can be brought back to
+	 * any of them with {@link #mergeSite(VCFVariant)}.
+	 */
+	public VCFVariant siteOnly() {
+		return siteOnly(".", Collections.<String>emptySet());
+	}
+	
+	/**
+	 * Like {@link #siteOnly()}, but with the given INFO entries of an INFO column (e.g. as saved from annotating
+	 * the site before), which are brought back by {@link #mergeSite(VCFVariant)}.
+	 */
+	public VCFVariant siteOnly(String info, Collection<String> infoKeys) {
+		String [] siteRow = {getSequence(), Integer.toString(start), ".", getRef(), getAlt(), ".", ".", info};
+		return new VCFVariant(siteRow).copySite(infoKeys);
+	}
+	
+	/**
+	 * Bring back the INFO entries (and ID) which were changed in a copy made by {@link #copySite(Collection)}.
+	 */
+	public VCFVariant mergeSite(VCFVariant site) {
+		for (Entry<String, String[]> e : site.info.entrySet()) {
+			if (info.get(e.getKey()) != e.getValue()) {
+				info.put(e.getKey(), e.getValue());
+			}
+		}
+		if (!site.getID().equals(site.copiedID)) {
+			mergeID(site.getID());
+		}
+		return this;
+	}
+	
 	public String [] getCalls() {
 		int num = row.length - VCFParser.VCFFixedColumns.SIZE;
 		if (num <= 0) {
@@ -278,6 +336,9 @@ public class VCFVariant {
 		}
 	}
 	
+	/**
+	 * @return null if there is no such sample, or the sample has no value for the key
+	 */
 	public String getGenotypeValue(int sampleIndex, String key) {
 		if (splitCalls == null) {
 			String [] callStrings = getCalls();
@@ -287,7 +348,11 @@ public class VCFVariant {
 			}
 			splitCalls = calls;
 		}
-		return splitCalls[sampleIndex][findFormatItemIndex(key)];
+		int index = findFormatItemIndex(key);
+		if (index < 0 || sampleIndex < 0 || sampleIndex >= splitCalls.length || index >= splitCalls[sampleIndex].length) {
+			return null; // trailing fields may be dropped, per the spec
+		}
+		return splitCalls[sampleIndex][index];
 	}
 	
 	public String getGenotype(int sampleIndex) {
@@ -364,6 +429,55 @@ public class VCFVariant {
 		return join(",", vals);
 	}
 
+	/**
+	 * Get a value which was computed from an INFO entry and saved with {@link #putDerivedInfo(String, Object, Object)}.
+	 * 
+	 * @param owner - identifies the computation (e.g. the object doing it)
+	 * @return null if there is no saved value, or the INFO entry has changed since it was saved
+	 */
+	public Object getDerivedInfo(String key, Object owner) {
+		if (derivedInfo == null) return null;
+		Object [] derived = derivedInfo.get(owner);
+		if (derived == null || derived[0] != info.get(key)) return null;
+		return derived[1];
+	}
+	
+	/**
+	 * Save a value computed from an INFO entry (e.g. a parsed form of it), so that it need not be
+	 * computed again for this variant unless the entry is changed.
+	 */
+	public VCFVariant putDerivedInfo(String key, Object owner, Object value) {
+		if (derivedInfo == null) derivedInfo = new HashMap<Object, Object[]>(4);
+		derivedInfo.put(owner, new Object[] {info.get(key), value});
+		return this;
+	}
+	
+	/**
+	 * Find the value for one key in an INFO column which has not been parsed, without parsing the rest of it.
+	 * 
+	 * @return the same as {@link #getInfoValue(String)} would for a variant with this INFO column
+	 */
+	public static String findInfoValue(String info, String key) {
+		if (".".equals(info)) return null;
+		String value = null;
+		int entryStart = 0;
+		while (entryStart < info.length()) {
+			int entryEnd = info.indexOf(';', entryStart);
+			if (entryEnd < 0) entryEnd = info.length();
+			if (info.startsWith(key, entryStart)) {
+				int after = entryStart + key.length();
+				if (after == entryEnd) {
+					value = ""; // a flag
+				} else if (info.charAt(after) == '=') {
+					// as for splitInfoField, a later duplicate wins
+					value = join(",", decodeInfo(true, info.substring(after + 1, entryEnd).split(",")));
+				}
+			}
+			entryStart = entryEnd + 1;
+		}
+		return value;
+	}
+	
 	public boolean hasInfo(String key) {
 		return info.containsKey(key);
 	}
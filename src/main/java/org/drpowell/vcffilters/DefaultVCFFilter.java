@@ -42,4 +42,9 @@ public class DefaultVCFFilter extends VCFFilteringIterator {
 		return filterCombo(v);
 	}
 
+	@Override
+	public boolean isParallelSafe() {
+		return true;
+	}
+
 }
@@ -0,0 +1,32 @@
+package org.drpowell.vcffilters;
+
+import org.drpowell.vcf.VCFIterator;
+import org.drpowell.vcf.VCFVariant;
+
+/**
+ * Passes the variants for which a {@link VariantExpression} is true.
+ * 
+ * @author bpow
+ */
+public class ExpressionVCFFilter extends VCFFilteringIterator {
+	private final VariantExpression.Predicate predicate;
+
+	/**
+	 * @throws IllegalArgumentException if the filter is not a valid {@link VariantExpression}
+	 */
+	public ExpressionVCFFilter(VCFIterator client, String filter) {
+		super(client);
+		predicate = VariantExpression.compile(filter);
+	}
+
+	@Override
+	public VCFVariant filter(VCFVariant variant) {
+		return predicate.test(variant) ? variant : null;
+	}
+
+	@Override
+	public boolean isParallelSafe() {
+		return true;
+	}
+
+}
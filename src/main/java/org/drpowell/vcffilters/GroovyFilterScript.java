@@ -0,0 +1,12 @@
+package org.drpowell.vcffilters;
+
+import groovy.lang.Script;
+
+/**
+ * The base class of groovy filter scripts compiled by {@link GroovyVCFFilter}, so that a script which
+ * defines <code>VCFVariant filter(VCFVariant v)</code> implements {@link VariantFilter}.
+ * 
+ * @author bpow
+ */
+public abstract class GroovyFilterScript extends Script implements VariantFilter {
+}
@@ -0,0 +1,115 @@
+package org.drpowell.vcffilters;
+
+import groovy.lang.Binding;
+import groovy.lang.GroovyClassLoader;
+import groovy.lang.GroovyCodeSource;
+import groovy.lang.MissingPropertyException;
+import groovy.transform.CompileStatic;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.net.URL;
+
+import org.codehaus.groovy.control.CompilationFailedException;
+import org.codehaus.groovy.control.CompilerConfiguration;
+import org.codehaus.groovy.control.customizers.ASTTransformationCustomizer;
+import org.codehaus.groovy.control.customizers.ImportCustomizer;
+import org.codehaus.groovy.runtime.InvokerHelper;
+import org.drpowell.vcf.VCFHeaders;
+import org.drpowell.vcf.VCFIterator;
+import org.drpowell.vcf.VCFVariant;
+
+/**
+ * Filters variants with a groovy script which is compiled statically (with <code>@CompileStatic</code>)
+ * into a {@link VariantFilter}, so that it is called directly rather than through a script engine.
+ *
+ * The script must define <code>VCFVariant filter(VCFVariant v)</code>, with the types given. The
+ * packages <code>org.drpowell.vcf</code>, <code>org.drpowell.varitas</code> and <code>org.drpowell.vcffilters</code>
+ * are imported. Any statements outside of the method are run once for each thread which filters with the
+ * script (each has its own instance), and the script may define <code>headers</code> (with <code>@Field</code>)
+ * to add to the VCF headers, as for {@link ScriptVCFFilter}.
+ *
+ * @author bpow
+ */
+public class GroovyVCFFilter extends VCFFilteringIterator {
+	private final Class<?> scriptClass;
+	/** each thread filters with its own instance of the script, so that its fields are not shared */
+	private final ThreadLocal<VariantFilter> instances = new ThreadLocal<VariantFilter>() {
+		@Override
+		protected VariantFilter initialValue() {
+			return newInstance(scriptClass);
+		}
+	};
+
+	/**
+	 * @throws CompilationFailedException if the script cannot be compiled statically (e.g. if it is written for
+	 * {@link ScriptVCFFilter}, without types)
+	 */
+	public GroovyVCFFilter(VCFIterator client, URL filterURL) throws IOException {
+		super(client);
+		scriptClass = compile(filterURL);
+		GroovyFilterScript script = newInstance(scriptClass);
+		Object headers;
+		try {
+			headers = script.getProperty("headers");
+		} catch (MissingPropertyException mpe) {
+			headers = null;
+		}
+		VCFHeaders withScriptHeaders = new VCFHeaders(getHeaders());
+		ScriptVCFFilter.addHeaders(withScriptHeaders, headers);
+		setOriginalHeaders(withScriptHeaders);
+		instances.set(script);
+	}
+
+	static Class<?> compile(URL filterURL) throws IOException {
+		CompilerConfiguration config = new CompilerConfiguration();
+		config.setScriptBaseClass(GroovyFilterScript.class.getName());
+		config.addCompilationCustomizers(
+				new ImportCustomizer().addStarImports("org.drpowell.vcf", "org.drpowell.varitas", "org.drpowell.vcffilters"),
+				new ASTTransformationCustomizer(CompileStatic.class));
+		GroovyClassLoader loader = new GroovyClassLoader(GroovyVCFFilter.class.getClassLoader(), config);
+		Reader reader = new InputStreamReader(filterURL.openStream());
+		try {
+			return loader.parseClass(new GroovyCodeSource(reader, scriptName(filterURL), filterURL.toString()));
+		} finally {
+			reader.close();
+		}
+	}
+
+	/** A new instance of the script, whose statements (outside of the filter method) have been run */
+	private static GroovyFilterScript newInstance(Class<?> scriptClass) {
+		GroovyFilterScript script = (GroovyFilterScript) InvokerHelper.createScript(scriptClass, new Binding());
+		script.run();
+		return script;
+	}
+
+	/** A class name for the script, from its file name */
+	private static String scriptName(URL filterURL) {
+		String name = filterURL.getPath();
+		name = name.substring(name.lastIndexOf('/') + 1);
+		if (name.endsWith(".groovy")) name = name.substring(0, name.length() - ".groovy".length());
+		StringBuilder sb = new StringBuilder();
+		for (char c : name.toCharArray()) {
+			sb.append(Character.isJavaIdentifierPart(c) ? c : '_');
+		}
+		if (sb.length() == 0 || !Character.isJavaIdentifierStart(sb.charAt(0))) sb.insert(0, "filter_");
+		return sb.toString();
+	}
+
+	@Override
+	public VCFVariant filter(VCFVariant variant) {
+		return instances.get().filter(variant);
+	}
+
+	/**
+	 * Each thread has its own instance of the script, but the script is assumed not to keep anything from
+	 * one variant to the next (since each thread only sees some of the variants), as for a {@link ScriptVCFFilter}
+	 * with more than one thread.
+	 */
+	@Override
+	public boolean isParallelSafe() {
+		return true;
+	}
+
+}
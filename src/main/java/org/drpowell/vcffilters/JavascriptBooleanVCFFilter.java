@@ -20,6 +20,10 @@ public class JavascriptBooleanVCFFilter extends VCFFilteringIterator {
 	private CompiledScript initializeEngine(String filter) {
 		ScriptEngineManager manager = new ScriptEngineManager();
 		ScriptEngine engine = manager.getEngineByName("JavaScript");
+		if (engine == null) {
+			Logger.getLogger(this.getClass().getName()).severe("No javascript engine is available, this filter will pass all variants:\n" + filter);
+			return null;
+		}
 		CompiledScript cs;
 		try {
 			cs = ((Compilable) engine).compile("with (variant) { " + filter + "}");
@@ -36,6 +40,11 @@ public class JavascriptBooleanVCFFilter extends VCFFilteringIterator {
 		script = initializeEngine(filter);
 	}
 
+	/** @return false if the filter could not be compiled (or there is no javascript engine), so it passes all variants */
+	public boolean isUsable() {
+		return script != null;
+	}
+
 	@Override
 	public VCFVariant filter(VCFVariant variant) {
 		if (script == null) return variant;
@@ -70,6 +70,11 @@ public class MendelianConstraintFilter extends VCFFilteringIterator {
 		return newHeaders;
 	}
 	
+	@Override
+	public boolean isParallelSafe() {
+		return true; // only the variant being filtered is annotated
+	}
+	
 	private boolean singleAllele(int genotype) {
 		//return Integer.bitCount(genotype) == 1;
 		return (genotype > 0) && ((genotype & (genotype-1)) == 0);
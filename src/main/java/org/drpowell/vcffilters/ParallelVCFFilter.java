@@ -0,0 +1,127 @@
+package org.drpowell.vcffilters;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.drpowell.vcf.VCFVariant;
+
+/**
+ * Runs the {@link VCFFilteringIterator#filter(VCFVariant)} of another filter on several threads, for
+ * filters which declare that this is safe (see {@link VCFFilteringIterator#isParallelSafe()}).
+ *
+ * Variants are taken from the other filter's client in batches, and each batch is filtered by one
+ * thread. The variants which pass are returned in their original order. At most a given number of
+ * batches (the window) are taken ahead of those being returned, to bound the memory used.
+ *
+ * @author bpow
+ */
+public class ParallelVCFFilter extends VCFFilteringIterator {
+	public static final int DEFAULT_BATCH_SIZE = 256;
+	private final VCFFilteringIterator filter;
+	private final int batchSize;
+	private final int window;
+	private ExecutorService executor;
+	private final ArrayDeque<Future<VCFVariant []>> pending = new ArrayDeque<Future<VCFVariant []>>();
+	private VCFVariant [] results = new VCFVariant[0];
+	private int resultIndex = 0;
+
+	public ParallelVCFFilter(VCFFilteringIterator filter, int threads) {
+		this(filter, threads, DEFAULT_BATCH_SIZE, 2 * threads);
+	}
+
+	/**
+	 * @param filter - a filter which has not been used yet, whose client will be read instead
+	 * @param window - the most batches to be filtering or holding at once
+	 */
+	public ParallelVCFFilter(VCFFilteringIterator filter, int threads, int batchSize, int window) {
+		super(filter.getDelegate(), filter.getHeaders());
+		if (!filter.isParallelSafe()) {
+			throw new IllegalArgumentException(filter + " cannot be run on more than one thread");
+		}
+		this.filter = filter;
+		this.batchSize = batchSize;
+		this.window = Math.max(1, window);
+		executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "filter");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	private VCFVariant [] nextBatch() {
+		VCFVariant [] batch = new VCFVariant[batchSize];
+		int size = 0;
+		while (size < batchSize && delegate.hasNext()) {
+			batch[size++] = delegate.next();
+		}
+		return size == batchSize ? batch : Arrays.copyOf(batch, size);
+	}
+
+	private VCFVariant [] nextResults() {
+		while (pending.size() < window && delegate.hasNext()) {
+			final VCFVariant [] batch = nextBatch();
+			pending.add(executor.submit(new Callable<VCFVariant []>() {
+				@Override
+				public VCFVariant [] call() {
+					for (int i = 0; i < batch.length; i++) {
+						batch[i] = filter.filter(batch[i]);
+					}
+					return batch;
+				}
+			}));
+		}
+		try {
+			return pending.remove().get();
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while filtering", ie);
+		} catch (ExecutionException ee) {
+			throw new RuntimeException("Problem while filtering", ee.getCause());
+		}
+	}
+
+	@Override
+	protected VCFVariant computeNext() {
+		while (true) {
+			while (resultIndex < results.length) {
+				VCFVariant variant = results[resultIndex++];
+				if (variant != null) return variant;
+			}
+			if (pending.isEmpty() && !delegate.hasNext()) {
+				if (executor != null) {
+					executor.shutdown();
+					executor = null;
+				}
+				return endOfData();
+			}
+			results = nextResults();
+			resultIndex = 0;
+		}
+	}
+
+	@Override
+	public VCFVariant filter(VCFVariant variant) {
+		return filter.filter(variant);
+	}
+
+	@Override
+	public boolean isParallelSafe() {
+		return true;
+	}
+
+	/** The filter being run in parallel */
+	public VCFFilteringIterator getFilter() {
+		return filter;
+	}
+
+}
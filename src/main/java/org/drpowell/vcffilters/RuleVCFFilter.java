@@ -0,0 +1,363 @@
+package org.drpowell.vcffilters;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.logging.Logger;
+
+import org.drpowell.vcf.VCFIterator;
+import org.drpowell.vcf.VCFParser;
+import org.drpowell.vcf.VCFVariant;
+
+/**
+ * Filters variants by a file of threshold rules, such as the default filter (<code>defaultVariantFilter.rules</code>):
+ *
+ * <pre>
+ *   match all
+ *   FILTER   in  PASS,.
+ *   IMPACT   in  HIGH,MODERATE
+ *   NIEHSAF  &lt;=  0.01  missing=pass  lists=first
+ * </pre>
+ *
+ * Each rule is a key (an INFO key, or one of the fixed columns such as FILTER or QUAL), an operator
+ * (<code>&lt; &lt;= &gt; &gt;= == !=</code> to compare numbers, or <code>in</code> and <code>notin</code> for a
+ * comma-separated list of values) and a threshold, and optionally whether a variant which has no value
+ * (or, for a number, one that is not a number) passes or fails the rule (the default is to fail).
+ * A value which is a list of numbers (such as an allele frequency for each ALT) counts as missing,
+ * unless the rule says to compare the first of them (<code>lists=first</code>, as javascript's parseFloat
+ * would), or whether any or all of them pass (<code>lists=any</code>, <code>lists=all</code>).
+ * A variant must pass all of the rules, or any one of them with <code>match any</code>.
+ *
+ * Variants are taken in batches, and each rule is applied to the batch in turn, only for the variants
+ * which it could still decide. The values are extracted into an array for a batch, and the variants
+ * which remain are kept in a selection vector. The rules are reordered as they go, so that those which
+ * decide the most variants for the least work are applied first.
+ *
+ * @author bpow
+ */
+public class RuleVCFFilter extends VCFFilteringIterator {
+	public static final int DEFAULT_BATCH_SIZE = 256;
+	private static Logger logger = Logger.getLogger(RuleVCFFilter.class.getCanonicalName());
+	private final List<Rule> rules = new ArrayList<Rule>();
+	private final boolean matchAny;
+	private final int batchSize;
+	private final ArrayDeque<VCFVariant> passed = new ArrayDeque<VCFVariant>();
+	private long total = 0, passedTotal = 0;
+
+	private static final Comparator<Rule> BY_COST_PER_DECISION = new Comparator<Rule>() {
+		@Override
+		public int compare(Rule a, Rule b) {
+			return Double.compare(a.costPerDecision(), b.costPerDecision());
+		}
+	};
+
+	private static abstract class Rule {
+		final String key;
+		final int column; // for the fixed columns, or -1 for INFO
+		final boolean missingPasses;
+		final String source;
+		long evaluated = 0, decided = 0;
+
+		Rule(String key, boolean missingPasses, String source) {
+			this.key = key;
+			this.missingPasses = missingPasses;
+			this.source = source;
+			int c = -1;
+			for (VCFParser.VCFFixedColumns fixed : VCFParser.VCFFixedColumns.values()) {
+				if (fixed != VCFParser.VCFFixedColumns.INFO && fixed != VCFParser.VCFFixedColumns.FORMAT && fixed.name().equals(key)) {
+					c = fixed.ordinal();
+				}
+			}
+			column = c;
+		}
+
+		String value(VCFVariant variant) {
+			if (column < 0) return variant.getInfoValue(key);
+			return variant.getFixedColumn(column);
+		}
+
+		/** relative cost per variant: a fixed column is cheap, an INFO value needs a lookup, and a number needs parsing */
+		abstract double cost();
+
+		/**
+		 * The fraction of variants for which this rule decides the result (fails them, or passes them with
+		 * 'match any'), smoothed so that a rule which has not been applied much is still tried.
+		 */
+		double costPerDecision() {
+			return cost() * (evaluated + 2) / (decided + 1);
+		}
+
+		/**
+		 * Apply the rule to the selected variants of a batch.
+		 *
+		 * @param selected - the indices of the variants still to be decided, of which the first count are used
+		 * @param passes - set to the result of this rule for each selected variant
+		 */
+		abstract void apply(VCFVariant [] batch, int [] selected, int count, boolean [] passes);
+
+		@Override
+		public String toString() {
+			return source;
+		}
+	}
+
+	private static final int LT = 0, LE = 1, GT = 2, GE = 3, EQ = 4, NE = 5;
+	private static final List<String> OPERATORS = Arrays.asList("<", "<=", ">", ">=", "==", "!=");
+
+	private static final int LISTS_MISSING = 0, LISTS_FIRST = 1, LISTS_ANY = 2, LISTS_ALL = 3;
+	private static final List<String> LIST_POLICIES = Arrays.asList("missing", "first", "any", "all");
+
+	private static class NumberRule extends Rule {
+		final int op;
+		final double threshold;
+		final int lists;
+		double [] values = new double[0];
+
+		NumberRule(String key, int op, double threshold, boolean missingPasses, int lists, String source) {
+			super(key, missingPasses, source);
+			this.op = op;
+			this.threshold = threshold;
+			this.lists = lists;
+		}
+
+		boolean passes(double value) {
+			switch (op) {
+			case LT: return value < threshold;
+			case LE: return value <= threshold;
+			case GT: return value > threshold;
+			case GE: return value >= threshold;
+			case EQ: return value == threshold;
+			default: return value != threshold;
+			}
+		}
+
+		/**
+		 * @return the number to compare for a value, which for a list with <code>lists=any</code> or <code>lists=all</code>
+		 * is the one which decides the rule (a passing one for any, a failing one for all), or NaN if there is none
+		 */
+		double number(String value) {
+			if (value == null || lists == LISTS_MISSING || value.indexOf(',') < 0) {
+				return VariantExpression.toNumber(value);
+			}
+			String [] parts = value.split(",");
+			if (lists == LISTS_FIRST) return VariantExpression.toNumber(parts[0]);
+			double chosen = Double.NaN;
+			for (String part : parts) {
+				double d = VariantExpression.toNumber(part);
+				if (Double.isNaN(d)) continue;
+				if (Double.isNaN(chosen) || (passes(d) != passes(chosen) && passes(d) == (lists == LISTS_ANY))) {
+					chosen = d;
+				}
+			}
+			return chosen;
+		}
+
+		@Override
+		double cost() {
+			return column < 0 ? 3 : 2;
+		}
+
+		@Override
+		void apply(VCFVariant [] batch, int [] selected, int count, boolean [] passes) {
+			if (values.length < count) values = new double[batch.length];
+			for (int i = 0; i < count; i++) {
+				values[i] = number(value(batch[selected[i]]));
+			}
+			// NaN (missing) is handled separately, since it compares false
+			final double t = threshold;
+			switch (op) {
+			case LT: for (int i = 0; i < count; i++) passes[i] = values[i] < t; break;
+			case LE: for (int i = 0; i < count; i++) passes[i] = values[i] <= t; break;
+			case GT: for (int i = 0; i < count; i++) passes[i] = values[i] > t; break;
+			case GE: for (int i = 0; i < count; i++) passes[i] = values[i] >= t; break;
+			case EQ: for (int i = 0; i < count; i++) passes[i] = values[i] == t; break;
+			default: for (int i = 0; i < count; i++) passes[i] = values[i] != t; break;
+			}
+			for (int i = 0; i < count; i++) {
+				if (Double.isNaN(values[i])) passes[i] = missingPasses;
+			}
+		}
+	}
+
+	private static class SetRule extends Rule {
+		final String [] members;
+		final boolean negate;
+
+		SetRule(String key, String [] members, boolean negate, boolean missingPasses, String source) {
+			super(key, missingPasses, source);
+			this.members = members;
+			this.negate = negate;
+		}
+
+		@Override
+		double cost() {
+			return column < 0 ? 2 : 1;
+		}
+
+		@Override
+		void apply(VCFVariant [] batch, int [] selected, int count, boolean [] passes) {
+			for (int i = 0; i < count; i++) {
+				String value = value(batch[selected[i]]);
+				if (value == null) {
+					passes[i] = missingPasses;
+					continue;
+				}
+				boolean found = false;
+				for (int j = 0; j < members.length && !found; j++) {
+					found = members[j].equals(value);
+				}
+				passes[i] = found != negate;
+			}
+		}
+	}
+
+	public RuleVCFFilter(VCFIterator client, URL rulesURL) throws IOException {
+		this(client, rulesURL, DEFAULT_BATCH_SIZE);
+	}
+
+	public RuleVCFFilter(VCFIterator client, URL rulesURL, int batchSize) throws IOException {
+		super(client);
+		this.batchSize = batchSize;
+		boolean any = false;
+		BufferedReader br = new BufferedReader(new InputStreamReader(rulesURL.openStream()));
+		try {
+			String line;
+			int lineNumber = 0;
+			while ((line = br.readLine()) != null) {
+				lineNumber++;
+				int comment = line.indexOf('#');
+				if (comment >= 0) line = line.substring(0, comment);
+				line = line.trim();
+				if (line.length() == 0) continue;
+				String [] tokens = line.split("\\s+");
+				if ("match".equals(tokens[0]) && tokens.length == 2 && ("all".equals(tokens[1]) || "any".equals(tokens[1]))) {
+					any = "any".equals(tokens[1]);
+				} else {
+					try {
+						rules.add(parseRule(tokens, line));
+					} catch (IllegalArgumentException iae) {
+						throw new IOException("Problem with rule at line " + lineNumber + " of " + rulesURL + ": " + iae.getMessage());
+					}
+				}
+			}
+		} finally {
+			br.close();
+		}
+		matchAny = any;
+	}
+
+	private static Rule parseRule(String [] tokens, String source) {
+		if (tokens.length < 3 || tokens.length > 5) {
+			throw new IllegalArgumentException("expected 'key operator threshold [missing=pass|fail] [lists=first|any|all]'");
+		}
+		boolean missingPasses = false;
+		int lists = -1;
+		for (int i = 3; i < tokens.length; i++) {
+			if ("missing=pass".equals(tokens[i]) || "missing=fail".equals(tokens[i])) {
+				missingPasses = "missing=pass".equals(tokens[i]);
+			} else if (tokens[i].startsWith("lists=") && LIST_POLICIES.indexOf(tokens[i].substring("lists=".length())) > 0) {
+				lists = LIST_POLICIES.indexOf(tokens[i].substring("lists=".length()));
+			} else {
+				throw new IllegalArgumentException("expected missing=pass, missing=fail or lists=first|any|all, not " + tokens[i]);
+			}
+		}
+		if ("in".equals(tokens[1]) || "notin".equals(tokens[1])) {
+			if (lists >= 0) {
+				throw new IllegalArgumentException("lists= is only for comparing numbers");
+			}
+			return new SetRule(tokens[0], tokens[2].split(","), "notin".equals(tokens[1]), missingPasses, source);
+		}
+		int op = OPERATORS.indexOf(tokens[1]);
+		if (op < 0) {
+			throw new IllegalArgumentException("unknown operator " + tokens[1]);
+		}
+		try {
+			return new NumberRule(tokens[0], op, Double.parseDouble(tokens[2]), missingPasses,
+					lists < 0 ? LISTS_MISSING : lists, source);
+		} catch (NumberFormatException nfe) {
+			throw new IllegalArgumentException("threshold is not a number: " + tokens[2]);
+		}
+	}
+
+	/**
+	 * Apply the rules to a batch, leaving the indices of the variants which pass at the start of the result.
+	 *
+	 * @return the number of variants which pass
+	 */
+	private int applyRules(VCFVariant [] batch, int size, int [] result) {
+		// the variants not yet decided, a selection vector which shrinks as each rule is applied
+		int [] selected = new int[size];
+		for (int i = 0; i < size; i++) selected[i] = i;
+		int count = size;
+		boolean [] passes = new boolean[size];
+		int accepted = 0; // for 'match any', the variants which have already passed a rule
+		for (Rule rule : rules) {
+			if (count == 0) break;
+			rule.apply(batch, selected, count, passes);
+			int kept = 0;
+			for (int i = 0; i < count; i++) {
+				if (passes[i] == matchAny) {
+					if (matchAny) result[accepted++] = selected[i];
+				} else {
+					selected[kept++] = selected[i];
+				}
+			}
+			rule.evaluated += count;
+			rule.decided += count - kept;
+			count = kept;
+		}
+		if (!matchAny) {
+			System.arraycopy(selected, 0, result, 0, count);
+			return count;
+		}
+		if (rules.isEmpty()) {
+			System.arraycopy(selected, 0, result, 0, count);
+			return count;
+		}
+		// keep the order of the input
+		Arrays.sort(result, 0, accepted);
+		return accepted;
+	}
+
+	private void nextBatch() {
+		VCFVariant [] batch = new VCFVariant[batchSize];
+		int size = 0;
+		while (size < batchSize && delegate.hasNext()) {
+			batch[size++] = delegate.next();
+		}
+		int [] result = new int[size];
+		int count = applyRules(batch, size, result);
+		for (int i = 0; i < count; i++) {
+			passed.add(batch[result[i]]);
+		}
+		total += size;
+		passedTotal += count;
+		Collections.sort(rules, BY_COST_PER_DECISION);
+	}
+
+	@Override
+	protected VCFVariant computeNext() {
+		while (passed.isEmpty()) {
+			if (!delegate.hasNext()) {
+				logger.fine(String.format("%d of %d variants passed, rules in order: %s", passedTotal, total, rules));
+				return endOfData();
+			}
+			nextBatch();
+		}
+		return passed.remove();
+	}
+
+	@Override
+	public VCFVariant filter(VCFVariant variant) {
+		int [] result = new int[1];
+		return applyRules(new VCFVariant[] {variant}, 1, result) == 1 ? variant : null;
+	}
+
+}
@@ -2,8 +2,21 @@ package org.drpowell.vcffilters;
 
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.Reader;
 import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import java.util.logging.Logger;
 
 import javax.script.Invocable;
@@ -16,30 +29,71 @@ import org.drpowell.vcf.VCFIterator;
 import org.drpowell.vcf.VCFMeta;
 import org.drpowell.vcf.VCFVariant;
 
+/**
+ * Filters variants with a script, which defines a function <code>filter(variant)</code> returning the
+ * variant (which it may change) or null. It may instead define <code>filterBatch(variants)</code>, which
+ * is given an array of variants and returns an array (or list) of the same length with a variant or null
+ * in each place, to save the cost of calling into the script for each variant.
+ *
+ * Script engines are not thread-safe, so to filter with more than one thread a pool of engines is
+ * kept, each evaluated from the same script, and each batch of variants is filtered by one of them.
+ * The variants are returned in their original order. This is only correct if the script does not keep
+ * anything from one variant to the next.
+ *
+ * @author bpow
+ */
 public class ScriptVCFFilter extends VCFFilteringIterator {
+	public static final int DEFAULT_BATCH_SIZE = 256;
+	private static Logger logger = Logger.getLogger("VARITAS");
 
-	private Invocable invocable;
+	private final BlockingQueue<Invocable> engines;
+	private final int batchSize;
+	private final int window;
 	private VCFHeaders headers;
-	
-	private Invocable initializeEngine(URL filterURL, String language) {
+	private boolean usable = false; // false if the script could not be read or evaluated
+	private volatile boolean hasBatchFunction = true; // until the script is found not to define filterBatch
+	private ExecutorService executor;
+	private final ArrayDeque<Future<VCFVariant []>> pending = new ArrayDeque<Future<VCFVariant []>>();
+	private VCFVariant [] results = new VCFVariant[0];
+	private int resultIndex = 0;
+
+	private static String readScript(URL filterURL) throws IOException {
+		Reader reader = new InputStreamReader(filterURL.openStream());
+		try {
+			StringBuilder sb = new StringBuilder();
+			char [] buffer = new char[8192];
+			int n;
+			while ((n = reader.read(buffer)) >= 0) {
+				sb.append(buffer, 0, n);
+			}
+			return sb.toString();
+		} finally {
+			reader.close();
+		}
+	}
+
+	private static Invocable initializeEngine(String script, URL filterURL, String language) {
 		ScriptEngineManager manager = new ScriptEngineManager();
 		ScriptEngine engine = manager.getEngineByName(language);
+		if (engine == null) {
+			logger.severe("No script engine for " + language + " to run filter from " + filterURL + ", will pass all variants!");
+			return null;
+		}
 		try {
 			// FIXME-- why doesn't this work? Can I use a CompilerConfiguration with JSR223?
 //			if ("groovy".equalsIgnoreCase(language)) {
 //				engine.eval("import org.drpowell.vcf.*\nimport org.drpowell.varitas.*\nimport org.drpowell.vcffilters.*\n\n");
 //			}
-			engine.eval(new InputStreamReader(filterURL.openStream()));
+			engine.eval(script);
 		} catch (ScriptException e) {
-			Logger.getLogger("VARITAS").severe("Error preparing filter from " +
-					filterURL.toString() + ", will pass all variants!\n" + e);
-			engine = null;
-		} catch (IOException e) {
-			Logger.getLogger("VARITAS").severe("Error reading filter from " +
-					filterURL.toString() + ", will pass all variants!\n" + e);
-			engine = null;
+			logger.severe("Error preparing filter from " + filterURL.toString() + ", will pass all variants!\n" + e);
+			return null;
 		}
-		Object moreHeaders = engine.get("headers");
+		return (Invocable) engine;
+	}
+
+	/** Add the headers which a script defines (as the variable <code>headers</code>, a string or a list) */
+	static void addHeaders(VCFHeaders headers, Object moreHeaders) {
 		if (moreHeaders != null) {
 			if (moreHeaders instanceof String) {
 				for (String header : ((String) moreHeaders).split("\n")) {
@@ -50,21 +104,56 @@ public class ScriptVCFFilter extends VCFFilteringIterator {
 					headers.add(new VCFMeta(header.toString()));
 				}
 			} else {
-				Logger.getLogger("VARITAS").warning("Unable to add headers for script filter");
+				logger.warning("Unable to add headers for script filter");
 			}
 		}
-		return (Invocable) engine;
 	}
 
 	public ScriptVCFFilter(VCFIterator client, URL filterURL, String language) {
+		this(client, filterURL, language, 1);
+	}
+
+	/**
+	 * @param threads - the number of threads (and script engines) with which to filter
+	 */
+	public ScriptVCFFilter(VCFIterator client, URL filterURL, String language, int threads) {
 		super(client);
-		headers = client.getHeaders();
-		invocable = initializeEngine(filterURL, language);
+		// a copy, since the client's headers may be shared (e.g. by an AnnotatingIterator)
+		headers = new VCFHeaders(client.getHeaders());
+		setOriginalHeaders(headers);
+		batchSize = DEFAULT_BATCH_SIZE;
+		window = 2 * threads;
+		engines = new ArrayBlockingQueue<Invocable>(threads);
+		String script;
+		try {
+			script = readScript(filterURL);
+		} catch (IOException e) {
+			logger.severe("Error reading filter from " + filterURL.toString() + ", will pass all variants!\n" + e);
+			return;
+		}
+		Invocable first = initializeEngine(script, filterURL, language);
+		if (first == null) return;
+		// the headers are only merged once, from the first engine
+		addHeaders(headers, ((ScriptEngine) first).get("headers"));
+		engines.add(first);
+		usable = true;
+		for (int i = 1; i < threads; i++) {
+			Invocable another = initializeEngine(script, filterURL, language);
+			if (another != null) engines.add(another);
+		}
+		if (threads > 1) {
+			executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "script filter");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
 	}
 
-	@Override
-	public VCFVariant filter(VCFVariant variant) {
-		if (invocable == null) return variant;
+	private static VCFVariant filterOne(Invocable invocable, VCFVariant variant) {
 		try {
 			return (VCFVariant) invocable.invokeFunction("filter", variant);
 		} catch (NoSuchMethodException e) {
@@ -76,4 +165,121 @@ public class ScriptVCFFilter extends VCFFilteringIterator {
 		}
 	}
 
+	/**
+	 * Filter a batch with one engine, in place (leaving null for the variants which do not pass).
+	 */
+	private VCFVariant [] filterBatch(Invocable invocable, VCFVariant [] batch) {
+		if (hasBatchFunction) {
+			try {
+				Object result = invocable.invokeFunction("filterBatch", (Object) batch);
+				return batchResult(result, batch);
+			} catch (NoSuchMethodException e) {
+				hasBatchFunction = false;
+			} catch (ScriptException e) {
+				e.printStackTrace();
+				return batch;
+			}
+		}
+		for (int i = 0; i < batch.length; i++) {
+			batch[i] = filterOne(invocable, batch[i]);
+		}
+		return batch;
+	}
+
+	/**
+	 * Copy the result of filterBatch, which may be an array or a list (or, from javascript, a map of the indices),
+	 * into the batch.
+	 */
+	private static VCFVariant [] batchResult(Object result, VCFVariant [] batch) {
+		Object [] values;
+		if (result instanceof Object []) {
+			values = (Object []) result;
+		} else if (result instanceof Collection) {
+			values = ((Collection<?>) result).toArray();
+		} else if (result instanceof Map) {
+			values = ((Map<?, ?>) result).values().toArray();
+		} else {
+			throw new RuntimeException("filterBatch should return an array of variants (or nulls), not " + result);
+		}
+		if (values.length != batch.length) {
+			throw new RuntimeException("filterBatch returned " + values.length + " results for " + batch.length + " variants");
+		}
+		for (int i = 0; i < values.length; i++) {
+			batch[i] = (VCFVariant) values[i];
+		}
+		return batch;
+	}
+
+	private VCFVariant [] nextBatch() {
+		VCFVariant [] batch = new VCFVariant[batchSize];
+		int size = 0;
+		while (size < batchSize && delegate.hasNext()) {
+			batch[size++] = delegate.next();
+		}
+		return size == batchSize ? batch : Arrays.copyOf(batch, size);
+	}
+
+	private VCFVariant [] filterWithPool(VCFVariant [] batch) throws InterruptedException {
+		Invocable invocable = engines.take();
+		try {
+			return filterBatch(invocable, batch);
+		} finally {
+			engines.add(invocable);
+		}
+	}
+
+	/** Filter the next batch, keeping up to the window of batches being filtered by the pool */
+	private VCFVariant [] nextResults() {
+		if (executor == null) {
+			return filterBatch(engines.peek(), nextBatch());
+		}
+		while (pending.size() < window && delegate.hasNext()) {
+			final VCFVariant [] batch = nextBatch();
+			pending.add(executor.submit(new Callable<VCFVariant []>() {
+				@Override
+				public VCFVariant [] call() throws InterruptedException {
+					return filterWithPool(batch);
+				}
+			}));
+		}
+		try {
+			return pending.remove().get();
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while filtering", ie);
+		} catch (ExecutionException ee) {
+			throw new RuntimeException("Problem while filtering", ee.getCause());
+		}
+	}
+
+	@Override
+	protected VCFVariant computeNext() {
+		if (!usable) {
+			// the script could not be used, so everything passes
+			return delegate.hasNext() ? delegate.next() : endOfData();
+		}
+		while (true) {
+			while (resultIndex < results.length) {
+				VCFVariant variant = results[resultIndex++];
+				if (variant != null) return variant;
+			}
+			if (pending.isEmpty() && !delegate.hasNext()) {
+				if (executor != null) {
+					executor.shutdown();
+					executor = null;
+				}
+				return endOfData();
+			}
+			results = nextResults();
+			resultIndex = 0;
+		}
+	}
+
+	@Override
+	public VCFVariant filter(VCFVariant variant) {
+		Invocable invocable = engines.peek();
+		if (invocable == null) return variant;
+		return filterOne(invocable, variant);
+	}
+
 }
@@ -27,6 +27,8 @@ import org.drpowell.vcf.VCFVariant;
 public class TSVWritingFilter implements VariantOutput {
 	private final VCFIterator variants;
 	private final PrintWriter pw;
+	private final VCFHeaders headers;
+	private final String [] infoKeys;
 	private Map<String, VCFMeta> formats;
 	private List<String> samples;
 
@@ -45,7 +47,8 @@ public class TSVWritingFilter implements VariantOutput {
 	public TSVWritingFilter(VCFIterator variants, OutputStream os) {
 		this.variants = variants;
 		this.pw = new PrintWriter(os);
-		VCFHeaders vcfHeaders = variants.getHeaders();
+		VCFHeaders vcfHeaders = headers = variants.getHeaders();
+		infoKeys = vcfHeaders.infos().keySet().toArray(new String[0]);
 		Map<String, VCFMeta> headerFormats = vcfHeaders.formats();
 		// make the formats LinkedHashMap in a special order
 		formats = new LinkedHashMap<String, VCFMeta>(headerFormats.size()*3/2, 0.75f);
@@ -75,7 +78,7 @@ public class TSVWritingFilter implements VariantOutput {
 	
 	private VCFVariant writeRow(VCFVariant v) {
 		StringBuilder sb = new StringBuilder(v.toString());
-		for (String i : variants.getHeaders().infos().keySet()) {
+		for (String i : infoKeys) {
 			String value = v.getInfoValue(i, true);
 			if ("".equals(value)) {
 				value = i; // flag fields should display as something.
@@ -130,7 +133,7 @@ public class TSVWritingFilter implements VariantOutput {
 
 	@Override
 	public VCFHeaders getHeaders() {
-		return variants.getHeaders();
+		return headers;
 	}
 
 }
@@ -27,4 +27,12 @@ public abstract class VCFFilteringIterator extends FilteringIterator<VCFVariant>
 		return originalHeaders;
 	}
 
+	/**
+	 * Whether {@link #filter(VCFVariant)} can be called for several variants at once, because it changes
+	 * nothing but the variant it is given (so that it can be run by a {@link ParallelVCFFilter}).
+	 */
+	public boolean isParallelSafe() {
+		return false;
+	}
+
 }
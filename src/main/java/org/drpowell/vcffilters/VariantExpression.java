@@ -0,0 +1,630 @@
+package org.drpowell.vcffilters;
+
+import org.drpowell.vcf.VCFParser;
+import org.drpowell.vcf.VCFVariant;
+
+/**
+ * A small expression language for filtering variants, which is parsed once and compiled into a tree of
+ * predicate objects (so that no script engine is needed, and the JIT can inline the whole filter).
+ *
+ * <pre>
+ *   expression := or
+ *   or         := and ( '||' and )*
+ *   and        := unary ( '&amp;&amp;' unary )*
+ *   unary      := '!' unary | comparison
+ *   comparison := sum ( ( '==' | '!=' | '&lt;' | '&lt;=' | '&gt;' | '&gt;=' ) sum )?
+ *   sum        := product ( ( '+' | '-' ) product )*
+ *   product    := sign ( ( '*' | '/' ) sign )*
+ *   sign       := '-' sign | primary
+ *   primary    := number | string | 'true' | 'false' | '(' expression ')' | accessor | function
+ *   accessor   := CHROM | POS | END | ID | REF | ALT | QUAL | FILTER
+ *               | INFO.key | INFO[string] | SAMPLE[integer].key
+ *   function   := num(x) | defined(x) | contains(x, string) | hasFilter(string)
+ * </pre>
+ *
+ * INFO and sample values are strings (null if missing, "" for a flag). When a string is compared to a
+ * number, or used in arithmetic, it is converted to a number, and a value which is missing or is not a
+ * single number becomes NaN (so that any comparison but != is false), as it would in javascript. In a
+ * boolean context a string is true if it is present (so <code>INFO.DB</code> tests for the flag) and a
+ * number is true if it is neither 0 nor NaN. For example:
+ *
+ * <pre>
+ *   FILTER == "PASS" &amp;&amp; INFO.DP &gt;= 10 &amp;&amp; !(INFO.AF &gt; 0.01)
+ * </pre>
+ *
+ * @author bpow
+ */
+public class VariantExpression {
+	/** A compiled boolean expression */
+	public static abstract class Predicate {
+		public abstract boolean test(VCFVariant variant);
+	}
+
+	static abstract class NumberValue {
+		abstract double number(VCFVariant variant);
+	}
+
+	static abstract class StringValue {
+		abstract String string(VCFVariant variant);
+	}
+
+	private static final class NumberConstant extends NumberValue {
+		final double value;
+
+		NumberConstant(double value) {
+			this.value = value;
+		}
+
+		@Override
+		double number(VCFVariant variant) {
+			return value;
+		}
+	}
+
+	private static final class StringConstant extends StringValue {
+		final String value;
+
+		StringConstant(String value) {
+			this.value = value;
+		}
+
+		@Override
+		String string(VCFVariant variant) {
+			return value;
+		}
+	}
+
+	private static final Predicate TRUE = new Predicate() {
+		@Override
+		public boolean test(VCFVariant variant) {
+			return true;
+		}
+	};
+
+	private static final Predicate FALSE = new Predicate() {
+		@Override
+		public boolean test(VCFVariant variant) {
+			return false;
+		}
+	};
+
+	private static final int EQ = 0, NE = 1, LT = 2, LE = 3, GT = 4, GE = 5;
+	private static final String [] COMPARISONS = {"==", "!=", "<", "<=", ">", ">="};
+
+	private final String source;
+	private int pos = 0;
+
+	private VariantExpression(String source) {
+		this.source = source;
+	}
+
+	/**
+	 * @throws IllegalArgumentException if the expression is not in this language
+	 */
+	public static Predicate compile(String expression) {
+		VariantExpression parser = new VariantExpression(expression);
+		Predicate predicate = asPredicate(parser.parseOr());
+		parser.skipSpace();
+		if (parser.pos < expression.length()) {
+			throw parser.error("unexpected '" + expression.charAt(parser.pos) + "'");
+		}
+		return predicate;
+	}
+
+	/** Convert a string to a number, with NaN for anything which is not a single number */
+	static double toNumber(String s) {
+		if (s == null || s.length() == 0 || ".".equals(s)) return Double.NaN;
+		char c = s.charAt(s.length() - 1);
+		if (c != '.' && (c < '0' || c > '9')) return Double.NaN; // also rules out lists and suffixes like 'd' or 'f'
+		try {
+			return Double.parseDouble(s);
+		} catch (NumberFormatException nfe) {
+			return Double.NaN;
+		}
+	}
+
+	// ----- conversions between the kinds of values
+
+	private static Predicate asPredicate(Object value) {
+		if (value instanceof Predicate) return (Predicate) value;
+		if (value instanceof NumberConstant) {
+			double d = ((NumberConstant) value).value;
+			return d != 0 && !Double.isNaN(d) ? TRUE : FALSE;
+		}
+		if (value instanceof NumberValue) {
+			final NumberValue n = (NumberValue) value;
+			return new Predicate() {
+				@Override
+				public boolean test(VCFVariant variant) {
+					double d = n.number(variant);
+					return d != 0 && !Double.isNaN(d);
+				}
+			};
+		}
+		final StringValue s = (StringValue) value;
+		return new Predicate() {
+			@Override
+			public boolean test(VCFVariant variant) {
+				return s.string(variant) != null;
+			}
+		};
+	}
+
+	private NumberValue asNumber(Object value) {
+		if (value instanceof NumberValue) return (NumberValue) value;
+		if (value instanceof StringConstant) return new NumberConstant(toNumber(((StringConstant) value).value));
+		if (value instanceof StringValue) {
+			final StringValue s = (StringValue) value;
+			return new NumberValue() {
+				@Override
+				double number(VCFVariant variant) {
+					return toNumber(s.string(variant));
+				}
+			};
+		}
+		throw error("a boolean cannot be used as a number");
+	}
+
+	private StringValue asString(Object value) {
+		if (value instanceof StringValue) return (StringValue) value;
+		throw error("expected a string");
+	}
+
+	// ----- comparisons
+
+	private static boolean compare(int op, double a, double b) {
+		switch (op) {
+		case EQ: return a == b;
+		case NE: return a != b;
+		case LT: return a < b;
+		case LE: return a <= b;
+		case GT: return a > b;
+		default: return a >= b;
+		}
+	}
+
+	/** Comparison with a constant, with a class for each operator */
+	private static Predicate compare(int op, final NumberValue a, final double b) {
+		switch (op) {
+		case EQ: return new Predicate() {
+			@Override
+			public boolean test(VCFVariant variant) {
+				return a.number(variant) == b;
+			}
+		};
+		case NE: return new Predicate() {
+			@Override
+			public boolean test(VCFVariant variant) {
+				return a.number(variant) != b;
+			}
+		};
+		case LT: return new Predicate() {
+			@Override
+			public boolean test(VCFVariant variant) {
+				return a.number(variant) < b;
+			}
+		};
+		case LE: return new Predicate() {
+			@Override
+			public boolean test(VCFVariant variant) {
+				return a.number(variant) <= b;
+			}
+		};
+		case GT: return new Predicate() {
+			@Override
+			public boolean test(VCFVariant variant) {
+				return a.number(variant) > b;
+			}
+		};
+		default: return new Predicate() {
+			@Override
+			public boolean test(VCFVariant variant) {
+				return a.number(variant) >= b;
+			}
+		};
+		}
+	}
+
+	private static int reverse(int op) {
+		switch (op) {
+		case LT: return GT;
+		case LE: return GE;
+		case GT: return LT;
+		case GE: return LE;
+		default: return op;
+		}
+	}
+
+	private Predicate comparison(final int op, Object left, Object right) {
+		if (left instanceof Predicate || right instanceof Predicate) {
+			if (!(left instanceof Predicate && right instanceof Predicate) || (op != EQ && op != NE)) {
+				throw error("booleans can only be compared to booleans, with == or !=");
+			}
+			final Predicate a = (Predicate) left, b = (Predicate) right;
+			return new Predicate() {
+				@Override
+				public boolean test(VCFVariant variant) {
+					return (a.test(variant) == b.test(variant)) == (op == EQ);
+				}
+			};
+		}
+		if (left instanceof NumberValue || right instanceof NumberValue) {
+			final NumberValue a = asNumber(left), b = asNumber(right);
+			if (a instanceof NumberConstant && b instanceof NumberConstant) {
+				return compare(op, ((NumberConstant) a).value, ((NumberConstant) b).value) ? TRUE : FALSE;
+			} else if (b instanceof NumberConstant) {
+				return compare(op, a, ((NumberConstant) b).value);
+			} else if (a instanceof NumberConstant) {
+				return compare(reverse(op), b, ((NumberConstant) a).value);
+			}
+			return new Predicate() {
+				@Override
+				public boolean test(VCFVariant variant) {
+					return compare(op, a.number(variant), b.number(variant));
+				}
+			};
+		}
+		final StringValue a = (StringValue) left, b = (StringValue) right;
+		if (op == EQ || op == NE) {
+			final boolean equal = op == EQ;
+			if (a instanceof StringConstant || b instanceof StringConstant) {
+				final String constant = (a instanceof StringConstant ? (StringConstant) a : (StringConstant) b).value;
+				final StringValue other = a instanceof StringConstant ? b : a;
+				return new Predicate() {
+					@Override
+					public boolean test(VCFVariant variant) {
+						return constant.equals(other.string(variant)) == equal;
+					}
+				};
+			}
+			return new Predicate() {
+				@Override
+				public boolean test(VCFVariant variant) {
+					String x = a.string(variant), y = b.string(variant);
+					return (x == null ? y == null : x.equals(y)) == equal;
+				}
+			};
+		}
+		return new Predicate() {
+			@Override
+			public boolean test(VCFVariant variant) {
+				String x = a.string(variant), y = b.string(variant);
+				return x != null && y != null && compare(op, x.compareTo(y), 0);
+			}
+		};
+	}
+
+	private NumberValue arithmetic(final char op, Object left, Object right) {
+		final NumberValue a = asNumber(left), b = asNumber(right);
+		if (a instanceof NumberConstant && b instanceof NumberConstant) {
+			return new NumberConstant(arithmetic(op, ((NumberConstant) a).value, ((NumberConstant) b).value));
+		}
+		return new NumberValue() {
+			@Override
+			double number(VCFVariant variant) {
+				return arithmetic(op, a.number(variant), b.number(variant));
+			}
+		};
+	}
+
+	private static double arithmetic(char op, double a, double b) {
+		switch (op) {
+		case '+': return a + b;
+		case '-': return a - b;
+		case '*': return a * b;
+		default: return a / b;
+		}
+	}
+
+	// ----- accessors
+
+	private static StringValue column(final int column) {
+		return new StringValue() {
+			@Override
+			String string(VCFVariant variant) {
+				return variant.getFixedColumn(column);
+			}
+		};
+	}
+
+	private static StringValue info(final String key) {
+		return new StringValue() {
+			@Override
+			String string(VCFVariant variant) {
+				return variant.getInfoValue(key);
+			}
+		};
+	}
+
+	private static StringValue sample(final int sample, final String key) {
+		return new StringValue() {
+			@Override
+			String string(VCFVariant variant) {
+				return variant.getGenotypeValue(sample, key);
+			}
+		};
+	}
+
+	private Object accessor(String name) {
+		if ("POS".equals(name)) {
+			return new NumberValue() {
+				@Override
+				double number(VCFVariant variant) {
+					return variant.getStart();
+				}
+			};
+		} else if ("END".equals(name)) {
+			return new NumberValue() {
+				@Override
+				double number(VCFVariant variant) {
+					return variant.getEnd();
+				}
+			};
+		} else if ("QUAL".equals(name)) {
+			return asNumber(column(VCFParser.VCFFixedColumns.QUAL.ordinal()));
+		} else if ("INFO".equals(name)) {
+			if (consume("[")) {
+				String key = asConstantString(parseOr());
+				expect("]");
+				return info(key);
+			}
+			expect(".");
+			return info(key());
+		} else if ("SAMPLE".equals(name)) {
+			expect("[");
+			int sample = integer();
+			expect("]");
+			expect(".");
+			return sample(sample, key());
+		}
+		for (VCFParser.VCFFixedColumns column : VCFParser.VCFFixedColumns.values()) {
+			if (column != VCFParser.VCFFixedColumns.FORMAT && column.name().equals(name)) {
+				return column(column.ordinal());
+			}
+		}
+		return null;
+	}
+
+	private Object function(String name) {
+		Object result;
+		if ("num".equals(name)) {
+			result = asNumber(parseOr());
+		} else if ("defined".equals(name)) {
+			Object value = parseOr();
+			if (value instanceof Predicate) throw error("defined() needs a string or number");
+			if (value instanceof NumberValue) {
+				final NumberValue n = (NumberValue) value;
+				result = new Predicate() {
+					@Override
+					public boolean test(VCFVariant variant) {
+						return !Double.isNaN(n.number(variant));
+					}
+				};
+			} else {
+				result = asPredicate(value);
+			}
+		} else if ("contains".equals(name)) {
+			final StringValue s = asString(parseOr());
+			expect(",");
+			final String part = asConstantString(parseOr());
+			result = new Predicate() {
+				@Override
+				public boolean test(VCFVariant variant) {
+					String value = s.string(variant);
+					return value != null && value.contains(part);
+				}
+			};
+		} else if ("hasFilter".equals(name)) {
+			final String filter = asConstantString(parseOr());
+			result = new Predicate() {
+				@Override
+				public boolean test(VCFVariant variant) {
+					// filters are separated by ';' in the spec, but VCFVariant.addFilter uses ','
+					for (String f : variant.getFilter().split("[;,]")) {
+						if (f.equals(filter)) return true;
+					}
+					return false;
+				}
+			};
+		} else {
+			throw error("unknown function " + name);
+		}
+		expect(")");
+		return result;
+	}
+
+	private String asConstantString(Object value) {
+		if (value instanceof StringConstant) return ((StringConstant) value).value;
+		throw error("expected a quoted string");
+	}
+
+	// ----- parsing
+
+	private IllegalArgumentException error(String message) {
+		return new IllegalArgumentException(message + " at position " + pos + " of expression: " + source);
+	}
+
+	private void skipSpace() {
+		while (pos < source.length() && Character.isWhitespace(source.charAt(pos))) pos++;
+	}
+
+	private boolean consume(String token) {
+		skipSpace();
+		if (source.startsWith(token, pos)) {
+			pos += token.length();
+			return true;
+		}
+		return false;
+	}
+
+	private void expect(String token) {
+		if (!consume(token)) throw error("expected '" + token + "'");
+	}
+
+	private boolean isKeyChar(char c) {
+		return Character.isLetterOrDigit(c) || c == '_' || c == '.';
+	}
+
+	/** An INFO or FORMAT key, as allowed by the VCF spec (including '.') */
+	private String key() {
+		int start = pos;
+		while (pos < source.length() && isKeyChar(source.charAt(pos))) pos++;
+		if (start == pos) throw error("expected a key");
+		return source.substring(start, pos);
+	}
+
+	private String identifier() {
+		skipSpace();
+		int start = pos;
+		while (pos < source.length() && (Character.isLetterOrDigit(source.charAt(pos)) || source.charAt(pos) == '_')) pos++;
+		return source.substring(start, pos);
+	}
+
+	private int integer() {
+		skipSpace();
+		int start = pos;
+		while (pos < source.length() && Character.isDigit(source.charAt(pos))) pos++;
+		if (start == pos) throw error("expected a sample number");
+		return Integer.parseInt(source.substring(start, pos));
+	}
+
+	private Object parseOr() {
+		Object left = parseAnd();
+		while (consume("||")) {
+			final Predicate a = asPredicate(left), b = asPredicate(parseAnd());
+			left = new Predicate() {
+				@Override
+				public boolean test(VCFVariant variant) {
+					return a.test(variant) || b.test(variant);
+				}
+			};
+		}
+		return left;
+	}
+
+	private Object parseAnd() {
+		Object left = parseUnary();
+		while (consume("&&")) {
+			final Predicate a = asPredicate(left), b = asPredicate(parseUnary());
+			left = new Predicate() {
+				@Override
+				public boolean test(VCFVariant variant) {
+					return a.test(variant) && b.test(variant);
+				}
+			};
+		}
+		return left;
+	}
+
+	private Object parseUnary() {
+		skipSpace();
+		if (source.startsWith("!", pos) && !source.startsWith("!=", pos)) {
+			pos++;
+			final Predicate a = asPredicate(parseUnary());
+			return new Predicate() {
+				@Override
+				public boolean test(VCFVariant variant) {
+					return !a.test(variant);
+				}
+			};
+		}
+		return parseComparison();
+	}
+
+	private Object parseComparison() {
+		Object left = parseSum();
+		skipSpace();
+		// the two-character operators first, so that "<=" is not taken as "<"
+		for (int op : new int[] {EQ, NE, LE, GE, LT, GT}) {
+			if (consume(COMPARISONS[op])) {
+				if (op == EQ && source.startsWith("=", pos)) throw error("'===' is not supported, use '=='");
+				return comparison(op, left, parseSum());
+			}
+		}
+		return left;
+	}
+
+	private Object parseSum() {
+		Object left = parseProduct();
+		while (true) {
+			skipSpace();
+			if (pos < source.length() && (source.charAt(pos) == '+' || source.charAt(pos) == '-')) {
+				char op = source.charAt(pos++);
+				left = arithmetic(op, left, parseProduct());
+			} else {
+				return left;
+			}
+		}
+	}
+
+	private Object parseProduct() {
+		Object left = parseSign();
+		while (true) {
+			skipSpace();
+			if (pos < source.length() && (source.charAt(pos) == '*' || source.charAt(pos) == '/')) {
+				char op = source.charAt(pos++);
+				left = arithmetic(op, left, parseSign());
+			} else {
+				return left;
+			}
+		}
+	}
+
+	private Object parseSign() {
+		if (consume("-")) {
+			return arithmetic('-', new NumberConstant(0), parseSign());
+		}
+		return parsePrimary();
+	}
+
+	private Object parsePrimary() {
+		skipSpace();
+		if (pos >= source.length()) throw error("unexpected end");
+		char c = source.charAt(pos);
+		if (c == '(') {
+			pos++;
+			Object value = parseOr();
+			expect(")");
+			return value;
+		} else if (c == '"' || c == '\'') {
+			return new StringConstant(quoted(c));
+		} else if (Character.isDigit(c) || c == '.') {
+			return new NumberConstant(number());
+		}
+		String name = identifier();
+		if (name.length() == 0) throw error("unexpected '" + c + "'");
+		if ("true".equals(name)) return TRUE;
+		if ("false".equals(name)) return FALSE;
+		Object accessor = accessor(name);
+		if (accessor != null) return accessor;
+		if (consume("(")) return function(name);
+		throw error("unknown name " + name);
+	}
+
+	private String quoted(char quote) {
+		StringBuilder sb = new StringBuilder();
+		pos++;
+		while (pos < source.length()) {
+			char c = source.charAt(pos++);
+			if (c == quote) return sb.toString();
+			if (c == '\\' && pos < source.length()) c = source.charAt(pos++);
+			sb.append(c);
+		}
+		throw error("unterminated string");
+	}
+
+	private double number() {
+		int start = pos;
+		while (pos < source.length() && (Character.isDigit(source.charAt(pos)) || source.charAt(pos) == '.')) pos++;
+		if (pos < source.length() && (source.charAt(pos) == 'e' || source.charAt(pos) == 'E')) {
+			pos++;
+			if (pos < source.length() && (source.charAt(pos) == '+' || source.charAt(pos) == '-')) pos++;
+			while (pos < source.length() && Character.isDigit(source.charAt(pos))) pos++;
+		}
+		try {
+			return Double.parseDouble(source.substring(start, pos));
+		} catch (NumberFormatException nfe) {
+			throw error("bad number " + source.substring(start, pos));
+		}
+	}
+}
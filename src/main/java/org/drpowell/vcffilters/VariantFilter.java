@@ -0,0 +1,15 @@
+package org.drpowell.vcffilters;
+
+import org.drpowell.vcf.VCFVariant;
+
+/**
+ * A filter which can be called directly, such as a compiled {@link GroovyFilterScript}.
+ * 
+ * @author bpow
+ */
+public interface VariantFilter {
+	/**
+	 * @return the variant (which may have been changed) if it passes, or null
+	 */
+	public VCFVariant filter(VCFVariant variant);
+}
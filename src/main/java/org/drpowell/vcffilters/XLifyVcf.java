@@ -248,7 +248,7 @@ public class XLifyVcf implements VariantOutput {
 		
 		// 'INFO' columns
 		int height = 1; // height in # of lines
-		for (String i : variants.getHeaders().infos().keySet()) {
+		for (String i : infos.keySet()) {
 			String value = v.getInfoValue(i, true);
 			if ("".equals(value)) {
 				value = i; // flag fields should display as something.